@@ -0,0 +1,87 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.jdo.PersistenceManager;
+
+import org.datanucleus.jdo.JDOPersistenceManager;
+import org.datanucleus.store.ExecutionContext;
+
+/**
+ * Loads many objects by id with multiget slices. DataNucleus 2.2 loads the
+ * objects of PersistenceManager.getObjectsById() one id at a time and never
+ * asks the store to load them together, so bulk loads must be requested here
+ * instead.
+ *
+ * @author Todd Nine
+ *
+ */
+public class BulkLoader {
+
+    private BulkLoader() {
+    }
+
+    /**
+     * Load the objects with the given keys
+     *
+     * @param pm
+     *            The persistence manager to load the objects into
+     * @param candidateClass
+     *            The class of the objects, or a superclass of them
+     * @param keys
+     *            The primary keys of the objects
+     * @return The objects in the same order as the keys. Null where no object
+     *         is stored for the key
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> getObjectsById(PersistenceManager pm,
+            Class<T> candidateClass, Collection<?> keys) {
+        List<Object> ids = new ArrayList<Object>(keys.size());
+
+        for (Object key : keys) {
+            ids.add(pm.newObjectIdInstance(candidateClass, key));
+        }
+
+        return (List<T>) getObjectsById(pm, ids);
+    }
+
+    /**
+     * Load the objects with the given JDO identities
+     *
+     * @param pm
+     *            The persistence manager to load the objects into
+     * @param ids
+     *            The identities of the objects
+     * @return The objects in the same order as the ids. Null where no object
+     *         is stored for the id
+     */
+    public static List<?> getObjectsById(PersistenceManager pm,
+            Collection<?> ids) {
+        ExecutionContext ec = (ExecutionContext) ((JDOPersistenceManager) pm)
+                .getObjectManager();
+
+        CassandraPersistenceHandler handler = (CassandraPersistenceHandler) ec
+                .getStoreManager().getPersistenceHandler();
+
+        return Arrays.asList(handler.findObjects(ec, ids.toArray()));
+    }
+}
@@ -20,10 +20,15 @@ package com.spidertracks.datanucleus;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnName;
 
 import java.lang.reflect.Array;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import org.apache.cassandra.thrift.Column;
 import org.datanucleus.ClassLoaderResolver;
@@ -42,6 +47,12 @@ import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.collection.CassEntry;
+import com.spidertracks.datanucleus.collection.ExternalEntity;
+import com.spidertracks.datanucleus.collection.LazyCollection;
+import com.spidertracks.datanucleus.collection.LazyList;
+import com.spidertracks.datanucleus.collection.LazyMap;
+import com.spidertracks.datanucleus.collection.LazySet;
+import com.spidertracks.datanucleus.collection.LazySortedSet;
 import com.spidertracks.datanucleus.collection.ReadCollection;
 import com.spidertracks.datanucleus.collection.ReadMap;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
@@ -61,6 +72,8 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
     private String columnFamily;
     private Bytes rowKey;
     private Selector selector;
+    private Map<Bytes, List<Column>> relationPages;
+    private Map<Bytes, List<Column>> relationColumns;
 
     /**
      * @param columns
@@ -92,6 +105,28 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 
     }
 
+    /**
+     * Set the first page of relation columns that have already been read
+     * 
+     * @param relationPages
+     *            The first page of each collection field, keyed by the column
+     *            name of the field
+     */
+    public void setRelationPages(Map<Bytes, List<Column>> relationPages) {
+        this.relationPages = relationPages;
+    }
+
+    /**
+     * Set every relation column of fields that have already been read in full
+     * 
+     * @param relationColumns
+     *            All columns of each collection, map or array field, keyed by
+     *            the column name of the field
+     */
+    public void setRelationColumns(Map<Bytes, List<Column>> relationColumns) {
+        this.relationColumns = relationColumns;
+    }
+
     @Override
     public boolean fetchBooleanField(int fieldNumber) {
 
@@ -224,9 +259,8 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
                         fieldMetaData.getType(), column);
                 try {
 
-                    Object object = context.findObject(identity, false, true,
-
-                    fieldMetaData.getTypeName());
+                    Object object = findReference(identity,
+                            fieldMetaData.getTypeName());
 
                     return objectProvider.wrapSCOField(fieldNumber, object,
                             false, false, true);
@@ -239,7 +273,17 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
                     || relationType == Relation.ONE_TO_MANY_BI
                     || relationType == Relation.ONE_TO_MANY_UNI) {
 
-                if (Collection.class.isAssignableFrom(fieldMetaData.getType())) {
+                if (isLazyCollection(fieldMetaData)) {
+
+                    Class<?> elementClass = clr.classForName(fieldMetaData
+                            .getCollection().getElementType());
+
+                    return newLazyCollection(fieldNumber, fieldMetaData,
+                            new ReadCollection(selector, byteContext,
+                                    columnFamily, rowKey, columnName, context,
+                                    elementClass, getPageSize()));
+
+                } else if (Collection.class.isAssignableFrom(fieldMetaData.getType())) {
 
                     Collection<Object> coll;
                     Class<?> elementClass = clr.classForName(fieldMetaData
@@ -255,22 +299,30 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
                         throw new NucleusDataStoreException(e.getMessage(), e);
                     }
 
+                    Comparator<Object> comparator = ((CassandraStoreManager) context
+                            .getStoreManager()).getComparator(fieldMetaData,
+                            clr);
+
+                    // the declared order, not the natural one
+                    if (comparator != null && coll instanceof SortedSet) {
+                        coll = new TreeSet<Object>(comparator);
+                    }
+
                     // loop through the super columns
 
                     // get our list of Strings
 
                     ReadCollection columnFetcher = new ReadCollection(selector, 
                             byteContext, columnFamily, rowKey, columnName,
-                            context, elementClass);
+                            context, elementClass, getPageSize());
 
-                    // TODO use context.getFetchPlan().getFetchSize()
-                    columnFetcher.fetchColumns(100, null);
+                    useReadColumns(columnFetcher, columnName);
 
                     for (Object key : columnFetcher) {
 
                         try {
-                            Object element = context.findObject(key, false,
-                                    true, fieldMetaData.getTypeName());
+                            Object element = findReference(key,
+                                    fieldMetaData.getTypeName());
 
                             coll.add(element);
                         } catch (NucleusObjectNotFoundException nonfe) {
@@ -327,11 +379,17 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
                                         clr, context.getMetaDataManager()));
                     }
 
-                    // TODO use context.getFetchPlan().getFetchSize()
                     ReadMap mapReader = new ReadMap(selector, byteContext, columnFamily,
                             rowKey, columnName, storedKeyClass,
-                            storedValueClass);
-                    mapReader.fetchColumns(100, null);
+                            storedValueClass, getPageSize());
+
+                    if (((CassandraStoreManager) context.getStoreManager())
+                            .isLazyMap(fieldMetaData.getType())) {
+                        return new LazyMap(objectProvider, fieldNumber,
+                                mapReader, keyClass, valueClass);
+                    }
+
+                    useReadColumns(mapReader, columnName);
 
                     for (CassEntry entry : mapReader) {
 
@@ -340,10 +398,9 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 
                             if (pcKey) {
 
-                                key = context.findObject(
+                                key = findReference(
                                         context.newObjectId(keyClass,
-                                                entry.getKey()), false, true,
-
+                                                entry.getKey()),
                                         fieldMetaData.getTypeName());
                             } else {
                                 key = entry.getKey();
@@ -352,10 +409,9 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
                             Object value = null;
 
                             if (pcValue) {
-                                value = context.findObject(
+                                value = findReference(
                                         context.newObjectId(valueClass,
-                                                entry.getValue()), false, true,
-
+                                                entry.getValue()),
                                         fieldMetaData.getTypeName());
                             } else {
                                 value = entry.getValue();
@@ -381,26 +437,32 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 
                     ReadMap mapReader = new ReadMap(selector, byteContext, columnFamily,
                             rowKey, columnName, Integer.class,
-                            byteContext.getKeyClass(context, metaData));
-                    mapReader.fetchColumns(100, null);
+                            byteContext.getKeyClass(context, metaData),
+                            getPageSize());
+
+                    useReadColumns(mapReader, columnName);
 
-                    int columns = mapReader.getColumnCount();
+                    // we don't know the length until every entry is read
+                    List<CassEntry> entries = new ArrayList<CassEntry>();
+                    int length = 0;
+
+                    for (CassEntry entry : mapReader) {
+                        entries.add(entry);
+                        length = Math.max(length, (Integer) entry.getKey() + 1);
+                    }
 
-                    // TODO make this size more
                     Object array = Array.newInstance(fieldMetaData.getType()
-                            .getComponentType(), columns);
+                            .getComponentType(), length);
 
                     Class<?> elementClass = clr.classForName(fieldMetaData
                             .getArray().getElementType());
 
-                    for (int i = 0; mapReader.hasNext(); i++) {
-
-                        CassEntry entry = mapReader.next();
+                    for (CassEntry entry : entries) {
 
                         Object id = context.newObjectId(elementClass,
                                 entry.getValue());
 
-                        Object element = context.findObject(id, false, true, fieldMetaData.getTypeName());
+                        Object element = findReference(id, fieldMetaData.getTypeName());
 
                         Array.set(array, (Integer) entry.getKey(), element);
                     }
@@ -423,6 +485,87 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
         }
     }
 
+    /**
+     * Give the reader any relation columns that have already been read
+     * 
+     * @param reader
+     * @param columnName
+     */
+    private void useReadColumns(ExternalEntity reader, Bytes columnName) {
+        if (relationColumns != null && relationColumns.containsKey(columnName)) {
+            reader.setColumns(relationColumns.get(columnName));
+            return;
+        }
+
+        if (relationPages != null) {
+            reader.setFirstPage(relationPages.get(columnName));
+        }
+    }
+
+    /**
+     * Find the referenced object, hollow if possible
+     * 
+     * @param id
+     * @param typeName
+     * @return
+     */
+    private Object findReference(Object id, String typeName) {
+        return ((CassandraStoreManager) context.getStoreManager())
+                .findReference(context, id, typeName);
+    }
+
+    /**
+     * Returns true if the field should be loaded on demand. Only fields
+     * declared as one of the collection interfaces can hold a lazy collection
+     * 
+     * @param fieldMetaData
+     * @return
+     */
+    private boolean isLazyCollection(AbstractMemberMetaData fieldMetaData) {
+        return ((CassandraStoreManager) context.getStoreManager())
+                .isLazyCollection(fieldMetaData,
+                        context.getClassLoaderResolver());
+    }
+
+    /**
+     * Create the lazy collection for the field's declared type
+     * 
+     * @param fieldNumber
+     * @param fieldMetaData
+     * @param reader
+     * @return
+     */
+    private LazyCollection newLazyCollection(int fieldNumber,
+            AbstractMemberMetaData fieldMetaData, ReadCollection reader) {
+        Class<?> type = fieldMetaData.getType();
+
+        if (type == List.class) {
+            return new LazyList(objectProvider, fieldNumber, reader,
+                    fieldMetaData.getTypeName());
+        }
+
+        if (type == SortedSet.class) {
+            return new LazySortedSet(objectProvider, fieldNumber, reader,
+                    fieldMetaData.getTypeName());
+        }
+
+        if (type == Set.class) {
+            return new LazySet(objectProvider, fieldNumber, reader,
+                    fieldMetaData.getTypeName());
+        }
+
+        return new LazyCollection(objectProvider, fieldNumber, reader,
+                fieldMetaData.getTypeName());
+    }
+
+    /**
+     * @return The number of relation columns to read with each slice
+     */
+    private int getPageSize() {
+        return ((CassandraStoreManager) context.getStoreManager())
+                .getPageSize(context);
+    }
+
     @Override
     public short fetchShortField(int fieldNumber) {
         try {
@@ -35,12 +35,14 @@ import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.fieldmanager.AbstractFieldManager;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.collection.LazyCollection;
+import com.spidertracks.datanucleus.collection.LazyMap;
 import com.spidertracks.datanucleus.collection.WriteCollection;
 import com.spidertracks.datanucleus.collection.WriteMap;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
 
 /**
  * @author Todd Nine
@@ -50,19 +52,23 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
     private ExecutionContext context;
     private Selector selector;
-    private Mutator mutator;
+    private BatchMutator mutator;
     private AbstractClassMetaData metaData;
     private ObjectProvider objectProvider;
     private String columnFamily;
     private ByteConverterContext byteContext;
     private Bytes key;
+    private boolean insert;
 
     /**
      * @param columns
      * @param metaData
+     * @param insert
+     *            True if the row is new, so there are no stored relation
+     *            columns to remove
      */
-    public CassandraInsertFieldManager(Selector selector, Mutator mutator,
-            ObjectProvider op, String columnFamily, Bytes key) {
+    public CassandraInsertFieldManager(Selector selector, BatchMutator mutator,
+            ObjectProvider op, String columnFamily, Bytes key, boolean insert) {
         super();
 
         this.selector = selector;
@@ -74,6 +80,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
                 .getByteConverterContext();
         this.columnFamily = columnFamily;
         this.key = key;
+        this.insert = insert;
 
     }
 
@@ -244,6 +251,27 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
                         return;
                     }
 
+                    // the changes of a wrapper copied from another object or
+                    // field were made against that object's row
+                    boolean owned = value instanceof LazyCollection
+                            && ((LazyCollection) value).isOwnedBy(
+                                    objectProvider, fieldNumber);
+
+                    // only write what changed, no need to read the stored
+                    // columns
+                    if (owned && !insert
+                            && !((LazyCollection) value).isCleared()) {
+                        writeChanges(collectionWriter, (LazyCollection) value,
+                                fieldNumber);
+                        return;
+                    }
+
+                    // read the stored relation once, unchanged columns are
+                    // skipped and the rest removed afterwards
+                    if (!insert) {
+                        collectionWriter.readStoredColumns();
+                    }
+
                     Object persisted = null;
                     Object objectPk = null;
 
@@ -258,11 +286,19 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
                         collectionWriter.writeRelationship(mutator, objectPk);
                     }
 
-                    // TODO remove this when SCO is working
-                    collectionWriter.removeRemaining(mutator);
+                    // a new row has nothing to remove
+                    if (!insert) {
+                        collectionWriter.removeRemaining(mutator);
+                    }
 
-                    objectProvider.wrapSCOField(fieldNumber, value, true, true,
-                            true);
+                    // lazy collections track their own changes, wrapping would
+                    // read every element. They're cleared once sent
+                    if (owned) {
+                        mutator.writeChanges((LazyCollection) value);
+                    } else {
+                        objectProvider.wrapSCOField(fieldNumber, value, true,
+                                true, true);
+                    }
 
                     return;
 
@@ -276,63 +312,42 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
                         return;
                     }
 
-                    ApiAdapter adapter = context.getApiAdapter();
-
-                    Map<?, ?> map = ((Map<?, ?>) value);
+                    boolean owned = value instanceof LazyMap
+                            && ((LazyMap) value).isOwnedBy(objectProvider,
+                                    fieldNumber);
 
-                    // serialized values to store per item
-                    Object serializedKey = null;
-                    Object serializedValue = null;
+                    // only write the entries put and removed, no need to
+                    // read the stored columns
+                    if (owned && !insert && !((LazyMap) value).isCleared()) {
+                        writeChanges(mapWriter, (LazyMap) value, fieldNumber);
+                        return;
+                    }
 
-                    // value set by the user in the map
-                    Object mapValue = null;
+                    Map<?, ?> map = ((Map<?, ?>) value);
 
-                    // pointer to what we persisted
-                    Object persisted = null;
+                    // a single read of the stored entries to diff against
+                    if (!insert) {
+                        mapWriter.readStoredColumns();
+                    }
 
                     // get each element and persist it.
-                    for (Object mapKey : map.keySet()) {
-
-                        mapValue = map.get(mapKey);
-
-                        // handle the case if our key is a persistent class
-                        // itself
-                        if (adapter.isPersistable(mapKey)) {
-
-                            persisted = context.persistObjectInternal(mapKey,
-                                    objectProvider, fieldNumber,
-                                    0);
-
-                            serializedKey = context.getApiAdapter()
-                                    .getIdForObject(persisted);
-                        } else {
-                            serializedKey = mapKey;
-                        }
-
-                        // persist the value if it can be persisted
-                        if (adapter.isPersistable(mapValue)) {
-
-                            persisted = context.persistObjectInternal(mapValue,
-                                    objectProvider, fieldNumber,
-                                    0);
-
-                            serializedValue = context.getApiAdapter()
-                                    .getIdForObject(persisted);
-
-                        } else {
-                            serializedValue = mapValue;
-                        }
-
-                        mapWriter.writeRelationship(mutator, serializedKey,
-                                serializedValue);
+                    for (Map.Entry<?, ?> entry : map.entrySet()) {
+                        writeEntry(mapWriter, entry.getKey(), entry.getValue(),
+                                fieldNumber);
+                    }
 
-                        // TODO remove this when SCO is working
+                    // remove the entries no longer in the map
+                    if (!insert) {
                         mapWriter.removeRemaining(mutator);
-
                     }
 
-                    objectProvider.wrapSCOField(fieldNumber, value, true, true,
-                            true);
+                    // lazy maps track their own changes, cleared once sent
+                    if (owned) {
+                        mutator.writeChanges((LazyMap) value);
+                    } else {
+                        objectProvider.wrapSCOField(fieldNumber, value, true,
+                                true, true);
+                    }
 
                     return;
 
@@ -349,6 +364,10 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
                         return;
                     }
 
+                    if (!insert) {
+                        mapWriter.readStoredColumns();
+                    }
+
                     for (int i = 0; i < Array.getLength(value); i++) {
 
                         // persist the object
@@ -362,8 +381,9 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
                         mapWriter.writeRelationship(mutator, i, objectPk);
                     }
 
-                    // TODO remove this when SCO is working
-                    mapWriter.removeRemaining(mutator);
+                    if (!insert) {
+                        mapWriter.removeRemaining(mutator);
+                    }
                 }
 
                 objectProvider.wrapSCOField(fieldNumber, value, true, true,
@@ -387,6 +407,108 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
         }
     }
 
+    /**
+     * Write the elements added to and delete the elements removed from a lazy
+     * collection since it was last written
+     * 
+     * @param collectionWriter
+     * @param value
+     * @param fieldNumber
+     */
+    private void writeChanges(WriteCollection collectionWriter,
+            LazyCollection value, int fieldNumber) {
+        ApiAdapter adapter = context.getApiAdapter();
+
+        for (Object element : value.getAdded()) {
+            Object persisted = context.persistObjectInternal(element,
+                    objectProvider, fieldNumber, 0);
+
+            collectionWriter.writeRelationship(mutator,
+                    adapter.getIdForObject(persisted));
+        }
+
+        for (Object element : value.getRemoved()) {
+            Object objectPk = adapter.getIdForObject(element);
+
+            // never persisted, so never stored
+            if (objectPk != null) {
+                collectionWriter.removeRelationship(mutator, objectPk);
+            }
+        }
+
+        // reads still need the changes until the batch is sent
+        mutator.writeChanges(value);
+    }
+
+    /**
+     * Persist the key and value of a map entry if they're persistent, and
+     * write the entry
+     * 
+     * @param mapWriter
+     * @param mapKey
+     * @param mapValue
+     * @param fieldNumber
+     */
+    private void writeEntry(WriteMap mapWriter, Object mapKey,
+            Object mapValue, int fieldNumber) {
+        ApiAdapter adapter = context.getApiAdapter();
+
+        // serialized values to store per item
+        Object serializedKey = mapKey;
+        Object serializedValue = mapValue;
+
+        // handle the case if our key is a persistent class itself
+        if (adapter.isPersistable(mapKey)) {
+            Object persisted = context.persistObjectInternal(mapKey,
+                    objectProvider, fieldNumber, 0);
+
+            serializedKey = adapter.getIdForObject(persisted);
+        }
+
+        // persist the value if it can be persisted
+        if (adapter.isPersistable(mapValue)) {
+            Object persisted = context.persistObjectInternal(mapValue,
+                    objectProvider, fieldNumber, 0);
+
+            serializedValue = adapter.getIdForObject(persisted);
+        }
+
+        mapWriter.writeRelationship(mutator, serializedKey, serializedValue);
+    }
+
+    /**
+     * Write the entries put into and delete the keys removed from a lazy map
+     * since it was last written
+     * 
+     * @param mapWriter
+     * @param value
+     * @param fieldNumber
+     */
+    private void writeChanges(WriteMap mapWriter, LazyMap value,
+            int fieldNumber) {
+        ApiAdapter adapter = context.getApiAdapter();
+
+        for (Map.Entry<Object, Object> entry : value.getPuts().entrySet()) {
+            writeEntry(mapWriter, entry.getKey(), entry.getValue(),
+                    fieldNumber);
+        }
+
+        for (Object mapKey : value.getRemoved()) {
+            Object serializedKey = mapKey;
+
+            if (adapter.isPersistable(mapKey)) {
+                serializedKey = adapter.getIdForObject(mapKey);
+            }
+
+            if (serializedKey != null) {
+                mapWriter.removeRelationship(mutator, serializedKey);
+            }
+        }
+
+        // reads still need the changes until the batch is sent
+        mutator.writeChanges(value);
+    }
+
     @Override
     public void storeStringField(int fieldNumber, String value) {
         try {
@@ -18,11 +18,16 @@ Contributors : Pedro Gomes and Universidade do Minho.
 package com.spidertracks.datanucleus;
 
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnName;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorColumnName;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getFetchColumnList;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.isCached;
 
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -41,16 +46,18 @@ import org.datanucleus.store.AbstractPersistenceHandler;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Pelops;
 import org.scale7.cassandra.pelops.Selector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.spidertracks.datanucleus.cache.MissingRowCache;
+import com.spidertracks.datanucleus.cache.RowCache;
 import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 import com.spidertracks.datanucleus.mutate.BatchMutationManager;
-import com.spidertracks.datanucleus.mutate.ExecutionContextDelete;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
+import com.spidertracks.datanucleus.mutate.ExecutionContextMutate;
 
 /**
  * Persistence handler for our DN plugin
@@ -72,6 +79,13 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler
         this.byteContext = manager.getByteConverterContext();
     }
 
+    /**
+     * @return The manager of the mutations of each execution context
+     */
+    public BatchMutationManager getBatchMutationManager() {
+        return batchManager;
+    }
+
     @Override
     public void close() {
 
@@ -86,103 +100,122 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler
 
         ExecutionContext ec = op.getExecutionContext();
 
-        ExecutionContextDelete delete = this.batchManager.beginDelete(ec, op);
+        ExecutionContextMutate delete = this.batchManager.beginDelete(ec, op);
 
         // we've already visited this object, do nothing
         if (!delete.addDeletion(op, key, columnFamily)) {
+            endDelete(ec);
             return;
         }
 
-        // delete our dependent objects as well.
-        AbstractClassMetaData metaData = op.getClassMetaData();
+        manager.invalidateRow(columnFamily, key);
+        manager.invalidateClassName(op.getInternalObjectId());
 
-        int[] fields = metaData.getAllMemberPositions();
+        try {
+            // delete our dependent objects as well.
+            AbstractClassMetaData metaData = op.getClassMetaData();
 
-        for (int current : fields) {
-            AbstractMemberMetaData fieldMetaData = metaData
-                    .getMetaDataForManagedMemberAtAbsolutePosition(current);
+            int[] fields = metaData.getAllMemberPositions();
 
-            // if we're a collection, delete each element
-            // recurse to delete this object if it's marked as dependent
-            if (fieldMetaData.isDependent()
-                    || (fieldMetaData.getCollection() != null && fieldMetaData
-                            .getCollection().isDependentElement())) {
+            for (int current : fields) {
+                AbstractMemberMetaData fieldMetaData = metaData
+                        .getMetaDataForManagedMemberAtAbsolutePosition(current);
 
-                // here we have the field value
-                Object value = op.provideField(current);
+                // if we're a collection, delete each element
+                // recurse to delete this object if it's marked as dependent
+                if (fieldMetaData.isDependent()
+                        || (fieldMetaData.getCollection() != null && fieldMetaData
+                                .getCollection().isDependentElement())) {
 
-                if (value == null) {
-                    continue;
-                }
+                    // here we have the field value
+                    Object value = op.provideField(current);
 
-                ClassLoaderResolver clr = ec.getClassLoaderResolver();
+                    if (value == null) {
+                        continue;
+                    }
 
-                int relationType = fieldMetaData.getRelationType(clr);
+                    ClassLoaderResolver clr = ec.getClassLoaderResolver();
 
-                // check if this is a relationship
+                    int relationType = fieldMetaData.getRelationType(clr);
 
-                if (relationType == Relation.ONE_TO_ONE_BI
-                        || relationType == Relation.ONE_TO_ONE_UNI || relationType == Relation.MANY_TO_ONE_BI) {
-                    // Persistable object - persist the related object and
-                    // store the
-                    // identity in the cell
+                    // check if this is a relationship
 
-                    ec.deleteObjectInternal(value);
-                }
+                    if (relationType == Relation.ONE_TO_ONE_BI
+                            || relationType == Relation.ONE_TO_ONE_UNI || relationType == Relation.MANY_TO_ONE_BI) {
+                        // Persistable object - persist the related object and
+                        // store the
+                        // identity in the cell
 
-                else if (relationType == Relation.MANY_TO_MANY_BI
-                        || relationType == Relation.ONE_TO_MANY_BI || relationType == Relation.ONE_TO_MANY_UNI) {
-                    // Collection/Map/Array
+                        ec.deleteObjectInternal(value);
+                    }
 
-                    if (fieldMetaData.hasCollection()) {
+                    else if (relationType == Relation.MANY_TO_MANY_BI
+                            || relationType == Relation.ONE_TO_MANY_BI || relationType == Relation.ONE_TO_MANY_UNI) {
+                        // Collection/Map/Array
 
-                        for (Object element : (Collection<?>) value) {
-                            // delete the object
-                            ec.deleteObjectInternal(element);
-                        }
+                        if (fieldMetaData.hasCollection()) {
 
-                    } else if (fieldMetaData.hasMap()) {
-                        ApiAdapter adapter = ec.getApiAdapter();
+                            for (Object element : (Collection<?>) value) {
+                                // delete the object
+                                ec.deleteObjectInternal(element);
+                            }
 
-                        Map<?, ?> map = ((Map<?, ?>) value);
-                        Object mapValue;
+                        } else if (fieldMetaData.hasMap()) {
+                            ApiAdapter adapter = ec.getApiAdapter();
 
-                        // get each element and persist it.
-                        for (Object mapKey : map.keySet()) {
+                            Map<?, ?> map = ((Map<?, ?>) value);
+                            Object mapValue;
 
-                            mapValue = map.get(mapKey);
+                            // get each element and persist it.
+                            for (Object mapKey : map.keySet()) {
 
-                            // handle the case if our key is a persistent
-                            // class
-                            // itself
-                            if (adapter.isPersistable(mapKey)) {
-                                ec.deleteObjectInternal(mapKey);
+                                mapValue = map.get(mapKey);
 
-                            }
-                            // persist the value if it can be persisted
-                            if (adapter.isPersistable(mapValue)) {
-                                ec.deleteObjectInternal(mapValue);
-                            }
+                                // handle the case if our key is a persistent
+                                // class
+                                // itself
+                                if (adapter.isPersistable(mapKey)) {
+                                    ec.deleteObjectInternal(mapKey);
 
-                        }
+                                }
+                                // persist the value if it can be persisted
+                                if (adapter.isPersistable(mapValue)) {
+                                    ec.deleteObjectInternal(mapValue);
+                                }
+
+                            }
 
-                    } else if (fieldMetaData.hasArray()
-                            && fieldMetaData.isDependent()) {
-                        Object persisted = null;
+                        } else if (fieldMetaData.hasArray()
+                                && fieldMetaData.isDependent()) {
+                            Object persisted = null;
 
-                        for (int i = 0; i < Array.getLength(value); i++) {
-                            // persist the object
-                            persisted = Array.get(value, i);
-                            ec.deleteObjectInternal(persisted);
+                            for (int i = 0; i < Array.getLength(value); i++) {
+                                // persist the object
+                                persisted = Array.get(value, i);
+                                ec.deleteObjectInternal(persisted);
+                            }
                         }
+
                     }
 
                 }
 
             }
-
+        } catch (RuntimeException e) {
+            this.batchManager.abort(ec);
+            throw e;
         }
 
+        endDelete(ec);
+    }
+
+    /**
+     * Signal the delete has completed, and flush the batch if it is the root
+     * of the cascade
+     * 
+     * @param ec
+     */
+    private void endDelete(ExecutionContext ec) {
         try {
             this.batchManager.endDelete(ec);
 
@@ -200,15 +233,55 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler
         Bytes key = byteContext.getRowKey(op);
         String columnFamily = getColumnFamily(metaData);
 
+        MissingRowCache missing = null;
+
+        // only an existence check may be answered by the missing row cache
+        if (isPkSearched(metaData, fieldNumbers)) {
+            missing = manager.getMissingRowCache();
+        }
+
+        if (missing != null && missing.isMissing(columnFamily, key)) {
+            throw new NucleusObjectNotFoundException();
+        }
+
+        // a row written while we read it must not be remembered as missing
+        long version = manager.getRowVersion(columnFamily, key);
+
         Selector selector = Pelops.createSelector(manager.getPoolName());
 
-        List<Column> columns = selector.getColumnsFromRow(columnFamily, key,
-                getFetchColumnList(metaData, fieldNumbers), Consistency.get());
+        List<Column> columns = null;
+
+        // every column of the relations, when the whole row was read
+        Map<Bytes, List<Column>> relations = null;
+
+        if (isCached(metaData)) {
+            columns = fetchCachedRow(metaData, columnFamily, key, selector);
+        } else {
+            List<Bytes> relationColumns = getRelationColumns(op, fieldNumbers);
+
+            if (relationColumns.size() > 0 && manager.getFullRowSize() > 0) {
+                columns = fetchFullRow(columnFamily, key, selector);
+
+                if (columns != null) {
+                    relations = splitRelations(columns, relationColumns);
+                }
+            }
+
+            if (columns == null) {
+                columns = selector.getColumnsFromRow(columnFamily, key,
+                        getFetchColumnList(metaData, fieldNumbers),
+                        Consistency.get());
+            }
+        }
 
         // nothing to do
         if (columns == null || columns.size() == 0) {
             // check if the pk field was requested. If so, throw an
             // exception b/c the object doesn't exist
+            if (missing != null) {
+                manager.setRowMissing(columnFamily, key, version);
+            }
+
             pksearched(metaData, fieldNumbers);
 
 
@@ -217,10 +290,170 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler
         CassandraFetchFieldManager manager = new CassandraFetchFieldManager(
                 columns, op, columnFamily, key, selector);
 
+        manager.setRelationColumns(relations);
+
         op.replaceFields(fieldNumbers, manager);
 
     }
 
+    /**
+     * Get the column names of the requested fields whose relation columns are
+     * read when the field is loaded. Lazy collections and maps aren't included,
+     * they're read on demand
+     * 
+     * @param op
+     * @param fieldNumbers
+     * @return
+     */
+    private List<Bytes> getRelationColumns(ObjectProvider op,
+            int[] fieldNumbers) {
+        AbstractClassMetaData metaData = op.getClassMetaData();
+        ClassLoaderResolver clr = op.getExecutionContext()
+                .getClassLoaderResolver();
+
+        List<Bytes> relationColumns = new ArrayList<Bytes>();
+
+        for (int fieldNumber : fieldNumbers) {
+            AbstractMemberMetaData fieldMetaData = metaData
+                    .getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
+
+            int relationType = fieldMetaData.getRelationType(clr);
+
+            if (relationType != Relation.MANY_TO_MANY_BI
+                    && relationType != Relation.ONE_TO_MANY_BI
+                    && relationType != Relation.ONE_TO_MANY_UNI) {
+                continue;
+            }
+
+            if (manager.isLazyCollection(fieldMetaData, clr)
+                    || manager.isLazyMap(fieldMetaData.getType())) {
+                continue;
+            }
+
+            relationColumns.add(getColumnName(metaData, fieldNumber));
+        }
+
+        return relationColumns;
+    }
+
+    /**
+     * Read every column of the row with a single slice
+     * 
+     * @param columnFamily
+     * @param key
+     * @param selector
+     * @return The columns, or null if the row has more columns than the full
+     *         row size
+     */
+    private List<Column> fetchFullRow(String columnFamily, Bytes key,
+            Selector selector) {
+        int limit = manager.getFullRowSize();
+
+        // read one more so we know if there are more
+        List<Column> columns = selector.getColumnsFromRow(columnFamily, key,
+                Selector.newColumnsPredicateAll(false, limit + 1),
+                Consistency.get());
+
+        if (columns.size() > limit) {
+            return null;
+        }
+
+        return columns;
+    }
+
+    /**
+     * Split the columns of a whole row into the columns of each relation. A
+     * relation column is the column name of the field, a delimiter, then the
+     * key of the entry
+     * 
+     * @param columns
+     * @param relationColumns
+     *            The column names of the relation fields
+     * @return The columns of each relation field, keyed by the field's column
+     *         name. Every field is present, empty if it has no columns
+     */
+    private Map<Bytes, List<Column>> splitRelations(List<Column> columns,
+            List<Bytes> relationColumns) {
+
+        Map<Bytes, List<Column>> relations = new HashMap<Bytes, List<Column>>(
+                relationColumns.size());
+
+        for (Bytes relationColumn : relationColumns) {
+            relations.put(relationColumn, new ArrayList<Column>());
+        }
+
+        for (Column column : columns) {
+            ByteBuffer name = column.bufferForName();
+
+            for (Bytes relationColumn : relationColumns) {
+                if (isRelationColumn(name, relationColumn.getBytes())) {
+                    relations.get(relationColumn).add(column);
+                    break;
+                }
+            }
+        }
+
+        return relations;
+    }
+
+    /**
+     * Returns true if the column name is the relation column prefix followed by
+     * the delimiter
+     * 
+     * @param name
+     * @param prefix
+     * @return
+     */
+    private static boolean isRelationColumn(ByteBuffer name, ByteBuffer prefix) {
+        int length = prefix.remaining();
+
+        if (name.remaining() <= length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (name.get(name.position() + i) != prefix.get(prefix.position()
+                    + i)) {
+                return false;
+            }
+        }
+
+        return name.get(name.position() + length) == 0;
+    }
+
+    /**
+     * Get the columns of every field of a cached class from the row cache,
+     * reading and caching them if they aren't present
+     * 
+     * @param metaData
+     * @param columnFamily
+     * @param key
+     * @param selector
+     * @return
+     */
+    private List<Column> fetchCachedRow(AbstractClassMetaData metaData,
+            String columnFamily, Bytes key, Selector selector) {
+        RowCache cache = manager.getRowCache();
+
+        List<Column> columns = cache.get(columnFamily, key);
+
+        if (columns != null) {
+            return columns;
+        }
+
+        long version = manager.getRowVersion(columnFamily, key);
+
+        columns = selector.getColumnsFromRow(columnFamily, key,
+                getFetchColumnList(metaData, metaData.getAllMemberPositions()),
+                Consistency.get());
+
+        if (columns != null && columns.size() > 0) {
+            manager.cacheRow(columnFamily, key, columns, version);
+        }
+
+        return columns;
+    }
+
     /**
      * Checks if a pk field was requested to be loaded. If it is null a
      * NucleusObjectNotFoundException is thrown because we only call this with 0
@@ -232,28 +465,87 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler
     private void pksearched(AbstractClassMetaData metaData,
             int[] requestedFields) {
 
+        // our pk was a requested field, throw an exception b/c we
+        // didn't find anything
+        if (isPkSearched(metaData, requestedFields)) {
+            throw new NucleusObjectNotFoundException();
+        }
+    }
+
+    /**
+     * Returns true if a pk field is one of the requested fields
+     * 
+     * @param metaData
+     * @param requestedFields
+     * @return
+     */
+    private boolean isPkSearched(AbstractClassMetaData metaData,
+            int[] requestedFields) {
+
         int[] pkPositions = metaData.getPKMemberPositions();
 
         for (int pkPosition : pkPositions) {
             for (int requestedField : requestedFields) {
-                // our pk was a requested field, throw an exception b/c we
-                // didn't find anything
                 if (requestedField == pkPosition) {
-                    throw new NucleusObjectNotFoundException();
+                    return true;
                 }
             }
         }
+
+        return false;
     }
 
+    /**
+     * Returning null lets DataNucleus create the object hollow, and read it
+     * only if it must be validated
+     */
     @Override
     public Object findObject(ExecutionContext ec, Object id) {
         return null;
     }
 
+    /**
+     * Find many objects at once. The class of every id is resolved with a
+     * multiget of the discriminators, then each class is loaded with multiget
+     * slices. DataNucleus 2.2 never calls this itself, it is used by
+     * {@link BulkLoader}
+     * 
+     * @param ec
+     * @param ids
+     * @return The objects in the same order as the ids. Null if no row exists
+     *         for the id
+     */
+    public Object[] findObjects(ExecutionContext ec, Object[] ids) {
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+
+        String[] classNames = manager.getClassNamesForObjectIDs(ids, clr, ec);
+
+        Class<?>[] targetClasses = new Class<?>[ids.length];
+
+        for (int i = 0; i < ids.length; i++) {
+            if (classNames[i] != null) {
+                targetClasses[i] = clr.classForName(classNames[i]);
+            }
+        }
+
+        return manager.getBatchFetchManager().findObjects(ec, ids,
+                targetClasses);
+    }
+
+    /**
+     * Locate many objects at once with multiget slices. DataNucleus 2.2 never
+     * calls this itself, objects are located one at a time
+     * 
+     * @param ops
+     */
+    public void locateObjects(ObjectProvider[] ops) {
+        manager.getBatchFetchManager().locateObjects(ops);
+    }
+
     @Override
     public void insertObject(ObjectProvider op) {
-        // just delegate to update. They both perform the same logic
-        updateObject(op, op.getClassMetaData().getAllMemberPositions());
+        // write every field and the discriminator, the row is new
+        writeObject(op, op.getClassMetaData().getAllMemberPositions(), true);
 
     }
 
@@ -265,44 +557,71 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler
 
     @Override
     public void updateObject(ObjectProvider op, int[] fieldNumbers) {
+        // only write the dirty fields we've been given. The discriminator
+        // can't change once the object is inserted
+        writeObject(op, fieldNumbers, false);
+    }
+
+    /**
+     * Write the given fields of the object.
+     * 
+     * @param op
+     *            The object provider to write
+     * @param fieldNumbers
+     *            The absolute field numbers to write
+     * @param insert
+     *            True if this is the first write of the object. The
+     *            discriminator is only written on insert
+     */
+    private void writeObject(ObjectProvider op, int[] fieldNumbers,
+            boolean insert) {
         this.manager.assertReadOnlyForUpdateOfObject(op);
 
         AbstractClassMetaData metaData = op.getClassMetaData();
 
         ExecutionContext ec = op.getExecutionContext();
 
-        // signal a write is about to start
-        Mutator mutator = this.batchManager.beginWrite(ec).getMutator();
-        Selector selector = Pelops.createSelector(manager.getPoolName());
+        try {
+            // signal a write is about to start. This can only fail before
+            // pushing, when no other write of the context is in progress, so
+            // the abort below has nothing else to undo
+            BatchMutator mutator = this.batchManager.beginWrite(ec)
+                    .getMutator();
+            Selector selector = Pelops.createSelector(manager.getPoolName());
 
+            Bytes key = byteContext.getRowKey(op);
+            String columnFamily = getColumnFamily(metaData);
 
-        Bytes key = byteContext.getRowKey(op);
-        String columnFamily = getColumnFamily(metaData);
+            manager.invalidateRow(columnFamily, key);
 
-        // Write our all our primary object data
-        CassandraInsertFieldManager manager = new CassandraInsertFieldManager(
-                selector, mutator, op, columnFamily, key);
+            // Write our all our primary object data
+            CassandraInsertFieldManager manager = new CassandraInsertFieldManager(
+                    selector, mutator, op, columnFamily, key, insert);
 
-        op.provideFields(metaData.getAllMemberPositions(), manager);
+            op.provideFields(fieldNumbers, manager);
 
-        // if we have a discriminator, write the value
-        if (metaData.hasDiscriminatorStrategy()) {
-            final DiscriminatorMetaData discriminator = metaData.getDiscriminatorMetaData();
+            // if we have a discriminator, write the value
+            if (insert && metaData.hasDiscriminatorStrategy()) {
+                final DiscriminatorMetaData discriminator = metaData.getDiscriminatorMetaData();
 
-            Bytes colName = getDiscriminatorColumnName(discriminator);
+                Bytes colName = getDiscriminatorColumnName(discriminator);
 
-            // DN doesn't provide discrminator value if the strategy is CLASS_NAME.
-            final String value = (discriminator.getStrategy() == DiscriminatorStrategy.CLASS_NAME)
-                ? metaData.getFullClassName()
-                : discriminator.getValue();
+                // DN doesn't provide discrminator value if the strategy is CLASS_NAME.
+                final String value = (discriminator.getStrategy() == DiscriminatorStrategy.CLASS_NAME)
+                    ? metaData.getFullClassName()
+                    : discriminator.getValue();
 
-            LOGGER.debug("Object [{}] has a discriminator, it is [{}].", key.toUTF8(), value);
+                LOGGER.debug("Object [{}] has a discriminator, it is [{}].", key.toUTF8(), value);
             
-            Bytes byteValue = byteContext.getBytes(value);
+                Bytes byteValue = byteContext.getBytes(value);
             
-            mutator.writeColumn(columnFamily, key, mutator.newColumn(colName, byteValue));
-        } else {
-            LOGGER.debug("Object [{}] has no discriminator.", key.toUTF8());
+                mutator.writeColumn(columnFamily, key, mutator.newColumn(colName, byteValue));
+            } else if (insert) {
+                LOGGER.debug("Object [{}] has no discriminator.", key.toUTF8());
+            }
+        } catch (RuntimeException e) {
+            this.batchManager.abort(ec);
+            throw e;
         }
 
         try {
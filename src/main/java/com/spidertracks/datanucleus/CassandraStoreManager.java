@@ -21,19 +21,30 @@ package com.spidertracks.datanucleus;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDescriminatorColumn;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
 
 import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TokenRange;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.OMFContext;
 import org.datanucleus.PersistenceConfiguration;
 import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
 import org.datanucleus.metadata.AbstractClassMetaData;
-import org.datanucleus.metadata.InheritanceStrategy;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.CollectionMetaData;
 import org.datanucleus.store.AbstractStoreManager;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.NucleusConnection;
@@ -41,10 +52,17 @@ import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Pelops;
 import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.cache.LruCache;
+import com.spidertracks.datanucleus.cache.LruRowCache;
+import com.spidertracks.datanucleus.cache.MissingRowCache;
+import com.spidertracks.datanucleus.cache.RowCache;
+import com.spidertracks.datanucleus.cache.RowVersions;
 import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.fetch.BatchFetchManager;
 import com.spidertracks.datanucleus.serialization.JavaSerializer;
 import com.spidertracks.datanucleus.serialization.Serializer;
+import com.spidertracks.datanucleus.utils.ParallelExecutor;
 
 public class CassandraStoreManager extends AbstractStoreManager {
 
@@ -58,6 +76,30 @@ public class CassandraStoreManager extends AbstractStoreManager {
     private static final String SERIALIZER = "com.spidertracks.cassandra.serializer";
     private static final String BYTEMAPPER = "com.spidertracks.cassandra.bytemapper";
     private static final String CHECKSLEEPTIME = "com.spidertracks.cassandra.checksleep";
+    private static final String MULTIGETSIZE = "com.spidertracks.cassandra.multigetsize";
+    private static final String BUFFERWRITES = "com.spidertracks.cassandra.bufferwrites";
+    private static final String MAXBATCHMUTATIONS = "com.spidertracks.cassandra.maxbatchmutations";
+    private static final String MAXBATCHBYTES = "com.spidertracks.cassandra.maxbatchbytes";
+    private static final String THREADS = "com.spidertracks.cassandra.threads";
+    private static final String ROWCACHE = "com.spidertracks.cassandra.rowcache";
+    private static final String ROWCACHESIZE = "com.spidertracks.cassandra.rowcachesize";
+    private static final String ROWCACHEBYTES = "com.spidertracks.cassandra.rowcachebytes";
+    private static final String ROWCACHETTL = "com.spidertracks.cassandra.rowcachettl";
+    private static final String MISSINGCACHESIZE = "com.spidertracks.cassandra.missingcachesize";
+    private static final String MISSINGCACHETTL = "com.spidertracks.cassandra.missingcachettl";
+    private static final String CLASSCACHESIZE = "com.spidertracks.cassandra.classcachesize";
+    private static final String PAGESIZE = "com.spidertracks.cassandra.pagesize";
+    private static final String LAZYCOLLECTIONS = "com.spidertracks.cassandra.lazycollections";
+    private static final String PREFETCHDEPTH = "com.spidertracks.cassandra.prefetchdepth";
+    private static final String HOLLOWREFERENCES = "com.spidertracks.cassandra.hollowreferences";
+    private static final String FULLROWSIZE = "com.spidertracks.cassandra.fullrowsize";
+    private static final String SCANSIZE = "com.spidertracks.cassandra.scansize";
+    private static final String QUERYPARALLELISM = "com.spidertracks.cassandra.queryparallelism";
+
+    /**
+     * The metadata extension naming the comparator of a sorted collection
+     */
+    private static final String COMPARATOR = "comparator-name";
     
     
     private boolean autoCreateSchema = false;
@@ -67,11 +109,34 @@ public class CassandraStoreManager extends AbstractStoreManager {
     private int poolTimeBetweenEvictionRunsMillis;
     private int poolMinEvictableIdleTimeMillis;
     private long checkSleepTime;
+    private int multigetSize;
+    private boolean bufferWrites;
+    private int maxBatchMutations;
+    private long maxBatchBytes;
+    private int pageSize;
+    private boolean lazyCollections;
+    private int prefetchDepth;
+    private boolean hollowReferences;
+    private int fullRowSize;
+    private int scanSize;
+    private int queryParallelism;
 
     private ConnectionFactoryImpl connectionFactory;
 
     private ByteConverterContext byteConverterContext;
 
+    private BatchFetchManager batchFetchManager;
+
+    private ParallelExecutor executor;
+
+    private RowCache rowCache;
+
+    private RowVersions rowVersions;
+
+    private MissingRowCache missingRowCache;
+
+    private LruCache<Object, String> classNames;
+
     /**
      * Constructor.
      * 
@@ -113,6 +178,99 @@ public class CassandraStoreManager extends AbstractStoreManager {
         
         checkSleepTime = conf.getLongProperty(CHECKSLEEPTIME);
         
+        // how many rows to read in a single multiget
+        multigetSize = conf.getIntProperty(MULTIGETSIZE);
+
+        if (multigetSize <= 0) {
+            multigetSize = 100;
+        }
+
+        // how many relation columns to read in a single slice
+        pageSize = conf.getIntProperty(PAGESIZE);
+
+        if (pageSize <= 0) {
+            pageSize = 100;
+        }
+
+        // load collection relations on demand
+        lazyCollections = conf.getBooleanProperty(LAZYCOLLECTIONS);
+
+        // how many levels of relations to read with each batch of objects,
+        // disabled by default
+        prefetchDepth = Math.max(0, conf.getIntProperty(PREFETCHDEPTH));
+
+        // don't read referenced objects until they're used
+        hollowReferences = conf.getBooleanProperty(HOLLOWREFERENCES);
+
+        // read rows with relations in a single slice when they're at most this
+        // many columns, disabled by default
+        fullRowSize = Math.max(0, conf.getIntProperty(FULLROWSIZE));
+
+        // how many rows to read with each page of a scan
+        scanSize = conf.getIntProperty(SCANSIZE);
+
+        if (scanSize <= 0) {
+            scanSize = 1000;
+        }
+
+        // hold all writes until the transaction commits
+        bufferWrites = conf.getBooleanProperty(BUFFERWRITES);
+
+        // split large batches so they stay well below the thrift frame size
+        maxBatchMutations = conf.getIntProperty(MAXBATCHMUTATIONS);
+
+        if (maxBatchMutations <= 0) {
+            maxBatchMutations = 1000;
+        }
+
+        maxBatchBytes = conf.getLongProperty(MAXBATCHBYTES);
+
+        if (maxBatchBytes <= 0) {
+            maxBatchBytes = 4 * 1024 * 1024; // default, 4 MB
+        }
+
+        // how many operations may run at once
+        int threads = conf.getIntProperty(THREADS);
+
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        executor = new ParallelExecutor(threads);
+
+        // how many index reads of a single query may run at once
+        queryParallelism = conf.getIntProperty(QUERYPARALLELISM);
+
+        if (queryParallelism <= 0) {
+            queryParallelism = threads;
+        }
+
+        rowCache = createRowCache(conf);
+
+        // guards the row cache against reads that race a write
+        rowVersions = new RowVersions(4096);
+
+        // remember rows that don't exist, disabled by default
+        int missingSize = conf.getIntProperty(MISSINGCACHESIZE);
+
+        if (missingSize > 0) {
+            long missingTtl = conf.getLongProperty(MISSINGCACHETTL);
+
+            if (missingTtl <= 0) {
+                missingTtl = 5 * 1000; // default, 5 secs
+            }
+
+            missingRowCache = new MissingRowCache(missingSize, missingTtl);
+        }
+
+        // the concrete class of recently loaded ids
+        int classCacheSize = conf.getIntProperty(CLASSCACHESIZE);
+
+        if (classCacheSize <= 0) {
+            classCacheSize = 10000;
+        }
+
+        classNames = new LruCache<Object, String>(classCacheSize, 0, 0);
         
 
         if (autoCreateSchema) {
@@ -149,6 +307,8 @@ public class CassandraStoreManager extends AbstractStoreManager {
         }
         
         
+        batchFetchManager = new BatchFetchManager(this);
+
         // Handler for persistence process
         persistenceHandler2 = new CassandraPersistenceHandler(this);
 
@@ -159,6 +319,41 @@ public class CassandraStoreManager extends AbstractStoreManager {
 
 
 
+    /**
+     * Create the row cache. Uses the configured implementation if one is set,
+     * otherwise an LRU cache with the configured bounds
+     * 
+     * @param conf
+     * @return
+     */
+    private RowCache createRowCache(PersistenceConfiguration conf) {
+        String rowCacheClass = conf.getStringProperty(ROWCACHE);
+
+        if (rowCacheClass != null) {
+            try {
+                return (RowCache) Class.forName(rowCacheClass).newInstance();
+            } catch (Exception e) {
+                throw new NucleusDataStoreException(String.format(
+                        "Could not create row cache for class name %s",
+                        rowCacheClass));
+            }
+        }
+
+        int size = conf.getIntProperty(ROWCACHESIZE);
+
+        if (size <= 0) {
+            size = 10000;
+        }
+
+        long bytes = conf.getLongProperty(ROWCACHEBYTES);
+
+        if (bytes <= 0) {
+            bytes = 16 * 1024 * 1024; // default, 16 MB
+        }
+
+        return new LruRowCache(size, bytes, conf.getLongProperty(ROWCACHETTL));
+    }
+
     protected void registerConnectionMgr() {
         super.registerConnectionMgr();
         this.connectionMgr.disableConnectionPool();
@@ -169,6 +364,7 @@ public class CassandraStoreManager extends AbstractStoreManager {
      */
     public void close() {
         // omfContext.getMetaDataManager().deregisterListener(metadataListener);
+        executor.shutdown();
         super.close();
     }
 
@@ -220,6 +416,13 @@ public class CassandraStoreManager extends AbstractStoreManager {
         return connectionFactory.getPoolName();
     }
 
+    /**
+     * @return the token ranges of the keyspace
+     */
+    public List<TokenRange> getTokenRanges() {
+        return connectionFactory.describeRing();
+    }
+
     /**
      * @return the pauseOnCreateTime
      */
@@ -229,6 +432,269 @@ public class CassandraStoreManager extends AbstractStoreManager {
 
 
 
+    /**
+     * @return the maximum number of rows to read in a single multiget
+     */
+    public int getMultigetSize() {
+        return multigetSize;
+    }
+
+    /**
+     * Get the number of columns of a collection, map or array to read with
+     * each slice. Uses the fetch size of the fetch plan when it's positive
+     * 
+     * @param ec
+     * @return
+     */
+    public int getPageSize(ExecutionContext ec) {
+        int fetchSize = ec.getFetchPlan().getFetchSize();
+
+        if (fetchSize > 0) {
+            return fetchSize;
+        }
+
+        return pageSize;
+    }
+
+    /**
+     * @return true if collection relations are loaded on demand
+     */
+    public boolean isLazyCollections() {
+        return lazyCollections;
+    }
+
+    /**
+     * @param fieldMetaData
+     *            The metadata of a collection field
+     * @param clr
+     * @return true if the field holds a collection loaded on demand
+     */
+    public boolean isLazyCollection(AbstractMemberMetaData fieldMetaData,
+            ClassLoaderResolver clr) {
+        if (!lazyCollections) {
+            return false;
+        }
+
+        Class<?> type = fieldMetaData.getType();
+
+        if (type == SortedSet.class) {
+            return isRowKeyOrdered(fieldMetaData, clr);
+        }
+
+        return type == Collection.class || type == List.class
+                || type == Set.class;
+    }
+
+    /**
+     * A lazy sorted set orders it's elements by their row keys. That is only
+     * the order of the field if it declares no comparator and the elements
+     * have no natural ordering
+     * 
+     * @param fieldMetaData
+     * @param clr
+     * @return
+     */
+    private boolean isRowKeyOrdered(AbstractMemberMetaData fieldMetaData,
+            ClassLoaderResolver clr) {
+        CollectionMetaData collection = fieldMetaData.getCollection();
+
+        if (collection == null || getComparatorName(fieldMetaData) != null) {
+            return false;
+        }
+
+        return !Comparable.class.isAssignableFrom(clr.classForName(collection
+                .getElementType()));
+    }
+
+    /**
+     * @param fieldMetaData
+     * @return The class name of the comparator declared by a sorted
+     *         collection field, null if it declares none
+     */
+    private String getComparatorName(AbstractMemberMetaData fieldMetaData) {
+        String name = fieldMetaData.getValueForExtension(COMPARATOR);
+
+        if (name == null && fieldMetaData.getCollection() != null) {
+            name = fieldMetaData.getCollection().getValueForExtension(
+                    COMPARATOR);
+        }
+
+        return name;
+    }
+
+    /**
+     * @param fieldMetaData
+     * @param clr
+     * @return The comparator declared by a sorted collection field, null if
+     *         it declares none
+     */
+    @SuppressWarnings("unchecked")
+    public Comparator<Object> getComparator(
+            AbstractMemberMetaData fieldMetaData, ClassLoaderResolver clr) {
+        String name = getComparatorName(fieldMetaData);
+
+        if (name == null) {
+            return null;
+        }
+
+        try {
+            return (Comparator<Object>) clr.classForName(name).newInstance();
+        } catch (Exception e) {
+            throw new NucleusException("Unable to create the comparator "
+                    + name, e);
+        }
+    }
+
+    /**
+     * @param type
+     *            The declared type of a map field
+     * @return true if the field holds a map loaded on demand
+     */
+    public boolean isLazyMap(Class<?> type) {
+        return lazyCollections && type == Map.class;
+    }
+
+    /**
+     * @return The largest number of columns of a row read with a single slice
+     *         of the whole row. 0 if rows are never read whole
+     */
+    public int getFullRowSize() {
+        return fullRowSize;
+    }
+
+    /**
+     * @return The number of rows read with each page of a query that scans
+     *         the column family
+     */
+    public int getScanSize() {
+        return scanSize;
+    }
+
+    /**
+     * @return The most index reads of a single query that run at once
+     */
+    public int getQueryParallelism() {
+        return queryParallelism;
+    }
+
+    /**
+     * @return The number of levels of relations read with each batch of
+     *         objects. 0 if relations aren't prefetched
+     */
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * @return true if writes within a transaction are sent when it commits
+     */
+    public boolean isBufferWrites() {
+        return bufferWrites;
+    }
+
+    /**
+     * @return the maximum number of mutations in a single batch_mutate
+     */
+    public int getMaxBatchMutations() {
+        return maxBatchMutations;
+    }
+
+    /**
+     * @return the maximum estimated bytes of a single batch_mutate
+     */
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * @return the executor for operations that may run in parallel
+     */
+    public ParallelExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the cache for rows of classes with the cassandra.cache extension
+     */
+    public RowCache getRowCache() {
+        return rowCache;
+    }
+
+    /**
+     * @return the cache of rows known not to exist. Null if it is disabled
+     */
+    public MissingRowCache getMissingRowCache() {
+        return missingRowCache;
+    }
+
+    /**
+     * Get the version of a row. Taken before the row is read, so it is only
+     * cached, or remembered as missing, if it wasn't invalidated while it was
+     * read
+     * 
+     * @param columnFamily
+     * @param rowKey
+     * @return
+     */
+    public long getRowVersion(String columnFamily, Bytes rowKey) {
+        return rowVersions.get(columnFamily, rowKey);
+    }
+
+    /**
+     * Put the columns of a row read at the given version in the row cache.
+     * If the row was invalidated since, it's removed again as what was read
+     * may be stale
+     * 
+     * @param columnFamily
+     * @param rowKey
+     * @param columns
+     * @param version
+     *            The version of the row before it was read
+     */
+    public void cacheRow(String columnFamily, Bytes rowKey,
+            List<Column> columns, long version) {
+        rowCache.put(columnFamily, rowKey, columns);
+
+        if (rowVersions.get(columnFamily, rowKey) != version) {
+            rowCache.invalidate(columnFamily, rowKey);
+        }
+    }
+
+    /**
+     * Remember a row read at the given version doesn't exist, unless it was
+     * invalidated since as it may have been written
+     * 
+     * @param columnFamily
+     * @param rowKey
+     * @param version
+     *            The version of the row before it was read
+     */
+    public void setRowMissing(String columnFamily, Bytes rowKey, long version) {
+        missingRowCache.setMissing(columnFamily, rowKey);
+
+        if (rowVersions.get(columnFamily, rowKey) != version) {
+            missingRowCache.invalidate(columnFamily, rowKey);
+        }
+    }
+
+    /**
+     * Remove the row from all caches. Called whenever the row is written or
+     * deleted
+     * 
+     * @param columnFamily
+     * @param rowKey
+     */
+    public void invalidateRow(String columnFamily, Bytes rowKey) {
+        // a read in progress must not cache what it read
+        rowVersions.advance(columnFamily, rowKey);
+
+        rowCache.invalidate(columnFamily, rowKey);
+
+        if (missingRowCache != null) {
+            missingRowCache.invalidate(columnFamily, rowKey);
+        }
+    }
+
     /**
      * DO NOT CALL OUTSIDE OF FRAMEWORK. This is a callback for the connection
      * factory to signal to the store manager that it has finished configuring
@@ -248,7 +714,24 @@ public class CassandraStoreManager extends AbstractStoreManager {
     public ByteConverterContext getByteConverterContext() {
         return byteConverterContext;
     }
+
+    /**
+     * @return the batchFetchManager
+     */
+    public BatchFetchManager getBatchFetchManager() {
+        return batchFetchManager;
+    }
     
+    /**
+     * Forget the concrete class of the object with the given id. Called when
+     * the object is deleted, as the id may be reused by another class
+     * 
+     * @param id
+     */
+    public void invalidateClassName(Object id) {
+        classNames.remove(id);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -274,84 +757,343 @@ public class CassandraStoreManager extends AbstractStoreManager {
             return pcClassName;
         }
 
+        // the class of an object never changes once it's written
+        String className = classNames.get(id);
+
+        if (className != null) {
+            return className;
+        }
+
         Bytes key = byteConverterContext.getRowKeyForId(id);
 
-        return findObject(key, metaData, clr, ec, id);
+        className = findObject(key, metaData, clr, ec);
+
+        if (className != null) {
+            classNames.put(id, className);
+        }
+
+        return className;
 
     }
 
-    private String findObject(Bytes key, AbstractClassMetaData metaData,
-            ClassLoaderResolver clr, ExecutionContext ec, Object id) {
+    /**
+     * Find a referenced object. When hollow references are enabled and the
+     * class of the id is known without a read, a hollow object is returned and
+     * it's fields are read when they're first accessed. Otherwise the class is
+     * resolved from the discriminator.
+     * 
+     * @param ec
+     * @param id
+     * @param typeName
+     *            The declared type of the reference
+     * @return
+     * @throws NucleusObjectNotFoundException
+     *             If no row exists for the id and the object isn't hollow
+     */
+    public Object findReference(ExecutionContext ec, Object id, String typeName) {
+        if (hollowReferences) {
+            String className = getKnownClassName(id,
+                    ec.getClassLoaderResolver(), ec);
 
-        Selector selector = Pelops.createSelector(getPoolName());
+            if (className != null) {
+                return ec.findObject(id, false, false, className);
+            }
+        }
 
-        // if we have a discriminator, fetch the discriminator column only
-        // and see if it's equal
-        // to the class provided by the op
+        return ec.findObject(id, false, true, typeName);
+    }
 
-        List<Column> columns = null;
+    /**
+     * Get the class of the id if it can be determined without a read. That's
+     * when the class has no subclasses, or the class of the id has already
+     * been read
+     * 
+     * @param id
+     * @param clr
+     * @param ec
+     * @return The class name or null if it must be read
+     */
+    private String getKnownClassName(Object id, ClassLoaderResolver clr,
+            ExecutionContext ec) {
 
-        try {
+        String pcClassName = super.getClassNameForObjectID(id, clr, ec);
 
-            columns = selector.getColumnsFromRow(getColumnFamily(metaData),
-                    key, getDescriminatorColumn(metaData), Consistency.get());
+        if (pcClassName == null) {
+            return null;
+        }
 
-        } catch (Exception e) {
-            throw new NucleusDataStoreException(e.getMessage(), e);
+        String className = classNames.get(id);
+
+        if (className != null) {
+            return className;
         }
 
-        // what do we do if no descriminator is found and one should be
-        // present?
-        if (columns == null || columns.size() != 1) {
+        String[] decendents = ec.getMetaDataManager().getSubclassesForClass(
+                pcClassName, true);
+
+        if (decendents == null || decendents.length == 0) {
+            return pcClassName;
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the concrete class of many identities at once. The discriminators of
+     * ids that aren't cached are read with multiget slices from the column
+     * family of their class
+     * 
+     * @param ids
+     * @param clr
+     * @param ec
+     * @return The class name of each id, in the same order. Null if no row
+     *         exists for the id
+     */
+    public String[] getClassNamesForObjectIDs(Object[] ids,
+            ClassLoaderResolver clr, ExecutionContext ec) {
 
-            // now check if we have subclasses from the given metaData, if we do
-            // recurse to a child class and search for the object
-            String[] decendents = ec.getMetaDataManager()
-                    .getSubclassesForClass(metaData.getFullClassName(), true);
+        String[] results = new String[ids.length];
 
-            // it has decendents, only recurse to them if their inheritance
-            // strategy is a new table
-            if (decendents == null || decendents.length == 0) {
-                return null;
+        // the positions that must be read, grouped by the class of the id
+        Map<AbstractClassMetaData, List<Integer>> reads = new LinkedHashMap<AbstractClassMetaData, List<Integer>>();
+
+        for (int i = 0; i < ids.length; i++) {
+            String pcClassName = super.getClassNameForObjectID(ids[i], clr, ec);
+
+            AbstractClassMetaData metaData = ec.getMetaDataManager()
+                    .getMetaDataForClass(pcClassName, clr);
+
+            if (getDescriminatorColumn(metaData) == null) {
+                results[i] = pcClassName;
+                continue;
+            }
+
+            results[i] = classNames.get(ids[i]);
+
+            if (results[i] != null) {
+                continue;
             }
 
-            AbstractClassMetaData decendentMetaData = null;
+            List<Integer> positions = reads.get(metaData);
 
-            for (String decendent : decendents) {
-                decendentMetaData = ec.getMetaDataManager()
-                        .getMetaDataForClass(decendent, clr);
+            if (positions == null) {
+                positions = new ArrayList<Integer>();
+                reads.put(metaData, positions);
+            }
 
-                InheritanceStrategy strategy = decendentMetaData
-                        .getInheritanceMetaData().getStrategy();
+            positions.add(i);
+        }
+
+        Selector selector = Pelops.createSelector(getPoolName());
 
-                // either the subclass has it's own table, or one if it's
-                // children may, recurse to find the object
-                if (InheritanceStrategy.NEW_TABLE.equals(strategy)
-                        || InheritanceStrategy.SUBCLASS_TABLE.equals(strategy)) {
-                    String result = findObject(key, decendentMetaData, clr, ec,
-                            id);
+        for (Map.Entry<AbstractClassMetaData, List<Integer>> read : reads
+                .entrySet()) {
 
-                    // we found a subclass with the descriminator stored, return
-                    // it
-                    if (result != null) {
-                        return result;
+            AbstractClassMetaData metaData = read.getKey();
+            String columnFamily = getColumnFamily(metaData);
+            List<Integer> positions = read.getValue();
+
+            for (int start = 0; start < positions.size(); start += multigetSize) {
+                List<Integer> chunk = positions.subList(start,
+                        Math.min(start + multigetSize, positions.size()));
+
+                List<Bytes> keys = new ArrayList<Bytes>(chunk.size());
+
+                for (int position : chunk) {
+                    keys.add(byteConverterContext.getRowKeyForId(ids[position]));
+                }
+
+                Map<Bytes, List<Column>> rows = Collections.emptyMap();
+
+                // this class isn't stored directly, only it's subclasses may
+                // be
+                if (columnFamily != null) {
+                    try {
+                        rows = selector.getColumnsFromRows(columnFamily, keys,
+                                getDescriminatorColumn(metaData),
+                                Consistency.get());
+                    } catch (Exception e) {
+                        throw new NucleusDataStoreException(e.getMessage(), e);
                     }
                 }
+
+                for (int i = 0; i < chunk.size(); i++) {
+                    Bytes key = keys.get(i);
+
+                    String className = readDiscriminator(key, metaData, ec,
+                            rows.get(key));
+
+                    if (className == null) {
+                        className = findInSubclasses(key, metaData, clr, ec);
+                    }
+
+                    if (className != null) {
+                        classNames.put(ids[chunk.get(i)], className);
+                    }
+
+                    results[chunk.get(i)] = className;
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Find the concrete class of the row by reading it's discriminator. The
+     * column family of the class is read first. If the row isn't there, the
+     * column families of every subclass stored in it's own column family are
+     * read at once
+     * 
+     * @param key
+     * @param metaData
+     * @param clr
+     * @param ec
+     * @return The class name or null if no row exists
+     */
+    private String findObject(Bytes key, AbstractClassMetaData metaData,
+            ClassLoaderResolver clr, ExecutionContext ec) {
+
+        String columnFamily = getColumnFamily(metaData);
+
+        // this class isn't stored directly, only it's subclasses may be
+        if (columnFamily != null) {
+            String className = readDiscriminator(key, metaData, ec,
+                    readDiscriminatorColumn(key, columnFamily, metaData));
+
+            if (className != null) {
+                return className;
             }
+        }
 
-            // nothing found in this class or it's children return null
+        return findInSubclasses(key, metaData, clr, ec);
+    }
+
+    /**
+     * Find the concrete class of a row that isn't in the column family of the
+     * class by reading the column families of every subclass at once
+     * 
+     * @param key
+     * @param metaData
+     * @param clr
+     * @param ec
+     * @return The class name or null if no row exists
+     */
+    private String findInSubclasses(Bytes key, AbstractClassMetaData metaData,
+            ClassLoaderResolver clr, ExecutionContext ec) {
+
+        String columnFamily = getColumnFamily(metaData);
+
+        // now check if we have subclasses from the given metaData. The
+        // decendents include every level below this class
+        String[] decendents = ec.getMetaDataManager().getSubclassesForClass(
+                metaData.getFullClassName(), true);
+
+        if (decendents == null || decendents.length == 0) {
             return null;
+        }
 
+        // only probe each subclass column family once
+        Set<String> columnFamilies = new HashSet<String>();
+
+        if (columnFamily != null) {
+            columnFamilies.add(columnFamily);
         }
 
-        String descriminatorValue = byteConverterContext.getString(Bytes.fromByteArray(columns.get(0).getValue()));
+        final List<AbstractClassMetaData> probes = new ArrayList<AbstractClassMetaData>();
+        List<Callable<List<Column>>> reads = new ArrayList<Callable<List<Column>>>();
 
-        String className = org.datanucleus.metadata.MetaDataUtils
-                .getClassNameFromDiscriminatorValue(descriminatorValue,
-                        metaData.getDiscriminatorMetaData(), ec);
+        for (String decendent : decendents) {
+            final AbstractClassMetaData decendentMetaData = ec
+                    .getMetaDataManager().getMetaDataForClass(decendent, clr);
 
-        // now recursively load the search for our class
+            final String decendentColumnFamily = getColumnFamily(decendentMetaData);
 
-        return className;
+            if (decendentColumnFamily == null
+                    || !columnFamilies.add(decendentColumnFamily)
+                    || getDescriminatorColumn(decendentMetaData) == null) {
+                continue;
+            }
+
+            final Bytes rowKey = key;
+
+            probes.add(decendentMetaData);
+            reads.add(new Callable<List<Column>>() {
+                @Override
+                public List<Column> call() throws Exception {
+                    return readDiscriminatorColumn(rowKey,
+                            decendentColumnFamily, decendentMetaData);
+                }
+            });
+        }
+
+        List<List<Column>> results = null;
+
+        try {
+            results = executor.invokeAll(reads);
+        } catch (NucleusException ne) {
+            throw ne;
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+
+        // the first subclass in metadata order with the discriminator stored
+        for (int i = 0; i < probes.size(); i++) {
+            String className = readDiscriminator(key, probes.get(i), ec,
+                    results.get(i));
+
+            if (className != null) {
+                return className;
+            }
+        }
+
+        // nothing found in this class or it's children return null
+        return null;
+    }
+
+    /**
+     * Read the discriminator column of the row
+     * 
+     * @param key
+     * @param columnFamily
+     * @param metaData
+     * @return
+     */
+    private List<Column> readDiscriminatorColumn(Bytes key,
+            String columnFamily, AbstractClassMetaData metaData) {
+        Selector selector = Pelops.createSelector(getPoolName());
+
+        try {
+
+            return selector.getColumnsFromRow(columnFamily, key,
+                    getDescriminatorColumn(metaData), Consistency.get());
+
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the class name from the discriminator column that was read
+     * 
+     * @param key
+     * @param metaData
+     * @param ec
+     * @param columns
+     * @return The class name or null if no discriminator was read
+     */
+    private String readDiscriminator(Bytes key, AbstractClassMetaData metaData,
+            ExecutionContext ec, List<Column> columns) {
+
+        if (columns == null || columns.size() != 1) {
+            return null;
+        }
+
+        String descriminatorValue = byteConverterContext.getString(Bytes
+                .fromByteArray(columns.get(0).getValue()));
+
+        return org.datanucleus.metadata.MetaDataUtils
+                .getClassNameFromDiscriminatorValue(descriminatorValue,
+                        metaData.getDiscriminatorMetaData(), ec);
     }
 }
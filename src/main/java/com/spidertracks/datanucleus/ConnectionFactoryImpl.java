@@ -26,6 +26,7 @@ import java.util.regex.Pattern;
 
 import org.apache.cassandra.thrift.CfDef;
 import org.apache.cassandra.thrift.KsDef;
+import org.apache.cassandra.thrift.TokenRange;
 import org.datanucleus.OMFContext;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.store.connection.AbstractConnectionFactory;
@@ -39,6 +40,7 @@ import org.scale7.cassandra.pelops.pool.CommonsBackedPool.Policy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.spidertracks.datanucleus.client.RingManager;
 import com.spidertracks.datanucleus.utils.ClusterUtils;
 
 /**
@@ -233,4 +235,15 @@ public class ConnectionFactoryImpl extends AbstractConnectionFactory
         return poolName;
     }
 
+    /**
+     * @return the token ranges of the keyspace
+     */
+    public List<TokenRange> describeRing() {
+        try {
+            return new RingManager(cluster).describeRing(keyspace);
+        } catch (Exception e) {
+            throw new NucleusDataStoreException("Unable to describe the ring", e);
+        }
+    }
+
 }
@@ -0,0 +1,227 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe least recently used cache bounded by entry count and an
+ * optional total weight, with an optional time to live. The cache is split
+ * into segments by key hash, each with an equal share of the bounds, so
+ * concurrent threads rarely wait on the same lock.
+ *
+ * @author Todd Nine
+ *
+ */
+public class LruCache<K, V> {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+
+    private final long ttl;
+
+    /**
+     * @param maxEntries
+     *            The maximum number of entries
+     * @param maxWeight
+     *            The maximum total weight of all entries. 0 for no limit
+     * @param ttl
+     *            The time an entry lives in milliseconds. 0 to live until
+     *            evicted
+     */
+    @SuppressWarnings("unchecked")
+    public LruCache(int maxEntries, long maxWeight, long ttl) {
+        this.ttl = ttl;
+
+        // small caches don't need to be split
+        int count = maxEntries < SEGMENTS * 16 ? 1 : SEGMENTS;
+
+        segments = new Segment[count];
+
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<K, V>(Math.max(1, maxEntries / count),
+                    maxWeight / count);
+        }
+    }
+
+    /**
+     * Get the value for the key
+     *
+     * @param key
+     * @return The value or null if it isn't present or has expired
+     */
+    public V get(K key) {
+        return segmentFor(key).get(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Put the value with a weight of 1
+     *
+     * @param key
+     * @param value
+     */
+    public void put(K key, V value) {
+        put(key, value, 1);
+    }
+
+    /**
+     * Put the value with the given weight. Least recently used entries are
+     * evicted until the bounds are met
+     *
+     * @param key
+     * @param value
+     * @param weight
+     */
+    public void put(K key, V value, long weight) {
+        long expires = ttl > 0 ? System.currentTimeMillis() + ttl
+                : Long.MAX_VALUE;
+
+        segmentFor(key).put(key, new Entry<V>(value, weight, expires));
+    }
+
+    /**
+     * Remove the key
+     *
+     * @param key
+     */
+    public void remove(K key) {
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Remove all entries
+     */
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return The number of entries, including any that have expired but not
+     *         yet been evicted
+     */
+    public int size() {
+        int size = 0;
+
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int hash = key.hashCode();
+
+        // spread the high bits so keys with similar hashes use all segments
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * A cached value
+     *
+     */
+    private static class Entry<V> {
+        private final V value;
+        private final long weight;
+        private final long expires;
+
+        public Entry(V value, long weight, long expires) {
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A single locked access ordered map
+     *
+     */
+    private static class Segment<K, V> {
+
+        private final int maxEntries;
+        private final long maxWeight;
+        private long weight;
+
+        private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(
+                16, 0.75f, true);
+
+        public Segment(int maxEntries, long maxWeight) {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+        }
+
+        public synchronized V get(K key, long now) {
+            Entry<V> entry = entries.get(key);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry.expires <= now) {
+                entries.remove(key);
+                weight -= entry.weight;
+                return null;
+            }
+
+            return entry.value;
+        }
+
+        public synchronized void put(K key, Entry<V> entry) {
+            Entry<V> previous = entries.put(key, entry);
+
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+
+            weight += entry.weight;
+
+            Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet()
+                    .iterator();
+
+            while (eldest.hasNext()
+                    && (entries.size() > maxEntries || (maxWeight > 0 && weight > maxWeight))) {
+                weight -= eldest.next().getValue().weight;
+                eldest.remove();
+            }
+        }
+
+        public synchronized void remove(K key) {
+            Entry<V> previous = entries.remove(key);
+
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * The default row cache. Evicts the least recently used rows once the maximum
+ * number of rows or estimated bytes is reached, and expires rows after a time
+ * to live.
+ *
+ * @author Todd Nine
+ *
+ */
+public class LruRowCache implements RowCache {
+
+    // estimated overhead of each cached column
+    private static final int COLUMN_OVERHEAD = 48;
+
+    private final LruCache<RowKey, List<Column>> rows;
+
+    /**
+     * Create a cache of 10000 rows of at most 16 MB with no time to live
+     */
+    public LruRowCache() {
+        this(10000, 16 * 1024 * 1024, 0);
+    }
+
+    /**
+     * @param maxRows
+     *            The maximum number of rows
+     * @param maxBytes
+     *            The maximum estimated bytes of all rows. 0 for no limit
+     * @param ttl
+     *            The time a row is cached in milliseconds. 0 to cache until
+     *            evicted
+     */
+    public LruRowCache(int maxRows, long maxBytes, long ttl) {
+        rows = new LruCache<RowKey, List<Column>>(maxRows, maxBytes, ttl);
+    }
+
+    @Override
+    public List<Column> get(String columnFamily, Bytes rowKey) {
+        return rows.get(new RowKey(columnFamily, rowKey));
+    }
+
+    @Override
+    public void put(String columnFamily, Bytes rowKey, List<Column> columns) {
+        long size = rowKey.length();
+
+        for (Column column : columns) {
+            size += COLUMN_OVERHEAD + column.bufferForName().remaining();
+
+            if (column.isSetValue()) {
+                size += column.bufferForValue().remaining();
+            }
+        }
+
+        rows.put(new RowKey(columnFamily, rowKey),
+                Collections.unmodifiableList(new ArrayList<Column>(columns)),
+                size);
+    }
+
+    @Override
+    public void invalidate(String columnFamily, Bytes rowKey) {
+        rows.remove(new RowKey(columnFamily, rowKey));
+    }
+
+    @Override
+    public void clear() {
+        rows.clear();
+    }
+
+}
@@ -0,0 +1,115 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import java.nio.ByteBuffer;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.utils.MetaDataUtils;
+
+/**
+ * Remembers rows that were recently read and found not to exist. Only a 64 bit
+ * fingerprint of the column family and row key is kept, so a large number of
+ * absent rows use little memory. Unlike a bloom filter the chance of a present
+ * row being reported as missing is negligible, a false positive would mean
+ * an object that exists can't be loaded.
+ *
+ * @author Todd Nine
+ *
+ */
+public class MissingRowCache {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final LruCache<Long, Boolean> missing;
+
+    /**
+     * @param maxRows
+     *            The maximum number of missing rows to remember
+     * @param ttl
+     *            The time in milliseconds a row is remembered as missing
+     */
+    public MissingRowCache(int maxRows, long ttl) {
+        missing = new LruCache<Long, Boolean>(maxRows, 0, ttl);
+    }
+
+    /**
+     * @param columnFamily
+     * @param rowKey
+     * @return True if the row was recently found not to exist
+     */
+    public boolean isMissing(String columnFamily, Bytes rowKey) {
+        return missing.get(fingerprint(columnFamily, rowKey)) != null;
+    }
+
+    /**
+     * Remember the row does not exist
+     *
+     * @param columnFamily
+     * @param rowKey
+     */
+    public void setMissing(String columnFamily, Bytes rowKey) {
+        missing.put(fingerprint(columnFamily, rowKey), Boolean.TRUE);
+    }
+
+    /**
+     * Forget the row, it is being written
+     *
+     * @param columnFamily
+     * @param rowKey
+     */
+    public void invalidate(String columnFamily, Bytes rowKey) {
+        missing.remove(fingerprint(columnFamily, rowKey));
+    }
+
+    /**
+     * Forget all rows
+     */
+    public void clear() {
+        missing.clear();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the column family, a separator and the row key
+     *
+     * @param columnFamily
+     * @param rowKey
+     * @return
+     */
+    static long fingerprint(String columnFamily, Bytes rowKey) {
+        long hash = FNV_OFFSET;
+
+        for (byte b : columnFamily.getBytes(MetaDataUtils.UTF8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        // separator so cf "ab" key "c" differs from cf "a" key "bc"
+        hash *= FNV_PRIME;
+
+        ByteBuffer key = rowKey.getBytes();
+
+        for (int i = key.position(); i < key.limit(); i++) {
+            hash ^= key.get(i) & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        return hash;
+    }
+}
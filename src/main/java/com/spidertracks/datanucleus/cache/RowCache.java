@@ -0,0 +1,65 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Caches the columns of rows belonging to classes with the cassandra.cache
+ * extension. Implementations must be thread safe and have a public no argument
+ * constructor.
+ *
+ * @author Todd Nine
+ *
+ */
+public interface RowCache {
+
+    /**
+     * Get the cached columns of a row
+     *
+     * @param columnFamily
+     * @param rowKey
+     * @return The columns or null if the row isn't cached
+     */
+    public List<Column> get(String columnFamily, Bytes rowKey);
+
+    /**
+     * Cache the columns of a row
+     *
+     * @param columnFamily
+     * @param rowKey
+     * @param columns
+     */
+    public void put(String columnFamily, Bytes rowKey, List<Column> columns);
+
+    /**
+     * Remove the row from the cache. Called whenever the plugin writes or
+     * deletes the row
+     *
+     * @param columnFamily
+     * @param rowKey
+     */
+    public void invalidate(String columnFamily, Bytes rowKey);
+
+    /**
+     * Remove all rows
+     */
+    public void clear();
+}
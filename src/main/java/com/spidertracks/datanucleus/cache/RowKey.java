@@ -0,0 +1,72 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * A row key within a column family
+ *
+ * @author Todd Nine
+ *
+ */
+public class RowKey {
+
+    private final String columnFamily;
+    private final Bytes key;
+
+    public RowKey(String columnFamily, Bytes key) {
+        this.columnFamily = columnFamily;
+        this.key = key;
+    }
+
+    /**
+     * @return the columnFamily
+     */
+    public String getColumnFamily() {
+        return columnFamily;
+    }
+
+    /**
+     * @return the key
+     */
+    public Bytes getKey() {
+        return key;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * columnFamily.hashCode() + key.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof RowKey)) {
+            return false;
+        }
+
+        RowKey other = (RowKey) obj;
+
+        return columnFamily.equals(other.columnFamily)
+                && key.equals(other.key);
+    }
+
+}
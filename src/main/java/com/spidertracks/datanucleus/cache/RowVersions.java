@@ -0,0 +1,93 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * A version for every row, advanced each time the row is invalidated. A reader
+ * takes the version before it reads a row and only keeps what it cached if
+ * the version hasn't changed, otherwise a write that invalidated the row while
+ * it was being read would be undone by the stale copy.
+ *
+ * Rows share a fixed number of versions by the hash of their key, so a write to
+ * one row can only cause a read of another to be dropped from the cache.
+ *
+ * @author Todd Nine
+ *
+ */
+public class RowVersions {
+
+    private final AtomicLongArray versions;
+
+    private final int mask;
+
+    /**
+     * @param size
+     *            The number of versions shared by all rows. Rounded up to a
+     *            power of two
+     */
+    public RowVersions(int size) {
+        int capacity = 1;
+
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+
+        versions = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * @param columnFamily
+     * @param rowKey
+     * @return The current version of the row
+     */
+    public long get(String columnFamily, Bytes rowKey) {
+        return versions.get(indexFor(columnFamily, rowKey));
+    }
+
+    /**
+     * Advance the version of the row. Called before the row is removed from
+     * the caches
+     *
+     * @param columnFamily
+     * @param rowKey
+     */
+    public void advance(String columnFamily, Bytes rowKey) {
+        versions.incrementAndGet(indexFor(columnFamily, rowKey));
+    }
+
+    /**
+     * Spread the hash of the row key so the low bits used for the index
+     * depend on all of it
+     *
+     * @param columnFamily
+     * @param rowKey
+     * @return
+     */
+    private int indexFor(String columnFamily, Bytes rowKey) {
+        int hash = new RowKey(columnFamily, rowKey).hashCode();
+
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return hash & mask;
+    }
+}
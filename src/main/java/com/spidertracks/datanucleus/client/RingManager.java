@@ -0,0 +1,56 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.client;
+
+import java.util.List;
+
+import org.apache.cassandra.thrift.Cassandra.Client;
+import org.apache.cassandra.thrift.TokenRange;
+import org.scale7.cassandra.pelops.Cluster;
+import org.scale7.cassandra.pelops.ManagerOperand;
+
+/**
+ * Reads the token ranges of the ring, so a column family can be scanned a
+ * range at a time.
+ *
+ * @author Todd Nine
+ *
+ */
+public class RingManager extends ManagerOperand {
+
+    public RingManager(Cluster cluster) {
+        super(cluster);
+    }
+
+    /**
+     * Get the token ranges of the keyspace
+     *
+     * @param keyspace
+     * @return The ranges, which cover the whole ring between them
+     * @throws Exception
+     */
+    public List<TokenRange> describeRing(final String keyspace)
+            throws Exception {
+        return tryOperation(new IManagerOperation<List<TokenRange>>() {
+
+            @Override
+            public List<TokenRange> execute(Client conn) throws Exception {
+                return conn.describe_ring(keyspace);
+            }
+        });
+    }
+}
@@ -0,0 +1,42 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+/**
+ * A relation that tracks the changes made to it, so only they are written.
+ * The changes are kept until the batch writing them has been sent, as reads
+ * of the relation still need them until then
+ *
+ * @author Todd Nine
+ *
+ */
+public interface ChangeTracker {
+
+    /**
+     * @return A count that changes every time the relation is modified
+     */
+    public int getChangeCount();
+
+    /**
+     * Forget all changes, unless the relation was modified after the count
+     * was taken. Those changes haven't been written yet
+     *
+     * @param changeCount
+     *            The change count when the changes were written
+     */
+    public void clearChanges(int changeCount);
+}
@@ -18,7 +18,9 @@ Contributors :
 package com.spidertracks.datanucleus.collection;
 
 import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.SlicePredicate;
@@ -53,6 +55,16 @@ public class ExternalEntity {
 
     protected Selector selector;
 
+    /**
+     * The first page of columns if it has already been read
+     */
+    private List<Column> firstPage;
+
+    /**
+     * True if the first page holds every column
+     */
+    private boolean complete;
+
     /**
      * 
      * @param context
@@ -73,6 +85,377 @@ public class ExternalEntity {
         this.rowKey = rowKey;
     }
 
-    
+    /**
+     * Get the full column name of the entry with the given key. If the key is
+     * null, the name sorts before every entry of this owner column
+     * 
+     * @param key
+     * @return
+     */
+    protected ByteBuffer getColumnStart(Bytes key) {
+        int length = ownerColumn.length() + 1;
+
+        if (key != null) {
+            length += key.length();
+        }
+
+        ByteBuffer startBuff = ByteBuffer.allocate(length);
+        startBuff.mark();
+        startBuff.put(ownerColumn.toByteArray());
+        startBuff.put(DELIM_MIN);
+
+        if (key != null) {
+            startBuff.put(key.toByteArray());
+        }
+
+        startBuff.reset();
+
+        return startBuff;
+    }
+
+    /**
+     * Get the column name that sorts after every entry of this owner column
+     * 
+     * @return
+     */
+    protected ByteBuffer getColumnFinish() {
+        ByteBuffer endBuff = ByteBuffer.allocate(ownerColumn.length() + 1);
+        endBuff.mark();
+        endBuff.put(ownerColumn.toByteArray());
+        endBuff.put(DELIM_MAX);
+        endBuff.reset();
+
+        return endBuff;
+    }
+
+    /**
+     * Use columns that have already been read as the first page, rather than
+     * reading them again. The page must have been read with
+     * {@link #getPagePredicate(int)}
+     * 
+     * @param firstPage
+     */
+    public void setFirstPage(List<Column> firstPage) {
+        this.firstPage = firstPage;
+        this.complete = false;
+    }
+
+    /**
+     * Use columns that have already been read as every column of this owner
+     * column, so nothing is read
+     * 
+     * @param columns
+     */
+    public void setColumns(List<Column> columns) {
+        this.firstPage = columns;
+        this.complete = columns != null;
+    }
+
+    /**
+     * Get a predicate that reads the first page of this owner column. The
+     * predicate is the same for every row, so it can be used to read the first
+     * page of many rows with a multiget
+     * 
+     * @param pageSize
+     * @return
+     */
+    public SlicePredicate getPagePredicate(int pageSize) {
+        SliceRange range = new SliceRange();
+        range.setStart(getColumnStart(null));
+        range.setFinish(getColumnFinish());
+        range.setCount(getPageCount(pageSize));
+
+        SlicePredicate predicate = new SlicePredicate();
+
+        predicate.setSlice_range(range);
+
+        return predicate;
+    }
+
+    /**
+     * The number of columns read with each page. We must read at least one new
+     * column per page
+     * 
+     * @param pageSize
+     * @return
+     */
+    private static int getPageCount(int pageSize) {
+        return Math.max(2, pageSize);
+    }
+
+    /**
+     * Read up to count columns of this owner column, starting at the given
+     * full column name (inclusive)
+     * 
+     * @param count
+     * @param start
+     * @return
+     */
+    protected List<Column> fetchColumns(int count, ByteBuffer start) {
+        return fetchColumns(count, start, getColumnFinish(), false);
+    }
+
+    /**
+     * Read up to count columns between the given full column names
+     * (inclusive). When reversed the start sorts after the finish, and the
+     * columns are returned in descending order
+     * 
+     * @param count
+     * @param start
+     * @param finish
+     * @param reversed
+     * @return
+     */
+    protected List<Column> fetchColumns(int count, ByteBuffer start,
+            ByteBuffer finish, boolean reversed) {
+        SliceRange range = new SliceRange();
+        range.setStart(start);
+        range.setFinish(finish);
+        range.setReversed(reversed);
+        range.setCount(count);
+
+        SlicePredicate predicate = new SlicePredicate();
+
+        predicate.setSlice_range(range);
+
+        return selector.getColumnsFromRow(ownerColumnFamily, rowKey,
+                predicate, Consistency.get());
+    }
+
+    /**
+     * Count the columns of this owner column without reading them
+     * 
+     * @return
+     */
+    public int countColumns() {
+        return countColumns(getColumnStart(null), getColumnFinish());
+    }
+
+    /**
+     * Count the columns between the given full column names (inclusive)
+     * without reading them
+     * 
+     * @param start
+     * @param finish
+     * @return
+     */
+    protected int countColumns(ByteBuffer start, ByteBuffer finish) {
+        SliceRange range = new SliceRange();
+        range.setStart(start);
+        range.setFinish(finish);
+        range.setCount(Integer.MAX_VALUE);
+
+        SlicePredicate predicate = new SlicePredicate();
+
+        predicate.setSlice_range(range);
+
+        return selector.getColumnCount(ownerColumnFamily, rowKey, predicate,
+                Consistency.get());
+    }
+
+    /**
+     * @return True if this owner column has at least one column
+     */
+    public boolean hasColumns() {
+        return fetchColumns(1, getColumnStart(null)).size() > 0;
+    }
+
+    /**
+     * Returns true if the entry with the given key is stored. Only the column
+     * of the entry is read
+     * 
+     * @param key
+     * @return
+     */
+    public boolean hasColumn(Bytes key) {
+        return fetchColumn(key) != null;
+    }
+
+    /**
+     * Read the column of the entry with the given key
+     * 
+     * @param key
+     * @return The column or null if the entry isn't stored
+     */
+    protected Column fetchColumn(Bytes key) {
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.addToColumn_names(getColumnStart(key));
+
+        List<Column> columns = selector.getColumnsFromRow(ownerColumnFamily,
+                rowKey, predicate, Consistency.get());
+
+        if (columns.size() == 0) {
+            return null;
+        }
+
+        return columns.get(0);
+    }
+
+    /**
+     * Get the entry key from a column name by removing the owner column and
+     * delimiter. The column itself is not modified
+     * 
+     * @param column
+     * @return
+     */
+    protected ByteBuffer getEntryKey(Column column) {
+        ByteBuffer buffer = column.bufferForName().duplicate();
+        buffer.position(buffer.position() + ownerColumn.length() + 1);
+        return buffer;
+    }
+
+    /**
+     * Iterates over every column of this owner column. Columns are read a page
+     * at a time, each page starting from the last column of the previous page
+     * 
+     * @author Todd Nine
+     * 
+     */
+    protected class ColumnPager implements Iterator<Column> {
+
+        private final int pageSize;
+
+        private final ByteBuffer start;
+
+        private final ByteBuffer finish;
+
+        private final boolean reversed;
+
+        private final ByteBuffer exclude;
+
+        private List<Column> page;
+
+        private int index;
+
+        private boolean last;
+
+        /**
+         * Iterate over every column of this owner column
+         * 
+         * @param pageSize
+         */
+        public ColumnPager(int pageSize) {
+            this(pageSize, null, null, false, null);
+        }
+
+        /**
+         * Iterate over the columns between the given full column names
+         * 
+         * @param pageSize
+         * @param start
+         *            The first column name (inclusive), null for the first
+         *            column of this owner column
+         * @param finish
+         *            The last column name (inclusive), null for the last
+         *            column of this owner column
+         * @param reversed
+         *            True to iterate in descending order. The start must sort
+         *            after the finish
+         * @param exclude
+         *            A column name to skip, usually an exclusive finish. May be
+         *            null
+         */
+        public ColumnPager(int pageSize, ByteBuffer start, ByteBuffer finish,
+                boolean reversed, ByteBuffer exclude) {
+            this.pageSize = getPageCount(pageSize);
+            this.reversed = reversed;
+            this.exclude = exclude;
+
+            if (start == null) {
+                start = reversed ? getColumnFinish() : getColumnStart(null);
+            }
+
+            if (finish == null) {
+                finish = reversed ? getColumnStart(null) : getColumnFinish();
+            }
+
+            this.start = start;
+            this.finish = finish;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (page == null) {
+                // pages that have already been read are for the whole owner
+                // column
+                if (!reversed && exclude == null
+                        && isWholeRange(start, finish)) {
+                    page = firstPage;
+                    last = complete;
+
+                    // only used once
+                    firstPage = null;
+                    complete = false;
+                }
+
+                if (page == null) {
+                    page = fetchColumns(pageSize, start, finish, reversed);
+                    last = false;
+                }
+
+                last = last || page.size() < pageSize;
+                index = 0;
+            }
+
+            while (true) {
+                skipExcluded();
+
+                if (index < page.size()) {
+                    return true;
+                }
+
+                if (last) {
+                    return false;
+                }
+
+                // the start is inclusive, skip the column we've already
+                // returned
+                ByteBuffer next = page.get(page.size() - 1).bufferForName();
+
+                page = fetchColumns(pageSize, next, finish, reversed);
+                last = page.size() < pageSize;
+                index = 0;
+
+                if (page.size() > 0
+                        && page.get(0).bufferForName().equals(next)) {
+                    index = 1;
+                }
+            }
+        }
+
+        /**
+         * Skip the excluded column if it's next
+         */
+        private void skipExcluded() {
+            if (exclude != null && index < page.size()
+                    && page.get(index).bufferForName().equals(exclude)) {
+                index++;
+            }
+        }
+
+        /**
+         * @param start
+         * @param finish
+         * @return True if the range is every column of this owner column
+         */
+        private boolean isWholeRange(ByteBuffer start, ByteBuffer finish) {
+            return start.equals(getColumnStart(null))
+                    && finish.equals(getColumnFinish());
+        }
+
+        @Override
+        public Column next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No elements left");
+            }
+
+            return page.get(index++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove isn't supported");
+        }
+    }
 
 }
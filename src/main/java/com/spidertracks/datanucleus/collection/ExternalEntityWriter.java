@@ -18,19 +18,17 @@ Contributors :
 package com.spidertracks.datanucleus.collection;
 
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.SlicePredicate;
-import org.apache.cassandra.thrift.SliceRange;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
-import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
 
 /**
  * Class that allows us to perform basic I/O ops on external entities
@@ -44,6 +42,11 @@ public class ExternalEntityWriter extends ExternalEntity {
 
     private Set<Bytes> savedColumns;
 
+    /**
+     * The stored column names and values, null until read
+     */
+    private Map<Bytes, Bytes> storedColumns;
+
     public ExternalEntityWriter(Selector selector,
             ByteConverterContext context, String ownerColumnFamily,
             Bytes rowKey, Bytes ownerColumn) {
@@ -51,103 +54,87 @@ public class ExternalEntityWriter extends ExternalEntity {
         savedColumns = new HashSet<Bytes>();
     }
 
+    /**
+     * Read the stored columns once, so unchanged columns aren't written again
+     * and removeRemaining doesn't need to read them
+     */
+    public void readStoredColumns() {
+        storedColumns = new HashMap<Bytes, Bytes>();
+
+        ColumnPager columns = new ColumnPager(ITERATION_SIZE);
+
+        while (columns.hasNext()) {
+            Column col = columns.next();
+
+            storedColumns.put(Bytes.fromByteBuffer(col.bufferForName()),
+                    Bytes.fromByteBuffer(col.bufferForValue()));
+        }
+    }
+
     /**
      * Add the stored column to our internal queue
      * 
      * @param column
+     * @param value
+     * @return True if the column needs to be written, false if it's already
+     *         stored with the same value
      */
-    protected void addStoredColumn(ByteBuffer column) {
-        savedColumns.add(Bytes.fromByteBuffer(column));
+    protected boolean addStoredColumn(ByteBuffer column, Bytes value) {
+        Bytes name = Bytes.fromByteBuffer(column);
+
+        savedColumns.add(name);
+
+        if (storedColumns == null) {
+            return true;
+        }
+
+        return !value.equals(storedColumns.get(name));
     }
 
     /**
      * Remove all columns from the collection/map. Useful for if a collection is
      * set to null
      */
-    public void removeAllColumns(Mutator mutator) {
-
-        byte[] columnBytes = ownerColumn.toByteArray();
-
-        SliceRange range = new SliceRange();
-        range.setCount(ITERATION_SIZE);
-        range.setFinish(createBuffer(columnBytes, DELIM_MAX));
+    public void removeAllColumns(BatchMutator mutator) {
 
-        SlicePredicate predicate = new SlicePredicate();
-        predicate.setSlice_range(range);
+        ColumnPager columns = new ColumnPager(ITERATION_SIZE);
 
-        List<Column> results = null;
-
-        do {
-
-            range.setStart(createBuffer(columnBytes, DELIM_MIN));
-
-            results = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
-                    predicate, Consistency.get());
-
-            // remove all columns that are presisted
-            for (Column col : results) {
-                mutator.deleteColumn(ownerColumnFamily, rowKey,
-                        Bytes.fromByteArray(col.getName()));
-            }
-
-            // advance our start key if required
-            if (results.size() == ITERATION_SIZE) {
-                columnBytes = results.get(ITERATION_SIZE - 1).getName();
-            }
-
-        } while (results != null && results.size() == ITERATION_SIZE);
+        // remove all columns that are presisted
+        while (columns.hasNext()) {
+            mutator.deleteColumn(ownerColumnFamily, rowKey,
+                    Bytes.fromByteArray(columns.next().getName()));
+        }
 
     }
 
     /**
      * Removes all columns that have not been marked as persisted.
      */
-    public void removeRemaining(Mutator mutator) {
-        byte[] columnBytes = ownerColumn.toByteArray();
-
-        SliceRange range = new SliceRange();
-        range.setCount(ITERATION_SIZE);
-        range.setFinish(createBuffer(columnBytes, DELIM_MAX));
-
-        SlicePredicate predicate = new SlicePredicate();
-        predicate.setSlice_range(range);
-
-        List<Column> results = null;
+    public void removeRemaining(BatchMutator mutator) {
 
-        do {
-
-            range.setStart(createBuffer(columnBytes, DELIM_MIN));
-
-            results = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
-                    predicate, Consistency.get());
-
-            // remove all columns that are presisted
-            for (Column col : results) {
-
-                //not in our already saved columns, remove it
-                if (!savedColumns.contains(Bytes.fromByteBuffer(col.name))) {
-                    mutator.deleteColumn(ownerColumnFamily, rowKey,
-                            Bytes.fromByteArray(col.getName()));
+        // we've already read them
+        if (storedColumns != null) {
+            for (Bytes name : storedColumns.keySet()) {
+                if (!savedColumns.contains(name)) {
+                    mutator.deleteColumn(ownerColumnFamily, rowKey, name);
                 }
             }
 
-            // advance our start key if required
-            if (results.size() == ITERATION_SIZE) {
-                columnBytes = results.get(ITERATION_SIZE - 1).getName();
-            }
+            return;
+        }
 
-        } while (results.size() == ITERATION_SIZE);
+        ColumnPager columns = new ColumnPager(ITERATION_SIZE);
 
-    }
+        while (columns.hasNext()) {
+            Column col = columns.next();
 
-    protected ByteBuffer createBuffer(byte[] columnBytes, byte delimByte) {
-        ByteBuffer buffer = ByteBuffer.allocate(columnBytes.length + 1);
-        buffer.mark();
-        buffer.put(columnBytes);
-        buffer.put(delimByte);
-        buffer.reset();
+            //not in our already saved columns, remove it
+            if (!savedColumns.contains(Bytes.fromByteBuffer(col.bufferForName()))) {
+                mutator.deleteColumn(ownerColumnFamily, rowKey,
+                        Bytes.fromByteArray(col.getName()));
+            }
+        }
 
-        return buffer;
     }
 
 }
@@ -0,0 +1,706 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.datanucleus.FetchPlanState;
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.ObjectProvider;
+import org.datanucleus.store.types.sco.SCO;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+
+/**
+ * A collection relation that is read from Cassandra on demand. Element ids
+ * are read a page at a time while iterating, and each element is resolved as
+ * it is returned. size(), isEmpty() and contains() are answered without
+ * reading every element. size() counts the columns, including those of
+ * deleted elements that iteration skips.
+ *
+ * Modifications mark the owning field as dirty so the relation is written with
+ * the owner. Added and removed elements are tracked, so only the changed
+ * columns are written. They are tracked until the batch writing them is sent,
+ * so reads before then see them even when writes are buffered. Adding or removing an element does not read the other
+ * elements.
+ *
+ * Detaching copies the elements into a plain collection. Once the owner is
+ * unset, the elements are loaded and the collection is no longer written.
+ *
+ * @author Todd Nine
+ *
+ */
+public class LazyCollection extends AbstractCollection<Object> implements
+        SCO, ChangeTracker {
+
+    /**
+     * The object that owns the relation, null once unset
+     */
+    protected ObjectProvider owner;
+
+    protected final int fieldNumber;
+
+    private final String fieldName;
+
+    protected final ReadCollection reader;
+
+    private final String typeName;
+
+    /**
+     * All elements once loaded, null until then
+     */
+    protected Collection<Object> delegate;
+
+    /**
+     * Elements added since the relation was last written
+     */
+    private final List<Object> added = new ArrayList<Object>();
+
+    /**
+     * Elements removed since the relation was last written
+     */
+    private final List<Object> removed = new ArrayList<Object>();
+
+    /**
+     * True if every stored element must be removed when written
+     */
+    private boolean cleared;
+
+    /**
+     * Incremented on every change
+     */
+    private int changeCount;
+
+    /**
+     *
+     * @param owner
+     *            The object that owns the relation
+     * @param fieldNumber
+     *            The absolute field number of the relation
+     * @param reader
+     *            The reader of the relation columns
+     * @param typeName
+     *            The type name used to resolve each element
+     */
+    public LazyCollection(ObjectProvider owner, int fieldNumber,
+            ReadCollection reader, String typeName) {
+        this.owner = owner;
+        this.fieldNumber = fieldNumber;
+        this.reader = reader;
+        this.typeName = typeName;
+        this.fieldName = owner.getClassMetaData()
+                .getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber)
+                .getName();
+    }
+
+    /**
+     * @return True if every element has been read
+     */
+    public boolean isLoaded() {
+        return delegate != null;
+    }
+
+    /**
+     * @param op
+     * @param fieldNumber
+     * @return True if this is the relation of the given field of the object.
+     *         Only then do the tracked changes apply to it's row
+     */
+    public boolean isOwnedBy(ObjectProvider op, int fieldNumber) {
+        return owner == op && this.fieldNumber == fieldNumber;
+    }
+
+    /**
+     * @return An empty collection to hold the loaded elements
+     */
+    protected Collection<Object> newDelegate() {
+        return new ArrayList<Object>();
+    }
+
+    /**
+     * @return An empty collection to hold a copy of the elements that isn't
+     *         backed by Cassandra
+     */
+    protected Collection<Object> newDetached() {
+        return new ArrayList<Object>();
+    }
+
+    /**
+     * Read every element if they haven't been read yet
+     *
+     * @return The loaded elements
+     */
+    protected Collection<Object> load() {
+        if (delegate != null) {
+            return delegate;
+        }
+
+        Collection<Object> loaded = newDelegate();
+
+        // includes our pending changes. Sets drop the duplicates themselves
+        Iterator<Object> elements = new LazyIterator();
+
+        while (elements.hasNext()) {
+            loaded.add(elements.next());
+        }
+
+        delegate = loaded;
+
+        return delegate;
+    }
+
+    /**
+     * Mark the owning field as dirty
+     */
+    protected void makeDirty() {
+        if (owner != null) {
+            owner.makeDirty(fieldNumber);
+        }
+    }
+
+    /**
+     * Record an element was added
+     *
+     * @param element
+     */
+    protected void recordAdd(Object element) {
+        changeCount++;
+
+        if (!removed.remove(element)) {
+            added.add(element);
+        }
+    }
+
+    /**
+     * Record an element was removed
+     *
+     * @param element
+     */
+    protected void recordRemove(Object element) {
+        changeCount++;
+
+        if (!added.remove(element)) {
+            removed.add(element);
+        }
+    }
+
+    /**
+     * Returns true if the element is stored in the relation. Only reads the
+     * column of the element
+     *
+     * @param element
+     * @return
+     */
+    protected boolean isStored(Object element) {
+        ExecutionContext context = owner.getExecutionContext();
+
+        // can't be stored if it isn't persistent
+        if (element == null || !context.getApiAdapter().isPersistable(element)) {
+            return false;
+        }
+
+        Object id = context.getApiAdapter().getIdForObject(element);
+
+        if (id == null) {
+            return false;
+        }
+
+        return reader.containsId(id);
+    }
+
+    /**
+     * @return The elements added since the relation was last written
+     */
+    public List<Object> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return The elements removed since the relation was last written
+     */
+    public List<Object> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return True if the collection was cleared since it was last written.
+     *         Every stored column must be removed
+     */
+    public boolean isCleared() {
+        return cleared;
+    }
+
+    /**
+     * @return True if elements have been added or removed since the relation
+     *         was last written
+     */
+    protected boolean hasChanges() {
+        return cleared || !added.isEmpty() || !removed.isEmpty();
+    }
+
+    /**
+     * Forget all changes
+     */
+    public void clearChanges() {
+        added.clear();
+        removed.clear();
+        cleared = false;
+    }
+
+    @Override
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * Called once the batch writing the changes has been sent
+     */
+    @Override
+    public void clearChanges(int changeCount) {
+        if (this.changeCount == changeCount) {
+            clearChanges();
+        }
+    }
+
+    /**
+     * Resolve the element with the given id
+     *
+     * @param id
+     * @return The element, or null if it no longer exists
+     */
+    protected Object resolve(Object id) {
+        ExecutionContext context = owner.getExecutionContext();
+
+        try {
+            return ((CassandraStoreManager) context.getStoreManager())
+                    .findReference(context, id, typeName);
+        } catch (NucleusObjectNotFoundException nonfe) {
+            // the element was deleted, it's column is skipped
+            return null;
+        }
+    }
+
+    /**
+     * Resolve each id as it's returned. Elements that no longer exist are
+     * skipped. The iterator is read only
+     *
+     * @param ids
+     * @return
+     */
+    protected Iterator<Object> resolving(final Iterator<Object> ids) {
+        return new Iterator<Object>() {
+
+            private Object next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && ids.hasNext()) {
+                    next = resolve(ids.next());
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No elements left");
+                }
+
+                Object result = next;
+                next = null;
+
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException(
+                        "remove isn't supported");
+            }
+        };
+    }
+
+    /**
+     * Counts the columns with get_count when not loaded, without reading the
+     * elements. The column of an element deleted without being removed from
+     * the relation is still counted, so until the collection is loaded the
+     * size can be larger than the number of elements iterated
+     */
+    @Override
+    public int size() {
+        if (delegate != null) {
+            return delegate.size();
+        }
+
+        return reader.countColumns() + added.size() - removed.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        if (delegate != null) {
+            return delegate.isEmpty();
+        }
+
+        if (!added.isEmpty()) {
+            return false;
+        }
+
+        if (!reader.hasColumns()) {
+            return true;
+        }
+
+        // resolves elements until one still exists
+        return !new LazyIterator().hasNext();
+    }
+
+    /**
+     * Reads only the column of the element when not loaded
+     */
+    @Override
+    public boolean contains(Object o) {
+        if (delegate != null) {
+            return delegate.contains(o);
+        }
+
+        if (added.contains(o)) {
+            return true;
+        }
+
+        if (removed.contains(o)) {
+            return false;
+        }
+
+        return isStored(o);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        if (delegate != null) {
+            return new DirtyIterator(delegate.iterator());
+        }
+
+        return new LazyIterator();
+    }
+
+    @Override
+    public boolean add(Object e) {
+        if (delegate != null) {
+            if (!delegate.add(e)) {
+                return false;
+            }
+        } else if (isDuplicate(e)) {
+            return false;
+        }
+
+        recordAdd(e);
+        makeDirty();
+
+        return true;
+    }
+
+    /**
+     * Returns true if the element can't be added to the unloaded collection
+     * because it is already present. Collections accept duplicates
+     *
+     * @param e
+     * @return
+     */
+    protected boolean isDuplicate(Object e) {
+        return false;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (delegate != null) {
+            if (!delegate.remove(o)) {
+                return false;
+            }
+        } else if (!added.contains(o)
+                && (removed.contains(o) || !isStored(o))) {
+            return false;
+        }
+
+        recordRemove(o);
+        makeDirty();
+
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        boolean changed = false;
+
+        for (Iterator<Object> it = new DirtyIterator(load().iterator()); it
+                .hasNext();) {
+            if (c.contains(it.next())) {
+                it.remove();
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        boolean changed = false;
+
+        for (Iterator<Object> it = new DirtyIterator(load().iterator()); it
+                .hasNext();) {
+            if (!c.contains(it.next())) {
+                it.remove();
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    @Override
+    public void clear() {
+        // no need to read what we're about to remove
+        if (delegate != null) {
+            delegate.clear();
+        } else {
+            delegate = newDelegate();
+        }
+
+        added.clear();
+        removed.clear();
+        cleared = true;
+        changeCount++;
+        makeDirty();
+    }
+
+    /**
+     * Nothing is read until the elements are used
+     */
+    @Override
+    public void initialise() {
+    }
+
+    /**
+     * Replace the elements with those of the given collection
+     */
+    @Override
+    public void initialise(Object value, boolean forInsert, boolean forUpdate) {
+        clear();
+
+        if (value != null) {
+            addAll((Collection<?>) value);
+        }
+    }
+
+    @Override
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    @Override
+    public Object getOwner() {
+        return owner == null ? null : owner.getObject();
+    }
+
+    /**
+     * Load the elements while the owner can still read them, then stop
+     * tracking changes for it
+     */
+    @Override
+    public void unsetOwner() {
+        if (owner == null) {
+            return;
+        }
+
+        load();
+        clearChanges();
+        owner = null;
+    }
+
+    /**
+     * @return The loaded elements
+     */
+    @Override
+    public Object getValue() {
+        return load();
+    }
+
+    /**
+     * Copy the elements into a plain collection, detaching each one
+     */
+    @Override
+    public Object detachCopy(FetchPlanState state) {
+        ExecutionContext context = owner.getExecutionContext();
+
+        ApiAdapter adapter = context.getApiAdapter();
+
+        Collection<Object> detached = newDetached();
+
+        for (Object element : load()) {
+            if (element != null && adapter.isPersistable(element)) {
+                element = context.detachObjectCopy(element, state);
+            }
+
+            detached.add(element);
+        }
+
+        return detached;
+    }
+
+    /**
+     * Attach the elements of a detached copy and make them the elements of
+     * this collection
+     */
+    @Override
+    public void attachCopy(Object value) {
+        ExecutionContext context = owner.getExecutionContext();
+
+        ApiAdapter adapter = context.getApiAdapter();
+
+        Collection<Object> attached = newDetached();
+
+        for (Object element : (Collection<?>) value) {
+            if (element != null && adapter.isPersistable(element)) {
+                element = context.attachObjectCopy(element, false);
+            }
+
+            attached.add(element);
+        }
+
+        retainAll(attached);
+
+        for (Object element : attached) {
+            if (!contains(element)) {
+                add(element);
+            }
+        }
+    }
+
+    /**
+     * @return A plain collection holding the elements
+     */
+    @Override
+    public Object clone() {
+        Collection<Object> copy = newDetached();
+        copy.addAll(load());
+
+        return copy;
+    }
+
+    /**
+     * Marks the owner dirty when an element is removed from the loaded
+     * elements
+     *
+     */
+    private class DirtyIterator implements Iterator<Object> {
+
+        private final Iterator<Object> iterator;
+
+        private Object last;
+
+        public DirtyIterator(Iterator<Object> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Object next() {
+            last = iterator.next();
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            iterator.remove();
+            recordRemove(last);
+            makeDirty();
+        }
+    }
+
+    /**
+     * Reads element ids a page at a time and resolves each element as it's
+     * returned. Elements that no longer exist or have been removed are
+     * skipped, and added elements are returned last
+     *
+     */
+    private class LazyIterator implements Iterator<Object> {
+
+        private final Iterator<Object> ids = reader.iterator();
+
+        private Iterator<Object> pending;
+
+        private Object next;
+
+        private Object last;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && ids.hasNext()) {
+                next = resolve(ids.next());
+
+                if (next != null && removed.contains(next)) {
+                    next = null;
+                }
+            }
+
+            if (next == null) {
+                if (pending == null) {
+                    pending = new ArrayList<Object>(added).iterator();
+                }
+
+                if (pending.hasNext()) {
+                    next = pending.next();
+                }
+            }
+
+            return next != null;
+        }
+
+        @Override
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No elements left");
+            }
+
+            last = next;
+            next = null;
+
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+
+            LazyCollection.this.remove(last);
+            last = null;
+        }
+    }
+}
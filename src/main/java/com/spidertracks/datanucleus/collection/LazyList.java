@@ -0,0 +1,266 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+
+import org.datanucleus.store.ObjectProvider;
+
+/**
+ * A list relation that is read from Cassandra on demand. Elements are in the
+ * order of their row keys, as they are stored. Positional access reads every
+ * element, except subList() and descendingIterator() which only read as far
+ * as they need.
+ *
+ * @author Todd Nine
+ *
+ */
+public class LazyList extends LazyCollection implements List<Object> {
+
+    public LazyList(ObjectProvider owner, int fieldNumber,
+            ReadCollection reader, String typeName) {
+        super(owner, fieldNumber, reader, typeName);
+    }
+
+    /**
+     * @return The loaded elements as a list
+     */
+    protected List<Object> list() {
+        return (List<Object>) load();
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends Object> c) {
+        boolean changed = list().addAll(index, c);
+
+        if (changed) {
+            for (Object element : c) {
+                recordAdd(element);
+            }
+
+            makeDirty();
+        }
+
+        return changed;
+    }
+
+    @Override
+    public Object get(int index) {
+        return list().get(index);
+    }
+
+    @Override
+    public Object set(int index, Object element) {
+        Object previous = list().set(index, element);
+
+        if (previous != element) {
+            recordRemove(previous);
+            recordAdd(element);
+            makeDirty();
+        }
+
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Object element) {
+        list().add(index, element);
+        recordAdd(element);
+        makeDirty();
+    }
+
+    @Override
+    public Object remove(int index) {
+        Object removed = list().remove(index);
+        recordRemove(removed);
+        makeDirty();
+        return removed;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        return list().indexOf(o);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return list().lastIndexOf(o);
+    }
+
+    @Override
+    public ListIterator<Object> listIterator() {
+        return listIterator(0);
+    }
+
+    @Override
+    public ListIterator<Object> listIterator(int index) {
+        return new DirtyListIterator(list().listIterator(index));
+    }
+
+    /**
+     * Returns a read only list of the elements in the range. Once loaded it is
+     * a view of the elements, otherwise a copy that reads only up to the end
+     * of the range. Indexes count the elements iteration returns, so the
+     * elements before the range are resolved and those no longer existing
+     * skipped, as get() does on the loaded list
+     */
+    @Override
+    public List<Object> subList(int fromIndex, int toIndex) {
+        if (isLoaded() || hasChanges()) {
+            return Collections.unmodifiableList(list().subList(fromIndex,
+                    toIndex));
+        }
+
+        if (fromIndex < 0) {
+            throw new IndexOutOfBoundsException("fromIndex = " + fromIndex);
+        }
+
+        if (fromIndex > toIndex) {
+            throw new IllegalArgumentException("fromIndex(" + fromIndex
+                    + ") > toIndex(" + toIndex + ")");
+        }
+
+        Iterator<Object> elements = resolving(reader.iterator());
+
+        for (int i = 0; i < fromIndex; i++) {
+            if (!elements.hasNext()) {
+                throw new IndexOutOfBoundsException("toIndex = " + toIndex);
+            }
+
+            elements.next();
+        }
+
+        List<Object> range = new ArrayList<Object>(toIndex - fromIndex);
+
+        while (range.size() < toIndex - fromIndex) {
+            if (!elements.hasNext()) {
+                throw new IndexOutOfBoundsException("toIndex = " + toIndex);
+            }
+
+            range.add(elements.next());
+        }
+
+        return Collections.unmodifiableList(range);
+    }
+
+    /**
+     * Iterates from the last element to the first. Reads the columns a page
+     * at a time from the end of the row when not loaded. The iterator is read
+     * only
+     *
+     * @return
+     */
+    public Iterator<Object> descendingIterator() {
+        if (isLoaded() || hasChanges()) {
+            List<Object> elements = new ArrayList<Object>(list());
+            Collections.reverse(elements);
+
+            return Collections.unmodifiableList(elements).iterator();
+        }
+
+        return resolving(reader.iterator(null, null, true));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+
+        return load().equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return load().hashCode();
+    }
+
+    /**
+     * Marks the owner dirty when the list is modified through the iterator
+     *
+     */
+    private class DirtyListIterator implements ListIterator<Object> {
+
+        private final ListIterator<Object> iterator;
+
+        private Object last;
+
+        public DirtyListIterator(ListIterator<Object> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Object next() {
+            last = iterator.next();
+            return last;
+        }
+
+        @Override
+        public boolean hasPrevious() {
+            return iterator.hasPrevious();
+        }
+
+        @Override
+        public Object previous() {
+            last = iterator.previous();
+            return last;
+        }
+
+        @Override
+        public int nextIndex() {
+            return iterator.nextIndex();
+        }
+
+        @Override
+        public int previousIndex() {
+            return iterator.previousIndex();
+        }
+
+        @Override
+        public void remove() {
+            iterator.remove();
+            recordRemove(last);
+            makeDirty();
+        }
+
+        @Override
+        public void set(Object e) {
+            iterator.set(e);
+            recordRemove(last);
+            recordAdd(e);
+            last = e;
+            makeDirty();
+        }
+
+        @Override
+        public void add(Object e) {
+            iterator.add(e);
+            recordAdd(e);
+            makeDirty();
+        }
+    }
+}
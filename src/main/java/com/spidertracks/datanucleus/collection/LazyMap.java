@@ -0,0 +1,828 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.datanucleus.FetchPlanState;
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.ObjectProvider;
+import org.datanucleus.store.types.sco.SCO;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+
+/**
+ * A map relation that is read from Cassandra on demand. Each entry is stored
+ * in its own column, so get(), containsKey(), put() and remove() of a single
+ * key only read the column of that key. Iterating reads the entries a page at
+ * a time. size() reads every entry, as the entries of deleted keys and values
+ * are skipped.
+ *
+ * Modifications mark the owning field as dirty. The keys put and removed are
+ * tracked, so only their columns are written. They are tracked until the
+ * batch writing them is sent.
+ *
+ * Detaching copies the entries into a plain map. Once the owner is unset, the
+ * entries are loaded and the map is no longer written.
+ *
+ * @author Todd Nine
+ *
+ */
+public class LazyMap extends AbstractMap<Object, Object> implements SCO,
+        ChangeTracker {
+
+    /**
+     * Returned by lookup when the key isn't in the map
+     */
+    private static final Object ABSENT = new Object();
+
+    /**
+     * The object that owns the relation, null once unset
+     */
+    private ObjectProvider owner;
+
+    private final int fieldNumber;
+
+    private final String fieldName;
+
+    private final ReadMap reader;
+
+    private final Class<?> keyClass;
+
+    private final Class<?> valueClass;
+
+    private final boolean pcKey;
+
+    private final boolean pcValue;
+
+    /**
+     * All entries once loaded, null until then
+     */
+    private Map<Object, Object> delegate;
+
+    /**
+     * Entries put since the relation was last written
+     */
+    private final Map<Object, Object> puts = new LinkedHashMap<Object, Object>();
+
+    /**
+     * Keys put that weren't stored
+     */
+    private final Set<Object> newKeys = new HashSet<Object>();
+
+    /**
+     * Stored keys removed since the relation was last written
+     */
+    private final Set<Object> removed = new HashSet<Object>();
+
+    /**
+     * True if every stored entry must be removed when written
+     */
+    private boolean cleared;
+
+    /**
+     * Incremented on every change
+     */
+    private int changeCount;
+
+    /**
+     *
+     * @param owner
+     *            The object that owns the relation
+     * @param fieldNumber
+     *            The absolute field number of the relation
+     * @param reader
+     *            The reader of the relation columns
+     * @param keyClass
+     *            The declared key class
+     * @param valueClass
+     *            The declared value class
+     */
+    public LazyMap(ObjectProvider owner, int fieldNumber, ReadMap reader,
+            Class<?> keyClass, Class<?> valueClass) {
+        this.owner = owner;
+        this.fieldNumber = fieldNumber;
+        this.reader = reader;
+        this.keyClass = keyClass;
+        this.valueClass = valueClass;
+        this.fieldName = owner.getClassMetaData()
+                .getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber)
+                .getName();
+
+        ApiAdapter adapter = owner.getExecutionContext().getApiAdapter();
+
+        this.pcKey = adapter.isPersistable(keyClass);
+        this.pcValue = adapter.isPersistable(valueClass);
+    }
+
+    /**
+     * @param op
+     * @param fieldNumber
+     * @return True if this is the map of the given field of the object. Only
+     *         then do the tracked changes apply to it's row
+     */
+    public boolean isOwnedBy(ObjectProvider op, int fieldNumber) {
+        return owner == op && this.fieldNumber == fieldNumber;
+    }
+
+    /**
+     * @return True if every entry has been read
+     */
+    public boolean isLoaded() {
+        return delegate != null;
+    }
+
+    /**
+     * @return The entries put since the relation was last written
+     */
+    public Map<Object, Object> getPuts() {
+        return puts;
+    }
+
+    /**
+     * @return The keys removed since the relation was last written
+     */
+    public Set<Object> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return True if the map was cleared since it was last written. Every
+     *         stored column must be removed
+     */
+    public boolean isCleared() {
+        return cleared;
+    }
+
+    /**
+     * Forget all changes
+     */
+    public void clearChanges() {
+        puts.clear();
+        newKeys.clear();
+        removed.clear();
+        cleared = false;
+    }
+
+    @Override
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * Called once the batch writing the changes has been sent
+     */
+    @Override
+    public void clearChanges(int changeCount) {
+        if (this.changeCount == changeCount) {
+            clearChanges();
+        }
+    }
+
+    /**
+     * Read every entry if they haven't been read yet
+     *
+     * @return The loaded entries
+     */
+    protected Map<Object, Object> load() {
+        if (delegate != null) {
+            return delegate;
+        }
+
+        Map<Object, Object> loaded = new HashMap<Object, Object>();
+
+        // includes our pending changes
+        Iterator<Map.Entry<Object, Object>> entries = new LazyEntryIterator();
+
+        while (entries.hasNext()) {
+            Map.Entry<Object, Object> entry = entries.next();
+            loaded.put(entry.getKey(), entry.getValue());
+        }
+
+        delegate = loaded;
+
+        return delegate;
+    }
+
+    /**
+     * Mark the owning field as dirty
+     */
+    protected void makeDirty() {
+        if (owner != null) {
+            owner.makeDirty(fieldNumber);
+        }
+    }
+
+    /**
+     * Reads every entry, so the size matches the entries returned
+     */
+    @Override
+    public int size() {
+        return load().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        if (delegate != null) {
+            return delegate.isEmpty();
+        }
+
+        if (!newKeys.isEmpty()) {
+            return false;
+        }
+
+        if (!reader.hasColumns()) {
+            return true;
+        }
+
+        // resolves entries until one still exists
+        return !new LazyEntryIterator().hasNext();
+    }
+
+    /**
+     * Reads only the column of the key when not loaded
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        if (delegate != null) {
+            return delegate.containsKey(key);
+        }
+
+        if (puts.containsKey(key)) {
+            return true;
+        }
+
+        if (removed.contains(key)) {
+            return false;
+        }
+
+        Object storedKey = toStoredKey(key);
+
+        return storedKey != null && reader.containsKey(storedKey);
+    }
+
+    /**
+     * Reads only the column of the key when not loaded
+     */
+    @Override
+    public Object get(Object key) {
+        Object value = lookup(key);
+
+        return value == ABSENT ? null : value;
+    }
+
+    /**
+     * Reads only the column of the key to return the previous value when not
+     * loaded
+     */
+    @Override
+    public Object put(Object key, Object value) {
+        Object previous = lookup(key);
+        boolean present = previous != ABSENT;
+
+        if (delegate != null) {
+            delegate.put(key, value);
+        }
+
+        recordPut(key, value, present);
+        makeDirty();
+
+        return present ? previous : null;
+    }
+
+    /**
+     * Reads only the column of the key to return the previous value when not
+     * loaded
+     */
+    @Override
+    public Object remove(Object key) {
+        Object previous = lookup(key);
+
+        if (previous == ABSENT) {
+            return null;
+        }
+
+        if (delegate != null) {
+            delegate.remove(key);
+        }
+
+        recordRemove(key);
+        makeDirty();
+
+        return previous;
+    }
+
+    /**
+     * Get the value of the key. Reads only the column of the key when not
+     * loaded
+     *
+     * @param key
+     * @return The value or ABSENT if the key isn't in the map
+     */
+    private Object lookup(Object key) {
+        if (delegate != null) {
+            return delegate.containsKey(key) ? delegate.get(key) : ABSENT;
+        }
+
+        if (puts.containsKey(key)) {
+            return puts.get(key);
+        }
+
+        if (removed.contains(key)) {
+            return ABSENT;
+        }
+
+        Object storedKey = toStoredKey(key);
+
+        if (storedKey == null) {
+            return ABSENT;
+        }
+
+        Object storedValue = reader.getValue(storedKey);
+
+        if (storedValue == null) {
+            return ABSENT;
+        }
+
+        return toValue(storedValue);
+    }
+
+    @Override
+    public void clear() {
+        // no need to read what we're about to remove
+        delegate = new HashMap<Object, Object>();
+        clearChanges();
+        cleared = true;
+        changeCount++;
+        makeDirty();
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * Nothing is read until the entries are used
+     */
+    @Override
+    public void initialise() {
+    }
+
+    /**
+     * Replace the entries with those of the given map
+     */
+    @Override
+    public void initialise(Object value, boolean forInsert, boolean forUpdate) {
+        clear();
+
+        if (value != null) {
+            putAll((Map<?, ?>) value);
+        }
+    }
+
+    @Override
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    @Override
+    public Object getOwner() {
+        return owner == null ? null : owner.getObject();
+    }
+
+    /**
+     * Load the entries while the owner can still read them, then stop
+     * tracking changes for it
+     */
+    @Override
+    public void unsetOwner() {
+        if (owner == null) {
+            return;
+        }
+
+        load();
+        clearChanges();
+        owner = null;
+    }
+
+    /**
+     * @return The loaded entries
+     */
+    @Override
+    public Object getValue() {
+        return load();
+    }
+
+    /**
+     * Copy the entries into a plain map, detaching persistent keys and values
+     */
+    @Override
+    public Object detachCopy(FetchPlanState state) {
+        ExecutionContext context = owner.getExecutionContext();
+
+        ApiAdapter adapter = context.getApiAdapter();
+
+        Map<Object, Object> detached = new HashMap<Object, Object>();
+
+        for (Map.Entry<Object, Object> entry : load().entrySet()) {
+            Object key = entry.getKey();
+            Object value = entry.getValue();
+
+            if (key != null && adapter.isPersistable(key)) {
+                key = context.detachObjectCopy(key, state);
+            }
+
+            if (value != null && adapter.isPersistable(value)) {
+                value = context.detachObjectCopy(value, state);
+            }
+
+            detached.put(key, value);
+        }
+
+        return detached;
+    }
+
+    /**
+     * Attach the entries of a detached copy and make them the entries of this
+     * map
+     */
+    @Override
+    public void attachCopy(Object value) {
+        ExecutionContext context = owner.getExecutionContext();
+
+        ApiAdapter adapter = context.getApiAdapter();
+
+        Map<Object, Object> attached = new HashMap<Object, Object>();
+
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            Object key = entry.getKey();
+            Object entryValue = entry.getValue();
+
+            if (key != null && adapter.isPersistable(key)) {
+                key = context.attachObjectCopy(key, false);
+            }
+
+            if (entryValue != null && adapter.isPersistable(entryValue)) {
+                entryValue = context.attachObjectCopy(entryValue, false);
+            }
+
+            attached.put(key, entryValue);
+        }
+
+        keySet().retainAll(attached.keySet());
+
+        for (Map.Entry<Object, Object> entry : attached.entrySet()) {
+            Object previous = lookup(entry.getKey());
+            Object entryValue = entry.getValue();
+
+            boolean unchanged = previous != ABSENT
+                    && (previous == null ? entryValue == null : previous
+                            .equals(entryValue));
+
+            if (!unchanged) {
+                put(entry.getKey(), entryValue);
+            }
+        }
+    }
+
+    /**
+     * @return A plain map holding the entries
+     */
+    @Override
+    public Object clone() {
+        return new HashMap<Object, Object>(load());
+    }
+
+    /**
+     * Record the key was put
+     *
+     * @param key
+     * @param value
+     * @param present
+     *            True if the key was in the map before the put
+     */
+    private void recordPut(Object key, Object value, boolean present) {
+        changeCount++;
+
+        if (removed.remove(key)) {
+            // stored, removed, then put again
+        } else if (!present) {
+            newKeys.add(key);
+        }
+
+        puts.put(key, value);
+    }
+
+    /**
+     * Record a key that was in the map was removed
+     *
+     * @param key
+     */
+    private void recordRemove(Object key) {
+        changeCount++;
+
+        puts.remove(key);
+
+        // only stored keys need their column removed
+        if (!newKeys.remove(key)) {
+            removed.add(key);
+        }
+    }
+
+    /**
+     * Get the stored form of the key
+     *
+     * @param key
+     * @return The identity of a persistent key, or null if it isn't persistent
+     */
+    private Object toStoredKey(Object key) {
+        if (!pcKey) {
+            return key;
+        }
+
+        ExecutionContext context = owner.getExecutionContext();
+
+        if (key == null || !context.getApiAdapter().isPersistable(key)) {
+            return null;
+        }
+
+        return context.getApiAdapter().getIdForObject(key);
+    }
+
+    /**
+     * Resolve a stored value
+     *
+     * @param storedValue
+     * @return The value, or null if it's an object that no longer exists
+     */
+    private Object toValue(Object storedValue) {
+        if (!pcValue) {
+            return storedValue;
+        }
+
+        return resolve(valueClass, storedValue);
+    }
+
+    /**
+     * Resolve a persistent key or value
+     *
+     * @param targetClass
+     * @param stored
+     * @return The object or null if it no longer exists
+     */
+    private Object resolve(Class<?> targetClass, Object stored) {
+        ExecutionContext context = owner.getExecutionContext();
+
+        try {
+            return ((CassandraStoreManager) context.getStoreManager())
+                    .findReference(context,
+                            context.newObjectId(targetClass, stored),
+                            targetClass.getName());
+        } catch (NucleusObjectNotFoundException nonfe) {
+            // swallow. TODO remove the lazy reference if record
+            // is over tombstone time
+            return null;
+        }
+    }
+
+    /**
+     * The entries of the map, backed by the map
+     *
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<Object, Object>> {
+
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+            if (delegate != null) {
+                return new DirtyEntryIterator(delegate.entrySet().iterator());
+            }
+
+            return new LazyEntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return LazyMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return LazyMap.this.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            LazyMap.this.clear();
+        }
+    }
+
+    /**
+     * An entry whose value is set through the map
+     *
+     */
+    private class LazyEntry implements Map.Entry<Object, Object> {
+
+        private final Object key;
+
+        private Object value;
+
+        public LazyEntry(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public Object getKey() {
+            return key;
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object previous = this.value;
+            put(key, value);
+            this.value = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+
+            return (key == null ? other.getKey() == null : key.equals(other
+                    .getKey()))
+                    && (value == null ? other.getValue() == null : value
+                            .equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode())
+                    ^ (value == null ? 0 : value.hashCode());
+        }
+    }
+
+    /**
+     * Iterates over the loaded entries, recording removals
+     *
+     */
+    private class DirtyEntryIterator implements
+            Iterator<Map.Entry<Object, Object>> {
+
+        private final Iterator<Map.Entry<Object, Object>> iterator;
+
+        private Object last;
+
+        public DirtyEntryIterator(Iterator<Map.Entry<Object, Object>> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Map.Entry<Object, Object> next() {
+            Map.Entry<Object, Object> entry = iterator.next();
+            last = entry.getKey();
+            return new LazyEntry(last, entry.getValue());
+        }
+
+        @Override
+        public void remove() {
+            iterator.remove();
+            recordRemove(last);
+            makeDirty();
+        }
+    }
+
+    /**
+     * Reads the entries a page at a time and resolves persistent keys and
+     * values as they're returned. Entries that have been removed or put are
+     * skipped, and the entries put are returned last
+     *
+     */
+    private class LazyEntryIterator implements
+            Iterator<Map.Entry<Object, Object>> {
+
+        private final Iterator<CassEntry> entries = reader.iterator();
+
+        private Iterator<Map.Entry<Object, Object>> pending;
+
+        private Map.Entry<Object, Object> next;
+
+        private Object last;
+
+        private boolean hasLast;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && entries.hasNext()) {
+                next = toEntry(entries.next());
+            }
+
+            if (next == null) {
+                if (pending == null) {
+                    pending = new LinkedHashMap<Object, Object>(puts)
+                            .entrySet().iterator();
+                }
+
+                if (pending.hasNext()) {
+                    Map.Entry<Object, Object> entry = pending.next();
+                    next = new LazyEntry(entry.getKey(), entry.getValue());
+                }
+            }
+
+            return next != null;
+        }
+
+        /**
+         * Resolve the stored entry
+         *
+         * @param stored
+         * @return The entry or null if it should be skipped
+         */
+        private Map.Entry<Object, Object> toEntry(CassEntry stored) {
+            Object key = stored.getKey();
+
+            if (pcKey) {
+                key = resolve(keyClass, key);
+
+                if (key == null) {
+                    return null;
+                }
+            }
+
+            if (removed.contains(key) || puts.containsKey(key)) {
+                return null;
+            }
+
+            Object value = toValue(stored.getValue());
+
+            if (pcValue && value == null) {
+                return null;
+            }
+
+            return new LazyEntry(key, value);
+        }
+
+        @Override
+        public Map.Entry<Object, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No elements left");
+            }
+
+            Map.Entry<Object, Object> entry = next;
+
+            last = entry.getKey();
+            hasLast = true;
+            next = null;
+
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (!hasLast) {
+                throw new IllegalStateException();
+            }
+
+            LazyMap.this.remove(last);
+            hasLast = false;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.datanucleus.store.ObjectProvider;
+
+/**
+ * A set relation that is read from Cassandra on demand
+ *
+ * @author Todd Nine
+ *
+ */
+public class LazySet extends LazyCollection implements Set<Object> {
+
+    public LazySet(ObjectProvider owner, int fieldNumber,
+            ReadCollection reader, String typeName) {
+        super(owner, fieldNumber, reader, typeName);
+    }
+
+    @Override
+    protected Collection<Object> newDelegate() {
+        return new HashSet<Object>();
+    }
+
+    /**
+     * A set can't hold the element twice, check if it's already stored
+     */
+    @Override
+    protected boolean isDuplicate(Object e) {
+        if (getAdded().contains(e)) {
+            return true;
+        }
+
+        return !getRemoved().contains(e) && isStored(e);
+    }
+
+    @Override
+    protected Collection<Object> newDetached() {
+        return new HashSet<Object>();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+
+        return load().equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return load().hashCode();
+    }
+}
@@ -0,0 +1,340 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.datanucleus.store.ObjectProvider;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+
+/**
+ * A sorted set relation that is read from Cassandra on demand. Elements are
+ * ordered by their row keys, the order their columns are stored in, so
+ * first(), last(), headSet(), tailSet() and subSet() read only the columns in
+ * the range. The range views are read only.
+ *
+ * Once elements have been added or removed, the views are taken from the
+ * loaded elements. Elements that haven't been persisted have no row key, they
+ * are returned after the stored elements and are left out of range views.
+ *
+ * Only used for fields that declare no comparator and whose elements have no
+ * natural ordering.
+ *
+ * @author Todd Nine
+ *
+ */
+public class LazySortedSet extends LazySet implements SortedSet<Object> {
+
+    private final Comparator<Object> comparator;
+
+    public LazySortedSet(ObjectProvider owner, int fieldNumber,
+            ReadCollection reader, String typeName) {
+        super(owner, fieldNumber, reader, typeName);
+
+        this.comparator = new RowKeyComparator(owner.getExecutionContext(),
+                ((CassandraStoreManager) owner.getExecutionContext()
+                        .getStoreManager()).getByteConverterContext());
+    }
+
+    @Override
+    protected Collection<Object> newDelegate() {
+        return new RowKeySortedSet(owner.getExecutionContext()
+                .getApiAdapter(), comparator);
+    }
+
+    /**
+     * Detached elements keep their identities, so they are still ordered by
+     * their row keys
+     */
+    @Override
+    protected Collection<Object> newDetached() {
+        return new TreeSet<Object>(comparator);
+    }
+
+    /**
+     * Elements that haven't been persisted are compared by reference, as they
+     * are once loaded
+     */
+    @Override
+    protected boolean isDuplicate(Object e) {
+        if (e != null
+                && owner.getExecutionContext().getApiAdapter()
+                        .getIdForObject(e) == null) {
+            for (Object added : getAdded()) {
+                if (added == e) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        return super.isDuplicate(e);
+    }
+
+    /**
+     * @return The loaded elements as a sorted set
+     */
+    protected SortedSet<Object> sortedSet() {
+        return (SortedSet<Object>) load();
+    }
+
+    /**
+     * @return True if ranges must be taken from the loaded elements
+     */
+    private boolean useLoaded() {
+        return isLoaded() || hasChanges();
+    }
+
+    /**
+     * Get the identity of a range bound
+     *
+     * @param element
+     * @return
+     */
+    private Object getId(Object element) {
+        Object id = owner.getExecutionContext().getApiAdapter()
+                .getIdForObject(element);
+
+        if (id == null) {
+            throw new IllegalArgumentException(
+                    "Only persistent objects can be used as range bounds");
+        }
+
+        return id;
+    }
+
+    @Override
+    public Comparator<Object> comparator() {
+        return comparator;
+    }
+
+    /**
+     * Reads only the first column when not loaded
+     */
+    @Override
+    public Object first() {
+        if (useLoaded()) {
+            return sortedSet().first();
+        }
+
+        return resolving(reader.iterator(null, null, false)).next();
+    }
+
+    /**
+     * Reads only the last column when not loaded
+     */
+    @Override
+    public Object last() {
+        if (useLoaded()) {
+            return sortedSet().last();
+        }
+
+        return resolving(reader.iterator(null, null, true)).next();
+    }
+
+    @Override
+    public SortedSet<Object> headSet(Object toElement) {
+        if (useLoaded()) {
+            return Collections.unmodifiableSortedSet(sortedSet().headSet(
+                    toElement));
+        }
+
+        return new RangeSet(null, getId(toElement));
+    }
+
+    @Override
+    public SortedSet<Object> tailSet(Object fromElement) {
+        if (useLoaded()) {
+            return Collections.unmodifiableSortedSet(sortedSet().tailSet(
+                    fromElement));
+        }
+
+        return new RangeSet(getId(fromElement), null);
+    }
+
+    @Override
+    public SortedSet<Object> subSet(Object fromElement, Object toElement) {
+        if (useLoaded()) {
+            return Collections.unmodifiableSortedSet(sortedSet().subSet(
+                    fromElement, toElement));
+        }
+
+        return new RangeSet(getId(fromElement), getId(toElement));
+    }
+
+    /**
+     * Iterates from the last element to the first. Reads the columns a page
+     * at a time when not loaded. The iterator is read only
+     *
+     * @return
+     */
+    public Iterator<Object> descendingIterator() {
+        if (useLoaded()) {
+            List<Object> elements = new ArrayList<Object>(sortedSet());
+            Collections.reverse(elements);
+
+            return Collections.unmodifiableList(elements).iterator();
+        }
+
+        return resolving(reader.iterator(null, null, true));
+    }
+
+    /**
+     * A read only range of the stored elements. Only the columns in the range
+     * are read, and size() counts them
+     *
+     */
+    private class RangeSet extends AbstractSet<Object> implements
+            SortedSet<Object> {
+
+        /**
+         * lowest id inclusive, null if unbounded
+         */
+        private final Object fromId;
+
+        /**
+         * highest id exclusive, null if unbounded
+         */
+        private final Object toId;
+
+        public RangeSet(Object fromId, Object toId) {
+            this.fromId = fromId;
+            this.toId = toId;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return resolving(reader.iterator(fromId, toId, false));
+        }
+
+        /**
+         * Counts the columns in the range with get_count, without reading the
+         * elements. As with the size of the set, the column of an element
+         * deleted without being removed from the relation is counted, so the
+         * size can be larger than the number of elements iterated
+         */
+        @Override
+        public int size() {
+            return reader.count(fromId, toId);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !iterator().hasNext();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return inRange(o) && LazySortedSet.this.contains(o);
+        }
+
+        /**
+         * @param o
+         * @return True if the element is within the range
+         */
+        private boolean inRange(Object o) {
+            if (o == null
+                    || owner.getExecutionContext().getApiAdapter()
+                            .getIdForObject(o) == null) {
+                return false;
+            }
+
+            if (fromId != null
+                    && comparator.compare(o, resolveBound(fromId)) < 0) {
+                return false;
+            }
+
+            return toId == null
+                    || comparator.compare(o, resolveBound(toId)) < 0;
+        }
+
+        /**
+         * Get the object of a bound, so it can be compared
+         *
+         * @param id
+         * @return
+         */
+        private Object resolveBound(Object id) {
+            return owner.getExecutionContext().findObject(id, false, false,
+                    null);
+        }
+
+        @Override
+        public Comparator<Object> comparator() {
+            return comparator;
+        }
+
+        @Override
+        public Object first() {
+            return resolving(reader.iterator(fromId, toId, false)).next();
+        }
+
+        @Override
+        public Object last() {
+            return resolving(reader.iterator(fromId, toId, true)).next();
+        }
+
+        @Override
+        public SortedSet<Object> headSet(Object toElement) {
+            return subRange(fromId, getId(toElement));
+        }
+
+        @Override
+        public SortedSet<Object> tailSet(Object fromElement) {
+            return subRange(getId(fromElement), toId);
+        }
+
+        @Override
+        public SortedSet<Object> subSet(Object fromElement, Object toElement) {
+            return subRange(getId(fromElement), getId(toElement));
+        }
+
+        /**
+         * Narrow this range to the given bounds
+         *
+         * @param from
+         * @param to
+         * @return
+         */
+        private SortedSet<Object> subRange(Object from, Object to) {
+            if (fromId != null
+                    && (from == null || compareIds(from, fromId) < 0)) {
+                from = fromId;
+            }
+
+            if (toId != null && (to == null || compareIds(to, toId) > 0)) {
+                to = toId;
+            }
+
+            return new RangeSet(from, to);
+        }
+
+        private int compareIds(Object id1, Object id2) {
+            return comparator.compare(resolveBound(id1), resolveBound(id2));
+        }
+    }
+}
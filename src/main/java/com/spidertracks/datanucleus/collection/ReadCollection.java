@@ -19,17 +19,12 @@ package com.spidertracks.datanucleus.collection;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.List;
-import java.util.NoSuchElementException;
 
 import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.SlicePredicate;
-import org.apache.cassandra.thrift.SliceRange;
 import org.datanucleus.store.ExecutionContext;
 import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Selector;
 
-import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 
 /**
@@ -39,104 +34,156 @@ import com.spidertracks.datanucleus.convert.ByteConverterContext;
  * 
  */
 public class ReadCollection extends ExternalEntity implements
-        Iterable<Object>, Iterator<Object> {
+        Iterable<Object> {
     
 
     private Class<?> targetClass;
 
-    private int index = -1;
-
-    private List<Column> columns;
-    
     private ExecutionContext ec;
 
+    private int pageSize;
+
+    /**
+     * 
+     * @param selector
+     * @param context
+     * @param ownerColumnFamily
+     * @param rowKey
+     * @param ownerColumn
+     * @param ec
+     * @param targetClass
+     * @param pageSize
+     *            The number of columns to read with each slice
+     */
     public ReadCollection(Selector selector, ByteConverterContext context,
-            String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn, ExecutionContext ec, Class<?> targetClass) {
+            String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn, ExecutionContext ec, Class<?> targetClass, int pageSize) {
         super(selector, context, ownerColumnFamily, rowKey, ownerColumn);
         this.ec = ec;
         this.targetClass = targetClass;
+        this.pageSize = pageSize;
     }
 
     /**
-     * Get the slice predicate for selecting all the columns from the given
-     * start key (inclusive). If the key is null, the range reads from the
-     * beginning. Reads up to the max for the given column from start using
-     * count.
+     * Returns true if the element with the given identity is stored. Only the
+     * column of the element is read
      * 
-     * @param count
-     * @param startKey
+     * @param id
      * @return
      */
-    public void fetchColumns(int count, Bytes startKey) {
-
-        SliceRange range = new SliceRange();
+    public boolean containsId(Object id) {
+        return hasColumn(context.getRowKeyForId(id));
+    }
 
-        int length = ownerColumn.length() + 1;
+    /**
+     * Get the identity of the element stored in the column
+     * 
+     * @param column
+     * @return
+     */
+    public Object getIdentity(Column column) {
+        return context.getObjectIdentity(ec, targetClass,
+                Bytes.fromByteBuffer(getEntryKey(column)));
+    }
 
-        if (startKey != null) {
-            length += startKey.length();
-        }
+    /**
+     * Iterates over the identity of every element. Columns are read a page at
+     * a time as the iterator advances
+     */
+    @Override
+    public Iterator<Object> iterator() {
+        return identities(new ColumnPager(pageSize));
+    }
 
-        ByteBuffer startBuff = ByteBuffer.allocate(length);
-        startBuff.mark();
-        startBuff.put(ownerColumn.toByteArray());
-        startBuff.put(DELIM_MIN);
+    /**
+     * Iterates over the identities of the elements whose row keys are in the
+     * range, in row key order. Only the columns in the range are read, a page
+     * at a time
+     * 
+     * @param fromId
+     *            The lowest identity (inclusive), null for the first element
+     * @param toId
+     *            The highest identity (exclusive), null for the last element
+     * @param reversed
+     *            True to iterate from the highest to the lowest
+     * @return
+     */
+    public Iterator<Object> iterator(Object fromId, Object toId,
+            boolean reversed) {
+        ByteBuffer from = getColumnName(fromId);
+        ByteBuffer to = getColumnName(toId);
 
-        if (startKey != null) {
-            startBuff.put(startKey.toByteArray());
+        if (reversed) {
+            return identities(new ColumnPager(pageSize, to, from, true, to));
         }
 
-        startBuff.reset();
-
-        range.setStart(startBuff);
-
-        ByteBuffer endBuff = ByteBuffer.allocate(ownerColumn.length() + 1);
-        endBuff.mark();
-        endBuff.put(ownerColumn.toByteArray());
-        endBuff.put(DELIM_MAX);
-        endBuff.reset();
-
-        range.setFinish(endBuff);
-        range.setCount(count);
-
-        SlicePredicate predicate = new SlicePredicate();
-
-        predicate.setSlice_range(range);
+        return identities(new ColumnPager(pageSize, from, to, false, to));
+    }
 
-        columns = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
-                predicate, Consistency.get());
+    /**
+     * Count the elements whose row keys are in the range without reading them
+     * 
+     * @param fromId
+     *            The lowest identity (inclusive), null for the first element
+     * @param toId
+     *            The highest identity (exclusive), null for the last element
+     * @return
+     */
+    public int count(Object fromId, Object toId) {
+        ByteBuffer from = getColumnName(fromId);
+        ByteBuffer to = getColumnName(toId);
 
-    }
+        int count = countColumns(from == null ? getColumnStart(null) : from,
+                to == null ? getColumnFinish() : to);
 
-    @Override
-    public Iterator<Object> iterator() {
-        return this;
-    }
+        // the count includes the finish
+        if (toId != null && containsId(toId)) {
+            count--;
+        }
 
-    @Override
-    public boolean hasNext() {
-        return columns != null && index + 1 < columns.size();
+        return count;
     }
 
     /**
-     * Returns the bytes as an object identity
+     * Get the full column name of the element
+     * 
+     * @param id
+     * @return The column name, or null if the id is null
      */
-    @Override
-    public Object next() {
-        if (++index > columns.size()) {
-            throw new NoSuchElementException("No elements left");
+    private ByteBuffer getColumnName(Object id) {
+        if (id == null) {
+            return null;
         }
-        
-        ByteBuffer buffer = columns.get(index).name;
-        buffer.position(buffer.position()+ownerColumn.length()+1);
-
-        return context.getObjectIdentity(ec, targetClass,
-                Bytes.fromByteBuffer(buffer));
 
+        return getColumnStart(context.getRowKeyForId(id));
     }
 
-    @Override
-    public void remove() {
-        throw new UnsupportedOperationException("remove isn't supported");
+    /**
+     * Returns the identity of each column
+     * 
+     * @param columns
+     * @return
+     */
+    private Iterator<Object> identities(final ColumnPager columns) {
+        return new Iterator<Object>() {
+
+            @Override
+            public boolean hasNext() {
+                return columns.hasNext();
+            }
+
+            /**
+             * Returns the bytes as an object identity
+             */
+            @Override
+            public Object next() {
+                return getIdentity(columns.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException(
+                        "remove isn't supported");
+            }
+        };
     }
 }
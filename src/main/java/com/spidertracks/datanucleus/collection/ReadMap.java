@@ -17,18 +17,12 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.collection;
 
-import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.List;
-import java.util.NoSuchElementException;
 
 import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.SlicePredicate;
-import org.apache.cassandra.thrift.SliceRange;
 import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Selector;
 
-import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 
 /**
@@ -37,115 +31,98 @@ import com.spidertracks.datanucleus.convert.ByteConverterContext;
  * @author Todd Nine
  * 
  */
-public class ReadMap extends ExternalEntity implements Iterable<CassEntry>,
-        Iterator<CassEntry> {
+public class ReadMap extends ExternalEntity implements Iterable<CassEntry> {
 
     private Class<?> keyClass;
 
     private Class<?> valueClass;
 
-    private int index = -1;
-
-    private List<Column> columns;
+    private int pageSize;
 
+    /**
+     * 
+     * @param selector
+     * @param context
+     * @param ownerColumnFamily
+     * @param rowKey
+     * @param ownerColumn
+     * @param keyClass
+     * @param valueClass
+     * @param pageSize
+     *            The number of columns to read with each slice
+     */
     public ReadMap(Selector selector, ByteConverterContext context, String ownerColumnFamily,
             Bytes rowKey, Bytes ownerColumn, Class<?> keyClass,
-            Class<?> valueClass) {
+            Class<?> valueClass, int pageSize) {
         super(selector, context, ownerColumnFamily, rowKey, ownerColumn);
         this.keyClass = keyClass;
         this.valueClass = valueClass;
+        this.pageSize = pageSize;
     }
 
     /**
-     * Get the slice predicate for selecting all the columns from the given
-     * start key (inclusive). If the key is null, the range reads from the
-     * beginning. Reads up to the max for the given column from start using
-     * count.
+     * Returns true if an entry with the given key is stored. Only the column
+     * of the entry is read
      * 
-     * @param count
-     * @param startKey
+     * @param key
+     *            The stored key, the identity of a persistent key
      * @return
      */
-    public void fetchColumns(int count, Bytes startKey) {
-
-        SliceRange range = new SliceRange();
-
-        int length = ownerColumn.length() + 1;
-
-        if (startKey != null) {
-            length += startKey.length();
-        }
-
-        ByteBuffer startBuff = ByteBuffer.allocate(length);
-        startBuff.mark();
-        startBuff.put(ownerColumn.toByteArray());
-        startBuff.put(DELIM_MIN);
-
-        if (startKey != null) {
-            startBuff.put(startKey.toByteArray());
-        }
-
-        startBuff.reset();
-
-        range.setStart(startBuff);
-
-        ByteBuffer endBuff = ByteBuffer.allocate(ownerColumn.length() + 1);
-        endBuff.mark();
-        endBuff.put(ownerColumn.toByteArray());
-        endBuff.put(DELIM_MAX);
-        endBuff.reset();
-
-        range.setFinish(endBuff);
-        range.setCount(count);
-
-        SlicePredicate predicate = new SlicePredicate();
-
-        predicate.setSlice_range(range);
-
-        columns = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
-                predicate, Consistency.get());
-
+    public boolean containsKey(Object key) {
+        return hasColumn(context.getRowKeyForId(key));
     }
 
-    public int getColumnCount() {
-        return columns == null ? 0 : columns.size();
-    }
+    /**
+     * Read the value of the entry with the given key. Only the column of the
+     * entry is read
+     * 
+     * @param key
+     *            The stored key, the identity of a persistent key
+     * @return The stored value, the identity of a persistent value. Null if
+     *         there's no entry
+     */
+    public Object getValue(Object key) {
+        Column col = fetchColumn(context.getRowKeyForId(key));
 
-    @Override
-    public Iterator<CassEntry> iterator() {
-        return this;
-    }
+        if (col == null) {
+            return null;
+        }
 
-    @Override
-    public boolean hasNext() {
-        return columns != null && index + 1 < columns.size();
+        return context.getObject(col.bufferForValue(), valueClass);
     }
 
     /**
-     * Returns the bytes as an object identity
+     * Iterates over every entry. Columns are read a page at a time as the
+     * iterator advances
      */
     @Override
-    public CassEntry next() {
-        if (++index > columns.size()) {
-            throw new NoSuchElementException("No elements left");
-        }
+    public Iterator<CassEntry> iterator() {
+        final ColumnPager columns = new ColumnPager(pageSize);
 
-        Column col = columns.get(index);
+        return new Iterator<CassEntry>() {
 
-        ByteBuffer buffer = col.name;
-        buffer.position(buffer.position() + ownerColumn.length() + 1);
+            @Override
+            public boolean hasNext() {
+                return columns.hasNext();
+            }
 
-        Object key = context.getObject(buffer, keyClass);
+            @Override
+            public CassEntry next() {
+                Column col = columns.next();
 
-        Object value = context.getObject(col.value, valueClass);
+                Object key = context.getObject(getEntryKey(col), keyClass);
 
-        return new CassEntry(key, value);
+                Object value = context.getObject(col.bufferForValue(), valueClass);
 
-    }
+                return new CassEntry(key, value);
+            }
 
-    @Override
-    public void remove() {
-        throw new UnsupportedOperationException("remove isn't supported");
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException(
+                        "remove isn't supported");
+            }
+        };
     }
 
 }
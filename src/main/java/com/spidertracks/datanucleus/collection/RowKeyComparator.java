@@ -0,0 +1,91 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+import org.datanucleus.store.ExecutionContext;
+
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * Orders persistent objects by the bytes of their row keys, the order their
+ * relation columns are stored in.
+ *
+ * @author Todd Nine
+ *
+ */
+public class RowKeyComparator implements Comparator<Object> {
+
+    private final ExecutionContext ec;
+
+    private final ByteConverterContext context;
+
+    public RowKeyComparator(ExecutionContext ec, ByteConverterContext context) {
+        this.ec = ec;
+        this.context = context;
+    }
+
+    @Override
+    public int compare(Object o1, Object o2) {
+        return compare(getRowKey(o1), getRowKey(o2));
+    }
+
+    /**
+     * Get the row key of a persistent object
+     *
+     * @param pc
+     * @return
+     * @throws IllegalArgumentException
+     *             If the object has no identity, it can't be ordered until
+     *             it's persistent
+     */
+    private ByteBuffer getRowKey(Object pc) {
+        Object id = ec.getApiAdapter().getIdForObject(pc);
+
+        if (id == null) {
+            throw new IllegalArgumentException(
+                    "Only persistent objects can be ordered by their row keys");
+        }
+
+        return context.getRowKeyForId(id).getBytes();
+    }
+
+    /**
+     * Compare the remaining bytes of the buffers as unsigned values, as
+     * Cassandra's BytesType does
+     *
+     * @param b1
+     * @param b2
+     * @return
+     */
+    static int compare(ByteBuffer b1, ByteBuffer b2) {
+        int length = Math.min(b1.remaining(), b2.remaining());
+
+        for (int i = 0; i < length; i++) {
+            int a = b1.get(b1.position() + i) & 0xff;
+            int b = b2.get(b2.position() + i) & 0xff;
+
+            if (a != b) {
+                return a - b;
+            }
+        }
+
+        return b1.remaining() - b2.remaining();
+    }
+}
@@ -0,0 +1,250 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.datanucleus.api.ApiAdapter;
+
+/**
+ * The loaded elements of a {@link LazySortedSet}, ordered by their row keys.
+ * Elements that have no identity yet can't be ordered, so they are held apart
+ * and returned after the ordered elements until they have been persisted.
+ * They are compared by reference, as they have no identity to compare. Range
+ * views only hold the ordered elements.
+ *
+ * @author Todd Nine
+ *
+ */
+class RowKeySortedSet extends AbstractSet<Object> implements SortedSet<Object> {
+
+    private final ApiAdapter adapter;
+
+    private final Comparator<Object> comparator;
+
+    private final TreeSet<Object> ordered;
+
+    /**
+     * Elements without an identity, in the order they were added
+     */
+    private final List<Object> unordered = new ArrayList<Object>();
+
+    public RowKeySortedSet(ApiAdapter adapter, Comparator<Object> comparator) {
+        this.adapter = adapter;
+        this.comparator = comparator;
+        this.ordered = new TreeSet<Object>(comparator);
+    }
+
+    /**
+     * @param element
+     * @return True if the element can be ordered by it's row key
+     */
+    private boolean hasIdentity(Object element) {
+        return element != null && adapter.getIdForObject(element) != null;
+    }
+
+    /**
+     * Move the elements persisted since they were added to the ordered
+     * elements
+     */
+    private void order() {
+        if (unordered.isEmpty()) {
+            return;
+        }
+
+        for (Iterator<Object> it = unordered.iterator(); it.hasNext();) {
+            Object element = it.next();
+
+            if (hasIdentity(element)) {
+                it.remove();
+                ordered.add(element);
+            }
+        }
+    }
+
+    @Override
+    public boolean add(Object e) {
+        order();
+
+        if (hasIdentity(e)) {
+            return ordered.add(e);
+        }
+
+        if (indexOf(e) != -1) {
+            return false;
+        }
+
+        return unordered.add(e);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        order();
+
+        if (hasIdentity(o)) {
+            return ordered.remove(o);
+        }
+
+        int index = indexOf(o);
+
+        if (index == -1) {
+            return false;
+        }
+
+        unordered.remove(index);
+
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        order();
+
+        if (hasIdentity(o)) {
+            return ordered.contains(o);
+        }
+
+        return indexOf(o) != -1;
+    }
+
+    /**
+     * @param element
+     * @return The position of the element in the unordered elements, -1 if
+     *         it isn't one of them
+     */
+    private int indexOf(Object element) {
+        for (int i = 0; i < unordered.size(); i++) {
+            if (unordered.get(i) == element) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        order();
+
+        return ordered.size() + unordered.size();
+    }
+
+    @Override
+    public void clear() {
+        ordered.clear();
+        unordered.clear();
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        order();
+
+        return new Iterator<Object>() {
+
+            private final Iterator<Object> orderedElements = ordered
+                    .iterator();
+
+            private final Iterator<Object> unorderedElements = unordered
+                    .iterator();
+
+            private Iterator<Object> last;
+
+            @Override
+            public boolean hasNext() {
+                return orderedElements.hasNext()
+                        || unorderedElements.hasNext();
+            }
+
+            @Override
+            public Object next() {
+                last = orderedElements.hasNext() ? orderedElements
+                        : unorderedElements;
+
+                return last.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+
+                last.remove();
+                last = null;
+            }
+        };
+    }
+
+    @Override
+    public Comparator<Object> comparator() {
+        return comparator;
+    }
+
+    @Override
+    public Object first() {
+        order();
+
+        if (!ordered.isEmpty()) {
+            return ordered.first();
+        }
+
+        if (unordered.isEmpty()) {
+            throw new NoSuchElementException("The set is empty");
+        }
+
+        return unordered.get(0);
+    }
+
+    @Override
+    public Object last() {
+        order();
+
+        if (!unordered.isEmpty()) {
+            return unordered.get(unordered.size() - 1);
+        }
+
+        return ordered.last();
+    }
+
+    @Override
+    public SortedSet<Object> headSet(Object toElement) {
+        order();
+
+        return ordered.headSet(toElement);
+    }
+
+    @Override
+    public SortedSet<Object> tailSet(Object fromElement) {
+        order();
+
+        return ordered.tailSet(fromElement);
+    }
+
+    @Override
+    public SortedSet<Object> subSet(Object fromElement, Object toElement) {
+        order();
+
+        return ordered.subSet(fromElement, toElement);
+    }
+}
@@ -21,10 +21,10 @@ import java.nio.ByteBuffer;
 
 import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
 
 /**
  * Object for writing collection columns
@@ -47,7 +47,36 @@ public class WriteCollection extends ExternalEntityWriter {
      * Write the relationship column
      * @param mutator
      */
-    public void writeRelationship(Mutator mutator, Object entityKey) {
+    public void writeRelationship(BatchMutator mutator, Object entityKey) {
+        ByteBuffer buffer = getRelationshipColumn(entityKey);
+        
+        if (!super.addStoredColumn(buffer, PLACEHOLDER)) {
+            return;
+        }
+
+        Column keyColumn = mutator.newColumn(Bytes.fromByteBuffer(buffer),
+                PLACEHOLDER);
+
+        mutator.writeColumn(ownerColumnFamily, rowKey, keyColumn, true);
+
+    }
+
+    /**
+     * Remove the relationship column
+     * @param mutator
+     * @param entityKey
+     */
+    public void removeRelationship(BatchMutator mutator, Object entityKey) {
+        mutator.deleteColumn(ownerColumnFamily, rowKey,
+                Bytes.fromByteBuffer(getRelationshipColumn(entityKey)));
+    }
+
+    /**
+     * Get the name of the relationship column for the entity
+     * @param entityKey
+     * @return
+     */
+    private ByteBuffer getRelationshipColumn(Object entityKey) {
         // a DRE, take the property +256 bytes so the buffer hopefully won't need to be re-allocated and copied.
         ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 256);
 
@@ -58,13 +87,7 @@ public class WriteCollection extends ExternalEntityWriter {
         buffer.limit(buffer.position());
 
         buffer.reset();
-        
-        super.addStoredColumn(buffer);
-
-        Column keyColumn = mutator.newColumn(Bytes.fromByteBuffer(buffer),
-                PLACEHOLDER);
-
-        mutator.writeColumn(ownerColumnFamily, rowKey, keyColumn, true);
 
+        return buffer;
     }
 }
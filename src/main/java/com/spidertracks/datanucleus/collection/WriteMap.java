@@ -21,10 +21,10 @@ import java.nio.ByteBuffer;
 
 import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
 
 /**
  * Object for writing collection columns
@@ -45,7 +45,7 @@ public class WriteMap extends ExternalEntityWriter {
      * Write the relationship column
      * @param mutator
      */
-    public void writeRelationship(Mutator mutator, Object key, Object entityKey) {
+    public void writeRelationship(BatchMutator mutator, Object key, Object entityKey) {
         // a DRE, take the property +256 bytes so the buffer hopefully won't need to be re-allocated and copied.
         ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 256);
 
@@ -56,15 +56,39 @@ public class WriteMap extends ExternalEntityWriter {
         buffer.limit(buffer.position());
         buffer.reset();
         
-        super.addStoredColumn(buffer);
-        
         ByteBuffer value = context.getRowKeyForId(entityKey, null);
         value.reset();
 
+        Bytes valueBytes = Bytes.fromByteBuffer(value);
+
+        // unchanged entry
+        if (!super.addStoredColumn(buffer, valueBytes)) {
+            return;
+        }
+
         Column keyColumn = mutator.newColumn(Bytes.fromByteBuffer(buffer),
-                Bytes.fromByteBuffer(value));
+                valueBytes);
 
         mutator.writeColumn(ownerColumnFamily, rowKey, keyColumn, true);
 
     }
+
+    /**
+     * Remove the relationship column of the key
+     * @param mutator
+     * @param key
+     */
+    public void removeRelationship(BatchMutator mutator, Object key) {
+        ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 256);
+
+        buffer.mark();
+        buffer.put(ownerColumn.toByteArray());
+        buffer.put(DELIM_MIN);
+        buffer = context.getRowKeyForId(key, buffer);
+        buffer.limit(buffer.position());
+        buffer.reset();
+
+        mutator.deleteColumn(ownerColumnFamily, rowKey,
+                Bytes.fromByteBuffer(buffer));
+    }
 }
@@ -0,0 +1,724 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnName;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getFetchColumnList;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.isCached;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.FetchPlan;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.Relation;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.FieldValues2;
+import org.datanucleus.store.ObjectProvider;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.CassandraFetchFieldManager;
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.cache.RowCache;
+import com.spidertracks.datanucleus.cache.RowKey;
+import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.collection.ReadCollection;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * Loads many objects at once. Rather than issuing a read per identity, the
+ * identities are grouped by their class and fetched with multiget slices of at
+ * most the configured batch size. The columns are handed straight to the
+ * {@link CassandraFetchFieldManager} so no further reads are required to
+ * populate the objects. Rows of cached classes are read from the row cache
+ * when present.
+ *
+ * When a prefetch depth is configured, the objects referenced by to-one and
+ * collection relations of the rows are read the same way before the rows are
+ * loaded, one level at a time, so the relations are found in the execution
+ * context rather than read one by one.
+ *
+ * @author Todd Nine
+ *
+ */
+public class BatchFetchManager {
+
+    private CassandraStoreManager manager;
+
+    /**
+     * The number of multiget slices sent
+     */
+    private final AtomicLong multigets = new AtomicLong();
+
+    public BatchFetchManager(CassandraStoreManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Find and populate the objects with the given identities.
+     *
+     * @param ec
+     *            The execution context to load the objects into
+     * @param ids
+     *            The identities of the objects to load
+     * @param targetClasses
+     *            The concrete class of each identity. Must be the same length
+     *            as ids. Identities with a null class are skipped
+     * @return An array the same length as ids. Each element is the loaded
+     *         object, or null if no row exists for the identity
+     */
+    public Object[] findObjects(ExecutionContext ec, Object[] ids,
+            Class<?>[] targetClasses) {
+
+        Set<Object> loading = new HashSet<Object>();
+        Collections.addAll(loading, ids);
+
+        return findObjects(ec, ids, targetClasses, manager.getPrefetchDepth(),
+                loading);
+    }
+
+    /**
+     * Find and populate the objects with the given identities, prefetching
+     * their relations to the given depth
+     *
+     * @param ec
+     * @param ids
+     * @param targetClasses
+     * @param depth
+     * @param loading
+     *            Every id loaded by this call or a call above it. They aren't
+     *            prefetched again
+     * @return
+     */
+    private Object[] findObjects(ExecutionContext ec, Object[] ids,
+            Class<?>[] targetClasses, int depth, Set<Object> loading) {
+
+        Object[] results = new Object[ids.length];
+
+        // group our positions by class. Each class has it's own column family
+        // and column list
+        Map<Class<?>, List<Integer>> positions = new LinkedHashMap<Class<?>, List<Integer>>();
+
+        for (int i = 0; i < ids.length; i++) {
+            if (targetClasses[i] == null) {
+                continue;
+            }
+
+            List<Integer> group = positions.get(targetClasses[i]);
+
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                positions.put(targetClasses[i], group);
+            }
+
+            group.add(i);
+        }
+
+        ByteConverterContext byteContext = manager.getByteConverterContext();
+
+        List<RowGroup> groups = new ArrayList<RowGroup>(positions.size());
+
+        for (Map.Entry<Class<?>, List<Integer>> entry : positions.entrySet()) {
+            AbstractClassMetaData metaData = ec.getMetaDataManager()
+                    .getMetaDataForClass(entry.getKey(),
+                            ec.getClassLoaderResolver());
+
+            List<Bytes> keys = new ArrayList<Bytes>(entry.getValue().size());
+
+            for (int position : entry.getValue()) {
+                keys.add(byteContext.getRowKeyForId(ids[position]));
+            }
+
+            groups.add(new RowGroup(metaData, keys));
+        }
+
+        readGroups(groups);
+
+        Map<RowKey, Map<Bytes, List<Column>>> pages = prefetch(ec, groups,
+                depth, loading);
+
+        Selector selector = Pelops.createSelector(manager.getPoolName());
+
+        int index = 0;
+
+        for (Map.Entry<Class<?>, List<Integer>> entry : positions.entrySet()) {
+            RowGroup group = groups.get(index++);
+
+            String columnFamily = group.getColumnFamily();
+            int[] fieldNumbers = group.metaData.getAllMemberPositions();
+
+            for (int i = 0; i < group.keys.size(); i++) {
+                Bytes key = group.keys.get(i);
+                List<Column> columns = group.rows.get(key);
+
+                // the row has been removed since the keys were read
+                if (columns == null) {
+                    continue;
+                }
+
+                int position = entry.getValue().get(i);
+
+                results[position] = ec.findObject(ids[position],
+                        new ColumnFieldValues(columns, columnFamily, key,
+                                fieldNumbers, selector, pages.get(new RowKey(
+                                        columnFamily, key))), entry.getKey(),
+                        false);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Load every field of the object providers with multiget slices. Used to
+     * locate many objects at once
+     *
+     * @param ops
+     * @throws NucleusObjectNotFoundException
+     *             If the row of any object doesn't exist
+     */
+    public void locateObjects(ObjectProvider[] ops) {
+
+        if (ops.length == 0) {
+            return;
+        }
+
+        // group by class, each class has it's own column family and column
+        // list
+        Map<AbstractClassMetaData, List<ObjectProvider>> providers = new LinkedHashMap<AbstractClassMetaData, List<ObjectProvider>>();
+
+        Set<Object> loading = new HashSet<Object>();
+
+        for (ObjectProvider op : ops) {
+            List<ObjectProvider> group = providers.get(op.getClassMetaData());
+
+            if (group == null) {
+                group = new ArrayList<ObjectProvider>();
+                providers.put(op.getClassMetaData(), group);
+            }
+
+            group.add(op);
+            loading.add(op.getInternalObjectId());
+        }
+
+        ByteConverterContext byteContext = manager.getByteConverterContext();
+
+        List<RowGroup> groups = new ArrayList<RowGroup>(providers.size());
+
+        for (Map.Entry<AbstractClassMetaData, List<ObjectProvider>> entry : providers
+                .entrySet()) {
+
+            List<Bytes> keys = new ArrayList<Bytes>(entry.getValue().size());
+
+            for (ObjectProvider op : entry.getValue()) {
+                keys.add(byteContext.getRowKey(op));
+            }
+
+            groups.add(new RowGroup(entry.getKey(), keys));
+        }
+
+        readGroups(groups);
+
+        ExecutionContext ec = ops[0].getExecutionContext();
+
+        Map<RowKey, Map<Bytes, List<Column>>> pages = prefetch(ec, groups,
+                manager.getPrefetchDepth(), loading);
+
+        Selector selector = Pelops.createSelector(manager.getPoolName());
+
+        int index = 0;
+
+        for (List<ObjectProvider> group : providers.values()) {
+            RowGroup rows = groups.get(index++);
+
+            String columnFamily = rows.getColumnFamily();
+            int[] fieldNumbers = rows.metaData.getAllMemberPositions();
+
+            for (int i = 0; i < rows.keys.size(); i++) {
+                ObjectProvider op = group.get(i);
+                Bytes key = rows.keys.get(i);
+                List<Column> columns = rows.rows.get(key);
+
+                if (columns == null) {
+                    throw new NucleusObjectNotFoundException(
+                            "Object not found", op.getExternalObjectId());
+                }
+
+                CassandraFetchFieldManager fieldManager = new CassandraFetchFieldManager(
+                        columns, op, columnFamily, key, selector);
+
+                fieldManager.setRelationPages(pages.get(new RowKey(
+                        columnFamily, key)));
+
+                op.replaceFields(fieldNumbers, fieldManager);
+            }
+        }
+    }
+
+    /**
+     * Read the rows of every group. The groups are read in parallel
+     *
+     * @param groups
+     */
+    private void readGroups(List<RowGroup> groups) {
+        List<Callable<Map<Bytes, List<Column>>>> reads = new ArrayList<Callable<Map<Bytes, List<Column>>>>(
+                groups.size());
+
+        for (final RowGroup group : groups) {
+            reads.add(new Callable<Map<Bytes, List<Column>>>() {
+                @Override
+                public Map<Bytes, List<Column>> call() throws Exception {
+                    return readRows(group.metaData, group.getColumnFamily(),
+                            group.keys,
+                            Pelops.createSelector(manager.getPoolName()));
+                }
+            });
+        }
+
+        List<Map<Bytes, List<Column>>> results = invokeAll(reads);
+
+        for (int i = 0; i < groups.size(); i++) {
+            groups.get(i).rows = results.get(i);
+        }
+    }
+
+    /**
+     * Load the objects referenced by the rows into the execution context, to
+     * the given depth. The first page of each eager collection relation is
+     * read with a multiget across all rows of a group, and returned so it
+     * isn't read again when the rows are loaded
+     *
+     * @param ec
+     * @param groups
+     *            The rows that have been read
+     * @param depth
+     *            The number of levels of relations to load
+     * @param loading
+     *            Ids already being loaded, these aren't read again
+     * @return The first page of each collection relation, by row and then
+     *         column name of the field
+     */
+    private Map<RowKey, Map<Bytes, List<Column>>> prefetch(
+            ExecutionContext ec, List<RowGroup> groups, int depth,
+            Set<Object> loading) {
+
+        Map<RowKey, Map<Bytes, List<Column>>> pages = new HashMap<RowKey, Map<Bytes, List<Column>>>();
+
+        if (depth <= 0) {
+            return pages;
+        }
+
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        ByteConverterContext byteContext = manager.getByteConverterContext();
+        int pageSize = manager.getPageSize(ec);
+
+        // the ids referenced by every row, in the order they're found
+        Set<Object> referenced = new LinkedHashSet<Object>();
+
+        final List<PageRead> pageReads = new ArrayList<PageRead>();
+
+        for (RowGroup group : groups) {
+            if (group.rows.isEmpty()) {
+                continue;
+            }
+
+            for (int fieldNumber : group.metaData.getAllMemberPositions()) {
+                AbstractMemberMetaData fieldMetaData = group.metaData
+                        .getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
+
+                int relationType = fieldMetaData.getRelationType(clr);
+
+                Bytes columnName = getColumnName(group.metaData, fieldNumber);
+
+                if ((relationType == Relation.ONE_TO_ONE_BI
+                        || relationType == Relation.ONE_TO_ONE_UNI || relationType == Relation.MANY_TO_ONE_BI)
+                        && !fieldMetaData.isEmbedded()) {
+
+                    for (List<Column> columns : group.rows.values()) {
+                        Column column = findColumn(columns, columnName);
+
+                        if (column != null) {
+                            referenced.add(byteContext.getObjectIdentity(ec,
+                                    fieldMetaData.getType(),
+                                    Bytes.fromByteBuffer(column
+                                            .bufferForValue())));
+                        }
+                    }
+
+                } else if ((relationType == Relation.MANY_TO_MANY_BI
+                        || relationType == Relation.ONE_TO_MANY_BI || relationType == Relation.ONE_TO_MANY_UNI)
+                        && fieldMetaData.hasCollection()
+                        && !manager.isLazyCollection(fieldMetaData, clr)) {
+
+                    Class<?> elementClass = clr.classForName(fieldMetaData
+                            .getCollection().getElementType());
+
+                    // only used to build the predicate and read the element
+                    // ids, so no row key
+                    ReadCollection reader = new ReadCollection(null,
+                            byteContext, group.getColumnFamily(), null,
+                            columnName, ec, elementClass, pageSize);
+
+                    pageReads.add(new PageRead(group, columnName, reader,
+                            reader.getPagePredicate(pageSize)));
+                }
+            }
+        }
+
+        // the first page of every collection, one multiget per group and field
+        List<Callable<Map<Bytes, List<Column>>>> reads = new ArrayList<Callable<Map<Bytes, List<Column>>>>(
+                pageReads.size());
+
+        for (final PageRead read : pageReads) {
+            reads.add(new Callable<Map<Bytes, List<Column>>>() {
+                @Override
+                public Map<Bytes, List<Column>> call() throws Exception {
+                    return multiget(read.group.getColumnFamily(),
+                            new ArrayList<Bytes>(read.group.rows.keySet()),
+                            read.predicate,
+                            Pelops.createSelector(manager.getPoolName()));
+                }
+            });
+        }
+
+        List<Map<Bytes, List<Column>>> results = invokeAll(reads);
+
+        for (int i = 0; i < pageReads.size(); i++) {
+            PageRead read = pageReads.get(i);
+            String columnFamily = read.group.getColumnFamily();
+
+            for (Map.Entry<Bytes, List<Column>> row : results.get(i)
+                    .entrySet()) {
+
+                List<Column> page = row.getValue();
+
+                if (page == null) {
+                    page = Collections.emptyList();
+                }
+
+                RowKey rowKey = new RowKey(columnFamily, row.getKey());
+
+                Map<Bytes, List<Column>> rowPages = pages.get(rowKey);
+
+                if (rowPages == null) {
+                    rowPages = new HashMap<Bytes, List<Column>>();
+                    pages.put(rowKey, rowPages);
+                }
+
+                rowPages.put(read.columnName, page);
+
+                for (Column column : page) {
+                    referenced.add(read.reader.getIdentity(column));
+                }
+            }
+        }
+
+        // nothing to read for ids we're already loading or are managed
+        List<Object> ids = new ArrayList<Object>(referenced.size());
+
+        for (Object id : referenced) {
+            if (loading.add(id) && ec.getObjectFromCache(id) == null) {
+                ids.add(id);
+            }
+        }
+
+        if (ids.isEmpty()) {
+            return pages;
+        }
+
+        Object[] idArray = ids.toArray();
+
+        String[] classNames = manager.getClassNamesForObjectIDs(idArray, clr,
+                ec);
+
+        Class<?>[] targetClasses = new Class<?>[idArray.length];
+
+        for (int i = 0; i < idArray.length; i++) {
+            if (classNames[i] != null) {
+                targetClasses[i] = clr.classForName(classNames[i]);
+            }
+        }
+
+        // loads the next level first, then these objects into the context
+        findObjects(ec, idArray, targetClasses, depth - 1, loading);
+
+        return pages;
+    }
+
+    /**
+     * Find the column with the given name
+     *
+     * @param columns
+     * @param name
+     * @return The column or null if it isn't present
+     */
+    private static Column findColumn(List<Column> columns, Bytes name) {
+        for (Column column : columns) {
+            if (name.equals(Bytes.fromByteBuffer(column.bufferForName()))) {
+                return column;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Run the reads in parallel
+     *
+     * @param reads
+     * @return
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> reads) {
+        try {
+            return manager.getExecutor().invokeAll(reads);
+        } catch (NucleusException ne) {
+            throw ne;
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the columns of every field of the class for all keys. Rows of cached
+     * classes are read from the row cache when present, all others are read
+     * with multiget slices of at most the batch size
+     *
+     * @param metaData
+     * @param columnFamily
+     * @param keys
+     * @param selector
+     * @return The columns of each key. Keys with no row are not present
+     */
+    private Map<Bytes, List<Column>> readRows(AbstractClassMetaData metaData,
+            String columnFamily, List<Bytes> keys, Selector selector) {
+
+        Map<Bytes, List<Column>> results = new HashMap<Bytes, List<Column>>(
+                keys.size());
+
+        SlicePredicate predicate = getFetchColumnList(metaData,
+                metaData.getAllMemberPositions());
+
+        RowCache cache = isCached(metaData) ? manager.getRowCache() : null;
+
+        List<Bytes> uncached = keys;
+
+        // the version of each row read, so a row written meanwhile isn't
+        // cached
+        Map<Bytes, Long> versions = null;
+
+        // load everything we can from the cache first
+        if (cache != null) {
+            uncached = new ArrayList<Bytes>(keys.size());
+            versions = new HashMap<Bytes, Long>(keys.size());
+
+            for (Bytes key : keys) {
+                List<Column> columns = cache.get(columnFamily, key);
+
+                if (columns == null) {
+                    uncached.add(key);
+                    versions.put(key,
+                            manager.getRowVersion(columnFamily, key));
+                    continue;
+                }
+
+                results.put(key, columns);
+            }
+        }
+
+        Map<Bytes, List<Column>> rows = multiget(columnFamily, uncached,
+                predicate, selector);
+
+        for (Map.Entry<Bytes, List<Column>> row : rows.entrySet()) {
+            List<Column> columns = row.getValue();
+
+            // multiget returns an empty list for missing rows
+            if (columns == null || columns.size() == 0) {
+                continue;
+            }
+
+            if (cache != null) {
+                manager.cacheRow(columnFamily, row.getKey(), columns,
+                        versions.get(row.getKey()));
+            }
+
+            results.put(row.getKey(), columns);
+        }
+
+        return results;
+    }
+
+    /**
+     * Read the keys with multiget slices of at most the batch size
+     *
+     * @param columnFamily
+     * @param keys
+     * @param predicate
+     * @param selector
+     * @return The columns of each key as returned by Cassandra
+     */
+    private Map<Bytes, List<Column>> multiget(String columnFamily,
+            List<Bytes> keys, SlicePredicate predicate, Selector selector) {
+
+        Map<Bytes, List<Column>> results = new HashMap<Bytes, List<Column>>(
+                keys.size());
+
+        int batchSize = manager.getMultigetSize();
+
+        for (int start = 0; start < keys.size(); start += batchSize) {
+
+            List<Bytes> chunk = keys.subList(start,
+                    Math.min(start + batchSize, keys.size()));
+
+            multigets.incrementAndGet();
+
+            try {
+                results.putAll(selector.getColumnsFromRows(columnFamily, chunk,
+                        predicate, Consistency.get()));
+            } catch (Exception e) {
+                throw new NucleusDataStoreException(e.getMessage(), e);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * @return The number of multiget slices sent since the factory was
+     *         created
+     */
+    public long getMultigetCount() {
+        return multigets.get();
+    }
+
+    /**
+     * The keys of a single class and the rows read for them
+     *
+     * @author Todd Nine
+     *
+     */
+    private static class RowGroup {
+
+        private final AbstractClassMetaData metaData;
+        private final List<Bytes> keys;
+        private Map<Bytes, List<Column>> rows;
+
+        public RowGroup(AbstractClassMetaData metaData, List<Bytes> keys) {
+            this.metaData = metaData;
+            this.keys = keys;
+        }
+
+        public String getColumnFamily() {
+            return getColumnFamily(metaData);
+        }
+    }
+
+    /**
+     * The first page of a collection field to read for every row of a group
+     *
+     * @author Todd Nine
+     *
+     */
+    private static class PageRead {
+
+        private final RowGroup group;
+        private final Bytes columnName;
+        private final ReadCollection reader;
+        private final SlicePredicate predicate;
+
+        public PageRead(RowGroup group, Bytes columnName,
+                ReadCollection reader, SlicePredicate predicate) {
+            this.group = group;
+            this.columnName = columnName;
+            this.reader = reader;
+            this.predicate = predicate;
+        }
+    }
+
+    /**
+     * Populates an object provider with columns that have already been read
+     *
+     * @author Todd Nine
+     *
+     */
+    private static class ColumnFieldValues implements FieldValues2 {
+
+        private List<Column> columns;
+        private String columnFamily;
+        private Bytes rowKey;
+        private int[] fieldNumbers;
+        private Selector selector;
+        private Map<Bytes, List<Column>> relationPages;
+
+        public ColumnFieldValues(List<Column> columns, String columnFamily,
+                Bytes rowKey, int[] fieldNumbers, Selector selector,
+                Map<Bytes, List<Column>> relationPages) {
+            this.columns = columns;
+            this.columnFamily = columnFamily;
+            this.rowKey = rowKey;
+            this.fieldNumbers = fieldNumbers;
+            this.selector = selector;
+            this.relationPages = relationPages;
+        }
+
+        @Override
+        public void fetchFields(ObjectProvider op) {
+            op.replaceFields(fieldNumbers, newFieldManager(op));
+        }
+
+        @Override
+        public void fetchNonLoadedFields(ObjectProvider op) {
+            op.replaceNonLoadedFields(fieldNumbers, newFieldManager(op));
+        }
+
+        @Override
+        public FetchPlan getFetchPlanForLoading() {
+            return null;
+        }
+
+        private CassandraFetchFieldManager newFieldManager(ObjectProvider op) {
+            CassandraFetchFieldManager fieldManager = new CassandraFetchFieldManager(
+                    columns, op, columnFamily, rowKey, selector);
+
+            // the pages are only good for the first load
+            fieldManager.setRelationPages(relationPages);
+            relationPages = null;
+
+            return fieldManager;
+        }
+
+    }
+}
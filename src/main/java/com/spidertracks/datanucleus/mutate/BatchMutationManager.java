@@ -16,25 +16,42 @@ Contributors : Todd Nine
  ***********************************************************************/
 package com.spidertracks.datanucleus.mutate;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.datanucleus.Transaction;
+import org.datanucleus.TransactionEventListener;
+import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.scale7.cassandra.pelops.Pelops;
 
 import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.cache.RowKey;
 
 /**
- * Internalises all pending operations for a given Execution context.
+ * Internalises all pending operations for a given Execution context. A single
+ * instance is shared by every thread using the persistence manager factory, so
+ * the pending operations are held in a concurrent map and are always removed
+ * when the root operation of a context completes, even if it fails.
+ * 
+ * When write buffering is enabled, the root operation of a context with an
+ * active transaction does not send anything. All operations of the transaction
+ * are sent together when it starts to commit, so a failed send aborts the
+ * commit, and dropped if it rolls back. Writes made while the transaction is
+ * committing are sent immediately.
  * 
  * @author Todd Nine
  * 
  */
 public class BatchMutationManager {
 
-    private Map<ExecutionContext, ExecutionContextMutate> contextMutations = new HashMap<ExecutionContext, ExecutionContextMutate>();
-    private Map<ExecutionContext, ExecutionContextDelete> contextDeletions = new HashMap<ExecutionContext, ExecutionContextDelete>();
+    private ConcurrentMap<ExecutionContext, ExecutionContextMutate> contextMutations = new ConcurrentHashMap<ExecutionContext, ExecutionContextMutate>();
+
+    private ConcurrentMap<ExecutionContext, TransactionFlush> transactions = new ConcurrentHashMap<ExecutionContext, TransactionFlush>();
 
     private CassandraStoreManager manager;
 
@@ -42,12 +59,17 @@ public class BatchMutationManager {
         this.manager = manager;
     }
 
-    public ExecutionContextDelete beginDelete(ExecutionContext context,
+    /**
+     * Signal a delete is about to start. Deletes share the batch of any write
+     * in progress for the context
+     * 
+     * @param context
+     * @param op
+     * @return
+     */
+    public ExecutionContextMutate beginDelete(ExecutionContext context,
             ObjectProvider op) {
-        ExecutionContextDelete deleteContext = getDeletions(context);
-        deleteContext.pushInstance();
-        return deleteContext;
-
+        return beginWrite(context);
     }
 
     public ExecutionContextMutate beginWrite(ExecutionContext context) {
@@ -57,26 +79,15 @@ public class BatchMutationManager {
     }
 
     /**
-     * Returns true if this is the last object to end writing. This mean the
-     * mutation for this context should be saved
+     * Signal the delete has completed. If this is the root operation for the
+     * context, all deletes and writes are sent in a single batch
      * 
      * @param context
-     * @param sm
-     * @return
      * @throws Exception
      */
     public void endDelete(ExecutionContext context)
             throws Exception {
-        // not our root instance, don't create a batch mutation
-        if (!getDeletions(context).popInstance()) {
-            return;
-        }
-
-        // it is our root instance, create the batch mutation.
-
-        getDeletions(context).execute();
-        contextDeletions.remove(context);
-
+        endWrite(context);
     }
 
     /**
@@ -90,34 +101,116 @@ public class BatchMutationManager {
      */
     public void endWrite(ExecutionContext context)
             throws Exception {
+        ExecutionContextMutate operations = contextMutations.get(context);
+
+        // already aborted, nothing left to send
+        if (operations == null) {
+            return;
+        }
+
         // not our root instance, don't create a batch mutation
-        if (!getMutations(context).popInstance()) {
+        if (!operations.popInstance()) {
             return;
         }
 
-        // it is our root instance, create the batch mutation.
+        if (manager.isBufferWrites()) {
+            Transaction tx = context.getTransaction();
+
+            if (tx != null && tx.isActive()) {
+                TransactionFlush listener = transactions.get(context);
+
+                if (listener == null) {
+                    listener = new TransactionFlush(context);
+                    transactions.put(context, listener);
+                    tx.addTransactionEventListener(listener);
+                }
 
-        getMutations(context).execute();
-        contextMutations.remove(context);
+                if (!listener.isCommitting()) {
+                    operations.setBuffered(true);
+                    return;
+                }
+            }
+        }
+
+        // it is our root instance, create the batch mutation. Always release
+        // the context, a failed batch must not be retried by the next write
+        flush(context, operations);
 
     }
 
     /**
-     * Get the mutations for this execution context
+     * Signal a write or delete has failed. If this is the root instance all
+     * pending operations for the context are discarded without being sent
      * 
      * @param context
-     * @return
      */
-    private ExecutionContextMutate getMutations(ExecutionContext context) {
+    public void abort(ExecutionContext context) {
         ExecutionContextMutate operations = contextMutations.get(context);
 
         if (operations == null) {
-            operations = new ExecutionContextMutate(context,
-                    Pelops.createMutator(manager.getPoolName(), System.currentTimeMillis()));
-            contextMutations.put(context, operations);
+            return;
+        }
+
+        if (!operations.popInstance()) {
+            return;
+        }
+
+        // we can't tell which of the buffered operations belong to the failed
+        // one, so nothing from this transaction may be sent
+        if (operations.isBuffered()) {
+            context.getTransaction().setRollbackOnly();
+        }
+
+        operations.discard();
+        contextMutations.remove(context, operations);
+    }
+
+    /**
+     * Send all pending operations and release the context
+     * 
+     * @param context
+     * @param operations
+     * @throws Exception
+     */
+    private void flush(ExecutionContext context,
+            ExecutionContextMutate operations) throws Exception {
+        List<RowKey> rows = operations.getMutator().getRows();
+
+        try {
+            operations.execute();
+        } finally {
+            contextMutations.remove(context, operations);
+
+            // drop anything cached while the batch was in flight
+            for (RowKey row : rows) {
+                manager.invalidateRow(row.getColumnFamily(), row.getKey());
+            }
         }
+    }
+
+    /**
+     * Release the context without sending any pending operations
+     * 
+     * @param context
+     * @param operations
+     */
+    private void discard(ExecutionContext context,
+            ExecutionContextMutate operations) {
+        operations.discard();
+        contextMutations.remove(context, operations);
+    }
 
-        return operations;
+    /**
+     * @return The number of execution contexts with operations in progress or
+     *         a transaction waiting to commit. Zero once every context has
+     *         finished
+     */
+    public int getContextCount() {
+        Set<ExecutionContext> contexts = new HashSet<ExecutionContext>(
+                contextMutations.keySet());
+        contexts.addAll(transactions.keySet());
+
+        return contexts.size();
     }
 
     /**
@@ -126,16 +219,108 @@ public class BatchMutationManager {
      * @param context
      * @return
      */
-    private ExecutionContextDelete getDeletions(ExecutionContext context) {
-        ExecutionContextDelete operations = contextDeletions.get(context);
+    private ExecutionContextMutate getMutations(ExecutionContext context) {
+        ExecutionContextMutate operations = contextMutations.get(context);
 
-        if (operations == null) {
-            operations = new ExecutionContextDelete(context, Pelops
-                    .createRowDeletor(manager.getPoolName(), System.currentTimeMillis()));
-            contextDeletions.put(context, operations);
+        if (operations != null) {
+            return operations;
+        }
+
+        operations = new ExecutionContextMutate(context, new BatchMutator(
+                Pelops.getDbConnPool(manager.getPoolName()),
+                manager.getMaxBatchMutations(), manager.getMaxBatchBytes(),
+                manager.getExecutor()));
+
+        ExecutionContextMutate existing = contextMutations.putIfAbsent(
+                context, operations);
+
+        return existing == null ? operations : existing;
+    }
+
+    /**
+     * Sends the buffered operations of a context before its transaction
+     * commits, and drops them when it rolls back
+     * 
+     * @author Todd Nine
+     * 
+     */
+    private class TransactionFlush implements TransactionEventListener {
+
+        private ExecutionContext context;
+
+        private boolean committing;
+
+        public TransactionFlush(ExecutionContext context) {
+            this.context = context;
+        }
+
+        /**
+         * @return True once the buffered operations have been sent
+         */
+        public boolean isCommitting() {
+            return committing;
+        }
+
+        /**
+         * Release the context and drop anything still buffered
+         */
+        private void release() {
+            transactions.remove(context, this);
+
+            ExecutionContextMutate operations = contextMutations.get(context);
+
+            if (operations != null && operations.isBuffered()) {
+                discard(context, operations);
+            }
+        }
+
+        public void transactionPreCommit() {
+            committing = true;
+
+            ExecutionContextMutate operations = contextMutations.get(context);
+
+            if (operations == null || !operations.isBuffered()) {
+                return;
+            }
+
+            try {
+                flush(context, operations);
+            } catch (Exception e) {
+                throw new NucleusDataStoreException(e.getMessage(), e);
+            }
+        }
+
+        public void transactionCommitted() {
+        }
+
+        public void transactionRolledBack() {
+            release();
+        }
+
+        public void transactionEnded() {
+            release();
         }
 
-        return operations;
+        public void transactionStarted() {
+        }
+
+        public void transactionPreFlush() {
+        }
+
+        public void transactionFlushed() {
+        }
+
+        public void transactionPreRollBack() {
+        }
+
+        public void transactionSetSavepoint(String name) {
+        }
+
+        public void transactionReleaseSavepoint(String name) {
+        }
+
+        public void transactionRollbackToSavepoint(String name) {
+        }
     }
 
 }
@@ -0,0 +1,538 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Operand;
+import org.scale7.cassandra.pelops.pool.IThriftPool;
+import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
+
+import com.spidertracks.datanucleus.cache.RowKey;
+import com.spidertracks.datanucleus.collection.ChangeTracker;
+import com.spidertracks.datanucleus.utils.ParallelExecutor;
+
+/**
+ * Buffers column writes, column deletes and row deletes and sends them to
+ * Cassandra with a single batch_mutate. Pelops' Mutator can't delete an entire
+ * row, which would force every row removal into it's own round trip via the
+ * RowDeletor.
+ * 
+ * Mutations are coalesced as they are buffered. A later write or delete of a
+ * column replaces any earlier one for the same column, and a row delete drops
+ * every column mutation buffered before it.
+ * 
+ * Large batches are split into several batch_mutate calls of at most the
+ * configured number of mutations and estimated bytes, which may be sent in
+ * parallel.
+ * 
+ * Timestamps are taken when the mutations are sent, not when they are
+ * buffered, so a transaction that commits later wins over one that committed
+ * before it. Timestamps are always read from the clock, never advanced past
+ * it, so writes from other clients or after a restart are not shadowed.
+ * The tombstone of a row deleted before columns were written to it is sent
+ * one tick earlier, otherwise it would shadow them.
+ *
+ * @author Todd Nine
+ *
+ */
+public class BatchMutator extends Operand {
+
+    // estimated thrift overhead of each mutation, row and column family
+    private static final int OVERHEAD = 32;
+
+    private final int maxMutations;
+
+    private final long maxBytes;
+
+    private final ParallelExecutor executor;
+
+    private final Map<ByteBuffer, Map<String, RowMutations>> batch = new LinkedHashMap<ByteBuffer, Map<String, RowMutations>>();
+
+    /**
+     * Relations whose changes are in the batch, with their change count when
+     * they were written
+     */
+    private final Map<ChangeTracker, Integer> tracked = new IdentityHashMap<ChangeTracker, Integer>();
+
+    /**
+     * @param thrift
+     * @param maxMutations
+     *            The maximum mutations in a single batch_mutate. 0 for no
+     *            limit
+     * @param maxBytes
+     *            The maximum estimated size of a single batch_mutate. 0 for no
+     *            limit
+     * @param executor
+     *            Used to send split batches in parallel
+     */
+    public BatchMutator(IThriftPool thrift, int maxMutations, long maxBytes,
+            ParallelExecutor executor) {
+        super(thrift);
+        this.maxMutations = maxMutations;
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+    }
+
+    /**
+     * Create a new column. It's timestamp is set when the column is sent
+     *
+     * @param name
+     * @param value
+     * @return
+     */
+    public Column newColumn(Bytes name, Bytes value) {
+        Column column = new Column(name.getBytes());
+        column.setValue(value == null ? null : value.getBytes());
+        return column;
+    }
+
+    /**
+     * Write the column to the row
+     *
+     * @param columnFamily
+     * @param rowKey
+     * @param column
+     */
+    public void writeColumn(String columnFamily, Bytes rowKey, Column column) {
+        writeColumn(columnFamily, rowKey, column, false);
+    }
+
+    /**
+     * Write the column to the row.
+     *
+     * @param columnFamily
+     * @param rowKey
+     * @param column
+     * @param deleteIfNull
+     *            If true and the value of the column is null the column is
+     *            deleted instead
+     */
+    public void writeColumn(String columnFamily, Bytes rowKey, Column column,
+            boolean deleteIfNull) {
+
+        if (deleteIfNull && column.getValue() == null) {
+            deleteColumn(columnFamily, rowKey, Bytes.fromByteArray(column.getName()));
+            return;
+        }
+
+        ColumnOrSuperColumn cosc = new ColumnOrSuperColumn();
+        cosc.setColumn(column);
+
+        Mutation mutation = new Mutation();
+        mutation.setColumn_or_supercolumn(cosc);
+
+        getMutations(columnFamily, rowKey).putColumn(column.bufferForName(), mutation);
+    }
+
+    /**
+     * Delete the column from the row
+     *
+     * @param columnFamily
+     * @param rowKey
+     * @param columnName
+     */
+    public void deleteColumn(String columnFamily, Bytes rowKey, Bytes columnName) {
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.addToColumn_names(columnName.getBytes());
+
+        Deletion deletion = new Deletion();
+        deletion.setPredicate(predicate);
+
+        Mutation mutation = new Mutation();
+        mutation.setDeletion(deletion);
+
+        getMutations(columnFamily, rowKey).putColumn(columnName.getBytes(), mutation);
+    }
+
+    /**
+     * Delete the entire row. A deletion without a predicate tombstones the
+     * row
+     *
+     * @param columnFamily
+     * @param rowKey
+     */
+    public void deleteRow(String columnFamily, Bytes rowKey) {
+        Deletion deletion = new Deletion();
+
+        Mutation mutation = new Mutation();
+        mutation.setDeletion(deletion);
+
+        getMutations(columnFamily, rowKey).deleteRow(mutation);
+    }
+
+    /**
+     * The changes of the relation have been added to the batch. They are
+     * cleared once the batch has been sent
+     *
+     * @param relation
+     */
+    public void writeChanges(ChangeTracker relation) {
+        tracked.put(relation, relation.getChangeCount());
+    }
+
+    /**
+     * @return True if no mutations have been buffered
+     */
+    public boolean isEmpty() {
+        return batch.isEmpty();
+    }
+
+    /**
+     * Send all buffered mutations to Cassandra
+     *
+     * @param level
+     *            The consistency level to write with
+     * @throws Exception
+     */
+    public void execute(final ConsistencyLevel level) throws Exception {
+        if (batch.isEmpty()) {
+            clearTracked();
+            return;
+        }
+
+        long timestamp = System.currentTimeMillis();
+
+        for (Map<String, RowMutations> row : batch.values()) {
+            for (RowMutations mutations : row.values()) {
+                mutations.stamp(timestamp);
+            }
+        }
+
+        List<Map<ByteBuffer, Map<String, List<Mutation>>>> batches = split();
+
+        if (batches.size() == 1) {
+            send(batches.get(0), level);
+        } else {
+            sendAll(batches, level);
+        }
+
+        batch.clear();
+
+        clearTracked();
+    }
+
+    /**
+     * The batch has been sent, forget the changes it wrote
+     */
+    private void clearTracked() {
+        for (Map.Entry<ChangeTracker, Integer> entry : tracked.entrySet()) {
+            entry.getKey().clearChanges(entry.getValue());
+        }
+
+        tracked.clear();
+    }
+
+    /**
+     * Send the batches in parallel. If any fail, the exception names the
+     * batches that failed and those that were never sent, the others have been
+     * written
+     *
+     * @param batches
+     * @param level
+     * @throws Exception
+     */
+    private void sendAll(
+            List<Map<ByteBuffer, Map<String, List<Mutation>>>> batches,
+            final ConsistencyLevel level) throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                batches.size());
+
+        final List<Integer> failed = Collections
+                .synchronizedList(new ArrayList<Integer>());
+
+        final List<Integer> sent = Collections
+                .synchronizedList(new ArrayList<Integer>());
+
+        for (int i = 0; i < batches.size(); i++) {
+            // numbered from one in the failure message
+            final Integer index = i + 1;
+            final Map<ByteBuffer, Map<String, List<Mutation>>> mutations = batches
+                    .get(i);
+
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        send(mutations, level);
+                    } catch (Exception e) {
+                        failed.add(index);
+                        throw e;
+                    }
+
+                    sent.add(index);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            executor.invokeAll(tasks);
+        } catch (Exception e) {
+            List<Integer> unsent = new ArrayList<Integer>();
+
+            for (int i = 1; i <= batches.size(); i++) {
+                if (!failed.contains(i) && !sent.contains(i)) {
+                    unsent.add(i);
+                }
+            }
+
+            Collections.sort(failed);
+
+            throw new NucleusDataStoreException(String.format(
+                    "Batches %s of %d failed and batches %s were not sent. "
+                            + "All other batches were written", failed,
+                    batches.size(), unsent), e);
+        }
+    }
+
+    /**
+     * Send a single batch_mutate
+     *
+     * @param mutations
+     * @param level
+     * @throws Exception
+     */
+    private void send(final Map<ByteBuffer, Map<String, List<Mutation>>> mutations,
+            final ConsistencyLevel level) throws Exception {
+        IOperation<Void> operation = new IOperation<Void>() {
+            @Override
+            public Void execute(IPooledConnection conn) throws Exception {
+                conn.getAPI().batch_mutate(mutations, level);
+                return null;
+            }
+        };
+
+        tryOperation(operation);
+    }
+
+    /**
+     * Split the buffered mutations into batches within the configured limits.
+     * A single row may be spread over several batches
+     *
+     * @return
+     */
+    private List<Map<ByteBuffer, Map<String, List<Mutation>>>> split() {
+        List<Map<ByteBuffer, Map<String, List<Mutation>>>> batches = new ArrayList<Map<ByteBuffer, Map<String, List<Mutation>>>>();
+
+        Map<ByteBuffer, Map<String, List<Mutation>>> current = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+        int count = 0;
+        long size = 0;
+
+        for (Map.Entry<ByteBuffer, Map<String, RowMutations>> row : batch.entrySet()) {
+            for (Map.Entry<String, RowMutations> family : row.getValue().entrySet()) {
+
+                List<Mutation> target = null;
+
+                for (Mutation mutation : family.getValue().getMutations()) {
+                    long mutationSize = estimateSize(mutation);
+
+                    // close the current batch if this mutation would exceed it
+                    if (count > 0
+                            && ((maxMutations > 0 && count + 1 > maxMutations) || (maxBytes > 0 && size
+                                    + mutationSize > maxBytes))) {
+                        batches.add(current);
+                        current = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+                        count = 0;
+                        size = 0;
+                        target = null;
+                    }
+
+                    if (target == null) {
+                        target = new ArrayList<Mutation>();
+
+                        Map<String, List<Mutation>> families = current.get(row.getKey());
+
+                        if (families == null) {
+                            families = new HashMap<String, List<Mutation>>();
+                            current.put(row.getKey(), families);
+                            size += row.getKey().remaining() + OVERHEAD;
+                        }
+
+                        families.put(family.getKey(), target);
+                        size += family.getKey().length() + OVERHEAD;
+                    }
+
+                    target.add(mutation);
+                    count++;
+                    size += mutationSize;
+                }
+            }
+        }
+
+        if (count > 0) {
+            batches.add(current);
+        }
+
+        return batches;
+    }
+
+    /**
+     * Estimate the bytes a mutation adds to a batch_mutate
+     *
+     * @param mutation
+     * @return
+     */
+    private static long estimateSize(Mutation mutation) {
+        long size = OVERHEAD;
+
+        if (mutation.isSetColumn_or_supercolumn()) {
+            Column column = mutation.getColumn_or_supercolumn().getColumn();
+
+            size += column.bufferForName().remaining();
+
+            if (column.isSetValue()) {
+                size += column.bufferForValue().remaining();
+            }
+        } else if (mutation.getDeletion().isSetPredicate()) {
+            for (ByteBuffer name : mutation.getDeletion().getPredicate().getColumn_names()) {
+                size += name.remaining();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return Every row with a buffered mutation
+     */
+    public List<RowKey> getRows() {
+        List<RowKey> rows = new ArrayList<RowKey>();
+
+        for (Map.Entry<ByteBuffer, Map<String, RowMutations>> row : batch.entrySet()) {
+            Bytes key = Bytes.fromByteBuffer(row.getKey());
+
+            for (String columnFamily : row.getValue().keySet()) {
+                rows.add(new RowKey(columnFamily, key));
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * Discard all buffered mutations without sending them
+     */
+    public void clear() {
+        batch.clear();
+        tracked.clear();
+    }
+
+    /**
+     * Get the mutations for the column family in the given row
+     *
+     * @param columnFamily
+     * @param rowKey
+     * @return
+     */
+    private RowMutations getMutations(String columnFamily, Bytes rowKey) {
+        ByteBuffer key = rowKey.getBytes();
+
+        Map<String, RowMutations> row = batch.get(key);
+
+        if (row == null) {
+            row = new HashMap<String, RowMutations>();
+            batch.put(key, row);
+        }
+
+        RowMutations mutations = row.get(columnFamily);
+
+        if (mutations == null) {
+            mutations = new RowMutations();
+            row.put(columnFamily, mutations);
+        }
+
+        return mutations;
+    }
+
+    /**
+     * The coalesced mutations of a single column family in a row. Only the
+     * last mutation of each column is kept, and every column mutation kept
+     * after a row delete was buffered after it
+     *
+     * @author Todd Nine
+     *
+     */
+    private static class RowMutations {
+
+        private Mutation rowDeletion;
+
+        private final Map<ByteBuffer, Mutation> columns = new LinkedHashMap<ByteBuffer, Mutation>();
+
+        public void putColumn(ByteBuffer name, Mutation mutation) {
+            columns.put(name, mutation);
+        }
+
+        public void deleteRow(Mutation mutation) {
+            // columns written before the delete are removed by it, don't send
+            // them
+            columns.clear();
+            rowDeletion = mutation;
+        }
+
+        /**
+         * Set the timestamp of every mutation. Columns are written after the
+         * row delete, so the tombstone is set one tick before them rather
+         * than the columns one tick ahead of the clock
+         *
+         * @param timestamp
+         */
+        public void stamp(long timestamp) {
+            if (rowDeletion != null) {
+                rowDeletion.getDeletion().setTimestamp(timestamp - 1);
+            }
+
+            for (Mutation mutation : columns.values()) {
+                if (mutation.isSetColumn_or_supercolumn()) {
+                    mutation.getColumn_or_supercolumn().getColumn()
+                            .setTimestamp(timestamp);
+                } else {
+                    mutation.getDeletion().setTimestamp(timestamp);
+                }
+            }
+        }
+
+        public List<Mutation> getMutations() {
+            List<Mutation> mutations = new ArrayList<Mutation>(columns.size() + 1);
+
+            if (rowDeletion != null) {
+                mutations.add(rowDeletion);
+            }
+
+            mutations.addAll(columns.values());
+
+            return mutations;
+        }
+    }
+
+}
@@ -16,13 +16,17 @@ Contributors : Todd Nine
  ***********************************************************************/
 package com.spidertracks.datanucleus.mutate;
 
+import java.util.IdentityHashMap;
+
 import org.datanucleus.store.ExecutionContext;
-import org.scale7.cassandra.pelops.Mutator;
+import org.datanucleus.store.ObjectProvider;
+import org.scale7.cassandra.pelops.Bytes;
 
 import com.spidertracks.datanucleus.client.Consistency;
 
 /**
- * Holds all mutations for the current execution context
+ * Holds all mutations for the current execution context. Writes and deletes
+ * share the same batch so a cascade is sent with a single batch_mutate
  * 
  * @author Todd Nine
  * 
@@ -30,21 +34,77 @@ import com.spidertracks.datanucleus.client.Consistency;
 public class ExecutionContextMutate extends ExecutionContextOp {
 
     // operations of mutations to perform
-    private Mutator mutator;
+    private BatchMutator mutator;
+
+    // our reference to visited objects so we don't get stuck in a recursive
+    // delete
+    private IdentityHashMap<ObjectProvider, Object> visited = new IdentityHashMap<ObjectProvider, Object>();
+
+    // true once the pending operations are buffered until the transaction
+    // commits
+    private boolean buffered;
 
-    public ExecutionContextMutate(ExecutionContext ctx, Mutator mutator) {
+    public ExecutionContextMutate(ExecutionContext ctx, BatchMutator mutator) {
         super(ctx);
         this.mutator = mutator;
     }
 
+    /**
+     * Add the deletion if the op hasn't already been visited
+     * 
+     * @param op
+     *            The object we're deleting
+     * @param key
+     *            The key to delete
+     * @param columnFamily
+     *            The CF to delete from
+     * @return True if this is the first visit to the object. False otherwise
+     */
+    public boolean addDeletion(ObjectProvider op, Bytes key, String columnFamily) {
+
+        if (visited.containsKey(op)) {
+            return false;
+        }
+
+        visited.put(op, null);
+
+        mutator.deleteRow(columnFamily, key);
+
+        return true;
+    }
+
     public void execute() throws Exception {
         mutator.execute(Consistency.get());
     }
 
+    /**
+     * Discard all pending operations
+     */
+    public void discard() {
+        mutator.clear();
+        visited.clear();
+    }
+
+    /**
+     * @return True if the pending operations are being held until the
+     *         transaction commits
+     */
+    public boolean isBuffered() {
+        return buffered;
+    }
+
+    /**
+     * @param buffered
+     *            the buffered to set
+     */
+    public void setBuffered(boolean buffered) {
+        this.buffered = buffered;
+    }
+
     /**
      * @return the mutator
      */
-    public Mutator getMutator() {
+    public BatchMutator getMutator() {
         return mutator;
     }
 
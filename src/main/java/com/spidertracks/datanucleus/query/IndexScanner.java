@@ -0,0 +1,57 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.IndexClause;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.client.Consistency;
+
+/**
+ * Reads the rows matching a secondary index clause a page at a time, starting
+ * each page at the last key of the previous one.
+ *
+ * @author Todd Nine
+ *
+ */
+class IndexScanner extends RowScanner {
+
+    private final IndexClause clause;
+
+    public IndexScanner(String poolName, String columnFamily,
+            IndexClause clause, SlicePredicate predicate, int pageSize) {
+        super(poolName, columnFamily, predicate, pageSize);
+        this.clause = clause;
+    }
+
+    @Override
+    protected Map<Bytes, List<Column>> readRows(Selector selector,
+            byte[] startKey, int count) throws Exception {
+        IndexClause page = new IndexClause(clause);
+        page.setStart_key(startKey);
+        page.setCount(count);
+
+        return selector.getIndexedColumns(columnFamily, page, predicate,
+                Consistency.get());
+    }
+}
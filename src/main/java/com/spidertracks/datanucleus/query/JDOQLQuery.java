@@ -120,5 +120,18 @@ public class JDOQLQuery extends AbstractJDOQLQuery
 
             return evaluator.execute(true, true, true, true, true);
         }
+
+        @Override
+        public Collection<?> filter(final Collection<?> candidates, final Map parameters)
+        {
+            final JavaQueryEvaluator evaluator =
+                new JDOQLEvaluator(this.query,
+                                   candidates,
+                                   this.query.getCompilation(),
+                                   parameters,
+                                   query.getObjectManager().getClassLoaderResolver());
+
+            return evaluator.execute(true, false, false, false, false);
+        }
     }
 }
@@ -118,5 +118,18 @@ public class JPQLQuery extends AbstractJPQLQuery
 
             return evaluator.execute(true, true, true, true, true);
         }
+
+        @Override
+        public Collection<?> filter(final Collection<?> candidates, final Map parameters)
+        {
+            final JavaQueryEvaluator evaluator =
+                new JPQLEvaluator(this.query,
+                                  candidates,
+                                  this.query.getCompilation(),
+                                  parameters,
+                                  query.getObjectManager().getClassLoaderResolver());
+
+            return evaluator.execute(true, false, false, false, false);
+        }
     }
 }
@@ -0,0 +1,197 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.store.query.QueryResult;
+
+/**
+ * The result of a query that only filters its candidates. Iterating reads and
+ * filters the candidates a page at a time, and no page is kept once the
+ * iterator has moved past it, so each iterator reads the candidates again.
+ * Positional access and size() load every result and keep them.
+ *
+ * Closing the result stops any open iterator from reading further pages.
+ * Disconnecting it reads in every result first, unless the query's
+ * datanucleus.query.loadResultsAtCommit extension is false.
+ *
+ * @author Todd Nine
+ *
+ */
+class LazyQueryResult extends AbstractList<Object> implements QueryResult {
+
+    private final QueryCandidates candidates;
+
+    private final QueryPostProcessor postProcessor;
+
+    private final Map parameters;
+
+    /**
+     * True to read every result when disconnected
+     */
+    private final boolean loadOnDisconnect;
+
+    /**
+     * Every result, once positional access or the size has been used
+     */
+    private List<Object> results;
+
+    /**
+     * True once no more pages can be read
+     */
+    private boolean closed;
+
+    public LazyQueryResult(QueryCandidates candidates,
+            QueryPostProcessor postProcessor, Map parameters,
+            boolean loadOnDisconnect) {
+        this.candidates = candidates;
+        this.postProcessor = postProcessor;
+        this.parameters = parameters;
+        this.loadOnDisconnect = loadOnDisconnect;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        if (results != null) {
+            return Collections.unmodifiableList(results).iterator();
+        }
+
+        assertOpen();
+
+        return new ResultIterator();
+    }
+
+    @Override
+    public Object get(int index) {
+        return load().get(index);
+    }
+
+    @Override
+    public int size() {
+        return load().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+
+    /**
+     * Stop reading pages and release the loaded results
+     */
+    @Override
+    public void close() {
+        closed = true;
+        results = null;
+    }
+
+    /**
+     * Read in every result, so they can still be used once the connection has
+     * gone, then stop reading pages
+     */
+    @Override
+    public void disconnect() {
+        if (closed) {
+            return;
+        }
+
+        if (loadOnDisconnect) {
+            load();
+        }
+
+        closed = true;
+    }
+
+    /**
+     * Read every result
+     *
+     * @return
+     */
+    private List<Object> load() {
+        if (results == null) {
+            assertOpen();
+
+            List<Object> loaded = new ArrayList<Object>();
+
+            Iterator<Object> iterator = new ResultIterator();
+
+            while (iterator.hasNext()) {
+                loaded.add(iterator.next());
+            }
+
+            results = loaded;
+        }
+
+        return results;
+    }
+
+    private void assertOpen() {
+        if (closed) {
+            throw new NucleusUserException(
+                    "The query result has been closed, its results can't be read");
+        }
+    }
+
+    /**
+     * Reads and filters a page of candidates when the previous page has been
+     * used
+     *
+     */
+    private class ResultIterator implements Iterator<Object> {
+
+        private final Iterator<List<?>> pages = candidates.pages();
+
+        private Iterator<?> page;
+
+        @Override
+        public boolean hasNext() {
+            while (page == null || !page.hasNext()) {
+                if (closed || !pages.hasNext()) {
+                    return false;
+                }
+
+                page = postProcessor.filter(pages.next(), parameters)
+                        .iterator();
+            }
+
+            return true;
+        }
+
+        @Override
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No results left");
+            }
+
+            return page.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "Query results can't be modified");
+        }
+    }
+}
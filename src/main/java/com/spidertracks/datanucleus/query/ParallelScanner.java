@@ -0,0 +1,127 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+
+import com.spidertracks.datanucleus.query.runtime.Columns;
+import com.spidertracks.datanucleus.utils.ParallelExecutor;
+
+/**
+ * Scans several token ranges at once. The next page of as many ranges as
+ * there are threads is read in parallel, so at most that many pages are held
+ * at once. Ranges take turns, and a range is dropped once it has no rows left.
+ *
+ * @author Todd Nine
+ *
+ */
+class ParallelScanner implements Iterator<List<Columns>> {
+
+    /**
+     * The ranges that may still have rows, in the order they're read
+     */
+    private final LinkedList<RowScanner> scanners;
+
+    private final ParallelExecutor executor;
+
+    /**
+     * Pages read but not yet returned
+     */
+    private final LinkedList<List<Columns>> pages = new LinkedList<List<Columns>>();
+
+    public ParallelScanner(List<RowScanner> scanners, ParallelExecutor executor) {
+        this.scanners = new LinkedList<RowScanner>(scanners);
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (pages.isEmpty() && !scanners.isEmpty()) {
+            readPages();
+        }
+
+        return !pages.isEmpty();
+    }
+
+    @Override
+    public List<Columns> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No rows left");
+        }
+
+        return pages.removeFirst();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove isn't supported");
+    }
+
+    /**
+     * Read the next page of the ranges at the front of the queue. Ranges that
+     * returned a page go to the back of it
+     */
+    private void readPages() {
+        int count = Math.min(Math.max(1, executor.getThreads()),
+                scanners.size());
+
+        List<RowScanner> reading = new ArrayList<RowScanner>(count);
+        List<Callable<List<Columns>>> reads = new ArrayList<Callable<List<Columns>>>(
+                count);
+
+        for (int i = 0; i < count; i++) {
+            final RowScanner scanner = scanners.removeFirst();
+
+            reading.add(scanner);
+
+            reads.add(new Callable<List<Columns>>() {
+
+                @Override
+                public List<Columns> call() throws Exception {
+                    return scanner.hasNext() ? scanner.next() : null;
+                }
+            });
+        }
+
+        List<List<Columns>> results;
+
+        try {
+            results = executor.invokeAll(reads);
+        } catch (NucleusException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new NucleusDataStoreException("Error scanning rows", e);
+        }
+
+        for (int i = 0; i < count; i++) {
+            List<Columns> page = results.get(i);
+
+            if (page != null) {
+                pages.add(page);
+                scanners.addLast(reading.get(i));
+            }
+        }
+    }
+}
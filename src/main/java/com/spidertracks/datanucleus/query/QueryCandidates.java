@@ -0,0 +1,258 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TokenRange;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.store.ExecutionContext;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.query.runtime.AndOperand;
+import com.spidertracks.datanucleus.query.runtime.Columns;
+import com.spidertracks.datanucleus.query.runtime.EqualityOperand;
+import com.spidertracks.datanucleus.query.runtime.Operand;
+import com.spidertracks.datanucleus.utils.MetaDataUtils;
+import com.spidertracks.datanucleus.utils.ParallelExecutor;
+
+/**
+ * The candidates of a query, loaded a page at a time. Unindexed queries scan
+ * the token ranges of the column family, a single index clause is read a page
+ * at a time, an && driven by an index clause reads it a page at a time and
+ * checks each page against the other branch, and the keys returned by other
+ * index queries are loaded in pages.
+ *
+ * @author Todd Nine
+ *
+ */
+class QueryCandidates {
+
+    private final ExecutionContext context;
+
+    private final AbstractClassMetaData acmd;
+
+    private final Class<?> candidateClass;
+
+    private final Bytes identityColumn;
+
+    private final Bytes discriminatorColumn;
+
+    private final Bytes[] selectColumns;
+
+    private final Operand opTree;
+
+    private final int pageSize;
+
+    /**
+     * The keys returned by an index query that can't be read in pages
+     */
+    private List<Columns> candidateKeys;
+
+    public QueryCandidates(ExecutionContext context,
+            AbstractClassMetaData acmd, Class<?> candidateClass,
+            Bytes identityColumn, Bytes discriminatorColumn,
+            Bytes[] selectColumns, Operand opTree, int pageSize) {
+        this.context = context;
+        this.acmd = acmd;
+        this.candidateClass = candidateClass;
+        this.identityColumn = identityColumn;
+        this.discriminatorColumn = discriminatorColumn;
+        this.selectColumns = selectColumns;
+        this.opTree = opTree;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Read the candidates from the start. Each call reads them again
+     *
+     * @return The candidate objects, a page at a time
+     */
+    public Iterator<List<?>> pages() {
+        final Iterator<List<Columns>> keys = keyPages();
+
+        final CassandraStoreManager storeManager = (CassandraStoreManager) context
+                .getStoreManager();
+
+        return new Iterator<List<?>>() {
+
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public List<?> next() {
+                return QueryHelper.getObjectsOfCandidateType(keys.next(),
+                        context, candidateClass, identityColumn,
+                        discriminatorColumn,
+                        storeManager.getByteConverterContext());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException(
+                        "remove isn't supported");
+            }
+        };
+    }
+
+    /**
+     * Scan every row. With more than one thread, each token range of the ring
+     * is scanned separately and the ranges are read in parallel
+     *
+     * @param poolName
+     * @param columnFamily
+     * @return
+     */
+    private Iterator<List<Columns>> scan(String poolName, String columnFamily) {
+        CassandraStoreManager storeManager = (CassandraStoreManager) context
+                .getStoreManager();
+
+        SlicePredicate predicate = Selector.newColumnsPredicate(selectColumns);
+
+        ParallelExecutor executor = storeManager.getExecutor();
+
+        if (executor.getThreads() <= 1) {
+            return new RowScanner(poolName, columnFamily, predicate, pageSize);
+        }
+
+        List<TokenRange> ring = storeManager.getTokenRanges();
+
+        List<RowScanner> scanners = new ArrayList<RowScanner>(ring.size());
+
+        for (TokenRange range : ring) {
+            scanners.add(new RowScanner(poolName, columnFamily, predicate,
+                    pageSize, range.getStart_token(), range.getEnd_token()));
+        }
+
+        return new ParallelScanner(scanners, executor);
+    }
+
+    /**
+     * @return The keys of the candidates, a page at a time
+     */
+    private Iterator<List<Columns>> keyPages() {
+        String poolName = ((CassandraStoreManager) context.getStoreManager())
+                .getPoolName();
+
+        String columnFamily = MetaDataUtils.getColumnFamily(acmd);
+
+        if (!opTree.isIndexed()) {
+            return scan(poolName, columnFamily);
+        }
+
+        if (opTree instanceof EqualityOperand) {
+            return new IndexScanner(poolName, columnFamily,
+                    ((EqualityOperand) opTree).getIndexClause(),
+                    Selector.newColumnsPredicate(selectColumns), pageSize);
+        }
+
+        if (opTree instanceof AndOperand) {
+            AndOperand and = (AndOperand) opTree;
+
+            EqualityOperand driver = and.getPagedDriver(poolName,
+                    columnFamily);
+
+            if (driver != null) {
+                return new DrivenPages(and, new IndexScanner(poolName,
+                        columnFamily, driver.getIndexClause(),
+                        Selector.newColumnsPredicate(selectColumns), pageSize));
+            }
+        }
+
+        if (candidateKeys == null) {
+            Set<Columns> keys = QueryHelper.runQuery(opTree, acmd, context,
+                    selectColumns);
+
+            candidateKeys = new ArrayList<Columns>(keys);
+        }
+
+        return new Iterator<List<Columns>>() {
+
+            private int start;
+
+            @Override
+            public boolean hasNext() {
+                return start < candidateKeys.size();
+            }
+
+            @Override
+            public List<Columns> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No keys left");
+                }
+
+                int end = Math.min(start + pageSize, candidateKeys.size());
+
+                List<Columns> page = candidateKeys.subList(start, end);
+
+                start = end;
+
+                return page;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException(
+                        "remove isn't supported");
+            }
+        };
+    }
+
+    /**
+     * Reads the driver of an && a page at a time, and keeps the rows of each
+     * page that match the other branch
+     *
+     */
+    private static class DrivenPages implements Iterator<List<Columns>> {
+
+        private final AndOperand and;
+
+        private final Iterator<List<Columns>> driverPages;
+
+        public DrivenPages(AndOperand and, Iterator<List<Columns>> driverPages) {
+            this.and = and;
+            this.driverPages = driverPages;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return driverPages.hasNext();
+        }
+
+        /**
+         * The matching rows of the next page, which may be empty
+         */
+        @Override
+        public List<Columns> next() {
+            return new ArrayList<Columns>(and.filterPage(driverPages.next()));
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove isn't supported");
+        }
+    }
+}
@@ -15,19 +15,18 @@ package com.spidertracks.datanucleus.query;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.jdo.identity.SingleFieldIdentity;
-import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.KeyRange;
 import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.FetchPlan;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.query.compiler.QueryCompilation;
 import org.datanucleus.query.expression.DyadicExpression;
 import org.datanucleus.query.expression.Expression;
 import org.datanucleus.query.expression.Literal;
@@ -35,11 +34,9 @@ import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.query.Query;
 import org.datanucleus.util.ClassUtils;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Pelops;
-import org.scale7.cassandra.pelops.Selector;
 import com.spidertracks.datanucleus.CassandraStoreManager;
-import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.fetch.BatchFetchManager;
 import com.spidertracks.datanucleus.query.runtime.Columns;
 import com.spidertracks.datanucleus.query.runtime.EqualityOperand;
 import com.spidertracks.datanucleus.query.runtime.Operand;
@@ -54,9 +51,12 @@ import com.spidertracks.datanucleus.utils.MetaDataUtils;
  */
 final class QueryHelper
 {
-    /** The default maximum number of entries to return in a query. */
+    /** The number of rows read with each page of an index clause. */
     private static final int DEFAULT_MAX = 1000;
 
+    /** The query extension which stops results being read in when they are disconnected. */
+    private static final String LOAD_AT_COMMIT = "datanucleus.query.loadResultsAtCommit";
+
     /**
      * Private default constructor.
      * since it's a utility class.
@@ -73,7 +73,8 @@ final class QueryHelper
      * @param query the query to run.
      * @param postProcessor the thing to use to postprocess the query if there are parts of it
      *                      which Cassandra cannot handle.
-     * @return all of the objects in the store which match the query up to limited by DEFAULT_MAX.
+     * @return all of the objects in the store which match the query, read a page at a time as
+     *         they are used if the query only filters its candidates.
      */
     static Collection<?> executeQuery(final Map parameters,
                                       final Query query,
@@ -128,20 +129,76 @@ final class QueryHelper
 
 System.out.println("Running Query: [ " + filter + " ]");
 
-        // If a query was specified, and there are indexed fields in the query,
-        // perform a filter with secondary cassandra indexes.
-        final Set<Columns> candidateKeys =
-            runQuery(filter, evaluator, acmd, context, selectColumns, range);
+        final Operand opTree = getOperandTree(filter, evaluator, acmd, context, range);
+
+        if (!opTree.isIndexed()) {
+System.out.println("Returning all entries from : [" + MetaDataUtils.getColumnFamily(acmd) + "]");
+        }
+
+        final QueryCandidates candidates = new QueryCandidates(context,
+                                                               acmd,
+                                                               candidateClass,
+                                                               idColumnBytes,
+                                                               discriminatorColumn,
+                                                               selectColumns,
+                                                               opTree,
+                                                               getPageSize(query, storeManager));
+
+        // Queries which only filter their candidates can be read as the results are used.
+        if (isFilterOnly(query)) {
+            return new LazyQueryResult(candidates, postProcessor, parameters,
+                query.getBooleanExtensionProperty(LOAD_AT_COMMIT, true));
+        }
+
+        // Discard the candidates which don't match a page at a time, then run the whole query
+        // against the rest.
+        final List<Object> matches = new ArrayList<Object>();
+
+        final Iterator<List<?>> pages = candidates.pages();
+
+        while (pages.hasNext()) {
+            matches.addAll(postProcessor.filter(pages.next(), parameters));
+        }
+
+        return postProcessor.run(matches, parameters);
+    }
+
+    /**
+     * @param query the query to run.
+     * @param storeManager the store manager.
+     * @return the number of candidates to read at a time, the fetch size of the query if it
+     *         has one.
+     */
+    private static int getPageSize(final Query query, final CassandraStoreManager storeManager)
+    {
+        final int fetchSize = query.getFetchPlan().getFetchSize();
+
+        if (fetchSize > 0) {
+            return fetchSize;
+        }
+
+        return storeManager.getScanSize();
+    }
+
+    /**
+     * @param query the query to run.
+     * @return true if the results are just the candidates which match the filter, so they can be
+     *         read a page at a time as they are used.
+     */
+    private static boolean isFilterOnly(final Query query)
+    {
+        if (query.getFetchPlan().getFetchSize() == FetchPlan.FETCH_SIZE_GREEDY) {
+            return false;
+        }
 
-        final List<?> results = getObjectsOfCandidateType(candidateKeys,
-                                                          context,
-                                                          candidateClass,
-                                                          query.isSubclasses(),
-                                                          idColumnBytes,
-                                                          discriminatorColumn,
-                                                          byteConverter);
+        final QueryCompilation compilation = query.getCompilation();
 
-        return postProcessor.run(results, parameters);
+        return compilation.getExprResult() == null
+            && compilation.getExprOrdering() == null
+            && compilation.getExprGrouping() == null
+            && compilation.getExprHaving() == null
+            && query.getResultClass() == null
+            && query.getRange() == null;
     }
 
     /**
@@ -152,19 +209,17 @@ System.out.println("Running Query: [ " + filter + " ]");
      *             identity.
      * @param context the DataNucleus ExecutionContext.
      * @param candidateClass the class of object to get objects of.
-     * @param subclasses whether to look in the store database to determine the class of the object.
      * @param identityColumn the name of the identity column.
      * @param descriminatorColumn the name of the descriminator column.
      * @param byteConverter the ByteConverterContext for deserializing the objects.
      * @return a list of persistable objects for each of the keys.
      */
-    private static List<?> getObjectsOfCandidateType(final Set<Columns> keys,
-                                                     final ExecutionContext context,
-                                                     final Class<?> candidateClass,
-                                                     final boolean subclasses,
-                                                     final Bytes identityColumn,
-                                                     final Bytes descriminatorColumn,
-                                                     final ByteConverterContext byteConverter)
+    static List<?> getObjectsOfCandidateType(final Collection<Columns> keys,
+                                             final ExecutionContext context,
+                                             final Class<?> candidateClass,
+                                             final Bytes identityColumn,
+                                             final Bytes descriminatorColumn,
+                                             final ByteConverterContext byteConverter)
     {
         final ClassLoaderResolver resolver = context.getClassLoaderResolver();
 
@@ -172,7 +227,10 @@ System.out.println("Running Query: [ " + filter + " ]");
         final AbstractClassMetaData acmd =
             context.getMetaDataManager().getMetaDataForClass(candidateClass.getName(), resolver);
 
-        final List<Object> results = new ArrayList<Object>(keys.size());
+        final Object[] identities = new Object[keys.size()];
+        final Class<?>[] targetClasses = new Class<?>[keys.size()];
+
+        int index = 0;
 
         for (final Columns idBytes : keys) {
 
@@ -212,92 +270,46 @@ System.out.println("Running Query: [ " + filter + " ]");
                                                     + targetClass.getName());
             }
 
-            final Object returned =
-                context.findObject(identity, true, subclasses, candidateClass.getName());
-
-            if (returned == null) {
-                // This should never happen.
-                throw new NucleusDataStoreException("findObject silently returned null!");
-            }
-
-            results.add(returned);
+            identities[index] = identity;
+            targetClasses[index] = targetClass;
+            index++;
         }
 
-        return results;
-    }
+        // Load every candidate with multiget slices rather than a read per object.
+        final BatchFetchManager fetchManager =
+            ((CassandraStoreManager) context.getStoreManager()).getBatchFetchManager();
 
-    /**
-     * Get all of a specified column from a given column family.
-     * Used ranges to set the max amount.
-     * 
-     * @param poolName the name of the cassandra pool to query against.
-     * @param cfName the name of the column family.
-     * @param selectColumns the columns to get.
-     * @param maxSize the maximum number of entries to return.
-     * @return a set of the requested columns from all of the entries in the column family or
-     *         from the maxSize, whichever is fewer.
-     */
-    private static Set<Columns> getAll(final String poolName,
-                                       final AbstractClassMetaData acmd,
-                                       final Bytes[] selectColumns,
-                                       final int maxSize)
-    {
-        final String cfName = MetaDataUtils.getColumnFamily(acmd);
-
-        Set<Columns> candidateKeys = new HashSet<Columns>();
-
-        KeyRange range = new KeyRange();
-        range.setStart_key(new byte[] {});
-        range.setEnd_key(new byte[] {});
-        range.setCount(maxSize);
-
-        final Map<Bytes, List<Column>> results;
-        try {
-            results = Pelops.createSelector(poolName).getColumnsFromRows(
-                    cfName, range, Selector.newColumnsPredicate(selectColumns),
-                    Consistency.get());
-        } catch (Exception e) {
-            throw new NucleusException("Error scanning rows", e);
-        }
-
-        for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
-
-            if (entry.getValue().size() == 0) {
-                continue;
-            }
+        final Object[] loaded = fetchManager.findObjects(context, identities, targetClasses);
 
-            final Columns cols = new Columns(entry.getKey());
+        final List<Object> results = new ArrayList<Object>(loaded.length);
 
-            for (Column currentCol : entry.getValue()) {
-                cols.addResult(currentCol);
+        for (final Object returned : loaded) {
+            // The row was removed between reading the keys and loading the object.
+            if (returned != null) {
+                results.add(returned);
             }
-
-            candidateKeys.add(cols);
         }
 
-        return candidateKeys;
+        return results;
     }
 
     /**
-     * Perform the query against Cassandra.
+     * Build the tree of operands which can be run against Cassandra from the filter.
      *
      * @param filter the "where" expression of the query.
      * @param evaluator the mechanism for evaluating the filter into a stack of primative
      *                  operands which can be built into a Cassandra CQL query.
      * @param acmd metadata about the class ot interface being selected in the query.
      * @param context the DataNucleus ExecutionContext.
-     * @param selectColumns the names of the columns which will be selected by this query.
-     *                      If an entry matches the filter but does not have a column by the name
-     *                      of one of selectColumns, it will not be returned.
-     * @return a set of results each containing the row key and a subset of the columns in that row
-     *         as named by selectColumns.
+     * @param maxResults the maximum number of entries to return from each index query.
+     * @return the root of the operand tree, which is not indexed if the column family must be
+     *         scanned.
      */
-    private static Set<Columns> runQuery(final Expression filter,
-                                         final CassandraQueryExpressionEvaluator evaluator,
-                                         final AbstractClassMetaData acmd,
-                                         final ExecutionContext context,
-                                         final Bytes[] selectColumns,
-                                         final int maxResults)
+    private static Operand getOperandTree(final Expression filter,
+                                          final CassandraQueryExpressionEvaluator evaluator,
+                                          final AbstractClassMetaData acmd,
+                                          final ExecutionContext context,
+                                          final int maxResults)
     {
         final CassandraStoreManager storeManager =
             ((CassandraStoreManager) context.getStoreManager());
@@ -329,20 +341,37 @@ System.out.println("Running Query: [ " + filter + " ]");
             opTree = new EqualityOperand(maxResults);
         }
 
-        if (!opTree.isIndexed()) {
-System.out.println("Returning all entries from : [" + MetaDataUtils.getColumnFamily(acmd) + "]");
-            // just get all keys.
-            return getAll(((CassandraStoreManager) context.getStoreManager()).getPoolName(),
-                          acmd,
-                          selectColumns,
-                          maxResults);
-        }
+        return opTree;
+    }
+
+    /**
+     * Perform an indexed query against Cassandra.
+     *
+     * @param opTree the indexed operand tree built from the filter.
+     * @param acmd metadata about the class ot interface being selected in the query.
+     * @param context the DataNucleus ExecutionContext.
+     * @param selectColumns the names of the columns which will be selected by this query.
+     *                      If an entry matches the filter but does not have a column by the name
+     *                      of one of selectColumns, it will not be returned.
+     * @return a set of results each containing the row key and a subset of the columns in that row
+     *         as named by selectColumns.
+     */
+    static Set<Columns> runQuery(final Operand opTree,
+                                 final AbstractClassMetaData acmd,
+                                 final ExecutionContext context,
+                                 final Bytes[] selectColumns)
+    {
+        final CassandraStoreManager storeManager =
+            ((CassandraStoreManager) context.getStoreManager());
 
 System.out.println("Query: [" + opTree.toString() + "]");
         try {
+            // Read the index of every branch of the tree at the same time.
             opTree.performQuery(storeManager.getPoolName(),
                                 MetaDataUtils.getColumnFamily(acmd),
-                                selectColumns);
+                                selectColumns,
+                                storeManager.getExecutor(),
+                                storeManager.getQueryParallelism());
         } catch (NucleusException e) {
             throw new NucleusException("Failed to run query [" + opTree.toString() + "]", e);
         }
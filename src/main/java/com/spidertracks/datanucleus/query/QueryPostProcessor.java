@@ -34,4 +34,14 @@ interface QueryPostProcessor
      * @return a postprocessed (paired down and perhaps reorganized) version of candidates.
      */
     Collection<?> run(final Collection<?> candidates, final Map parameters);
+
+    /**
+     * Apply only the filter of the query to a set of result candidates, so candidates can be
+     * discarded a page at a time before the whole query is run against those that remain.
+     *
+     * @param candidates the result candidates to filter.
+     * @param parameters the query parameters if this was a parameterized query.
+     * @return the candidates which match the filter.
+     */
+    Collection<?> filter(final Collection<?> candidates, final Map parameters);
 }
@@ -0,0 +1,227 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.query.runtime.Columns;
+
+/**
+ * Scans every row of a column family, or of a token range of it, a page at a
+ * time. Each page starts at the last key of the previous page, so only a
+ * single page of rows is held at once, however large the column family.
+ *
+ * @author Todd Nine
+ *
+ */
+class RowScanner implements Iterator<List<Columns>> {
+
+    protected static final byte[] EMPTY = new byte[] {};
+
+    private final String poolName;
+
+    protected final String columnFamily;
+
+    protected final SlicePredicate predicate;
+
+    private final int pageSize;
+
+    /**
+     * The token the scan starts after, null to start at the first row
+     */
+    private final String startToken;
+
+    /**
+     * The last token of the scan, null to end at the last row
+     */
+    private final String endToken;
+
+    /**
+     * The last key read, null until the first page is read
+     */
+    private Bytes lastKey;
+
+    /**
+     * True once a page shorter than requested has been read
+     */
+    private boolean finished;
+
+    private List<Columns> next;
+
+    public RowScanner(String poolName, String columnFamily,
+            SlicePredicate predicate, int pageSize) {
+        this(poolName, columnFamily, predicate, pageSize, null, null);
+    }
+
+    /**
+     * Scan the rows of a token range
+     *
+     * @param poolName
+     * @param columnFamily
+     * @param predicate
+     * @param pageSize
+     * @param startToken
+     *            The token the range starts after
+     * @param endToken
+     *            The last token of the range
+     */
+    public RowScanner(String poolName, String columnFamily,
+            SlicePredicate predicate, int pageSize, String startToken,
+            String endToken) {
+        this.poolName = poolName;
+        this.columnFamily = columnFamily;
+        this.predicate = predicate;
+        this.pageSize = pageSize;
+        this.startToken = startToken;
+        this.endToken = endToken;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            next = readPage();
+        }
+
+        return next != null;
+    }
+
+    /**
+     * Returns the next page of rows that have at least one of the selected
+     * columns
+     */
+    @Override
+    public List<Columns> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No rows left");
+        }
+
+        List<Columns> page = next;
+        next = null;
+
+        return page;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove isn't supported");
+    }
+
+    /**
+     * Read pages until one has a live row or the end of the column family is
+     * reached
+     *
+     * @return The rows read, or null if none are left
+     */
+    private List<Columns> readPage() {
+
+        while (!finished) {
+
+            // the start key is inclusive, so read one more row to skip it
+            int count = lastKey == null ? pageSize : pageSize + 1;
+
+            Map<Bytes, List<Column>> rows;
+
+            try {
+                rows = readRows(Pelops.createSelector(poolName),
+                        lastKey == null ? EMPTY : lastKey.toByteArray(), count);
+            } catch (Exception e) {
+                throw new NucleusDataStoreException("Error scanning rows", e);
+            }
+
+            finished = rows.size() < count;
+
+            List<Columns> page = new ArrayList<Columns>(rows.size());
+
+            Bytes startKey = lastKey;
+
+            for (Entry<Bytes, List<Column>> row : rows.entrySet()) {
+
+                if (row.getKey().equals(startKey)) {
+                    continue;
+                }
+
+                lastKey = row.getKey();
+
+                // deleted rows are returned without columns
+                if (row.getValue().size() == 0) {
+                    continue;
+                }
+
+                Columns columns = new Columns(row.getKey());
+
+                for (Column column : row.getValue()) {
+                    columns.addResult(column);
+                }
+
+                page.add(columns);
+            }
+
+            if (page.size() > 0) {
+                return page;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Read a page of rows
+     *
+     * @param selector
+     * @param startKey
+     *            The first key to read, inclusive. Empty for the first page
+     * @param count
+     *            The number of rows to read
+     * @return The rows in key order
+     * @throws Exception
+     */
+    protected Map<Bytes, List<Column>> readRows(Selector selector,
+            byte[] startKey, int count) throws Exception {
+        KeyRange range = new KeyRange();
+
+        if (startKey.length == 0 && startToken != null) {
+            range.setStart_token(startToken);
+        } else {
+            range.setStart_key(startKey);
+        }
+
+        if (endToken != null) {
+            range.setEnd_token(endToken);
+        } else {
+            range.setEnd_key(EMPTY);
+        }
+
+        range.setCount(count);
+
+        return selector.getColumnsFromRows(columnFamily, range, predicate,
+                Consistency.get());
+    }
+}
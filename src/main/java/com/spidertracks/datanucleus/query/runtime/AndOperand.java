@@ -17,21 +17,71 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.query.runtime;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.exceptions.NucleusException;
 import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.client.Consistency;
 
 /**
+ * An && of two branches. When one branch only checks equality, only the other
+ * branch is read from its indexes, and the rows it returns are checked against
+ * the equality branch with multiget slices of the columns it needs. A branch
+ * that is neither indexed nor verifiable is left to the in memory filter.
+ * Otherwise both branches are read and their results intersected.
+ * 
  * @author Todd Nine
  *
  */
 public class AndOperand extends Operand {
 
+    /**
+     * The most rows to check with a single multiget
+     */
+    private static final int VERIFY_BATCH = 100;
+
+    /**
+     * The only branch read from its indexes, null when both are read
+     */
+    private Operand driver;
+
+    /**
+     * The branch checked against the rows of the driver, null when it isn't
+     * checked
+     */
+    private Operand verified;
+
+    private String poolName;
+
+    private String cfName;
+
     /* (non-Javadoc)
      * @see com.spidertracks.datanucleus.query.QueryResult#complete(com.spidertracks.datanucleus.query.QueryResult)
      */
     @Override
     public synchronized void complete(Operand child) {
+        // only the driver was read, check its rows against the other branch
+        if (driver != null) {
+            candidateKeys = verified != null ? verify(child.getCandidateKeys())
+                    : child.getCandidateKeys();
+
+            if (parent != null) {
+                parent.complete(this);
+            }
+
+            return;
+        }
+
         //by default && should union the results from left and right
         
         //first child to call
@@ -52,11 +102,167 @@ public class AndOperand extends Operand {
     @Override
     public void performQuery(String poolName, String cfName,
             Bytes[] columns) {
-        
+
+        chooseDriver(poolName, cfName);
+
+        if (driver != null) {
+            driver.performQuery(poolName, cfName, columns);
+            return;
+        }
+
         left.performQuery(poolName, cfName, columns);
         right.performQuery(poolName, cfName, columns);
         
     }
+
+    @Override
+    protected void addReads(String poolName, String cfName,
+            List<Operand> leaves) {
+
+        chooseDriver(poolName, cfName);
+
+        if (driver != null) {
+            driver.addReads(poolName, cfName, leaves);
+            return;
+        }
+
+        super.addReads(poolName, cfName, leaves);
+    }
+
+    /**
+     * Choose the branch to read from its indexes. A branch can only drive if
+     * it's indexed, and the other branch can only be checked if it's
+     * verifiable. When either could drive, the one needing fewer index reads
+     * is read. Unindexed branches are never read
+     * 
+     * @param poolName
+     * @param cfName
+     */
+    private void chooseDriver(String poolName, String cfName) {
+        this.poolName = poolName;
+        this.cfName = cfName;
+
+        boolean verifyRight = left.isIndexed() && right.isVerifiable();
+        boolean verifyLeft = right.isIndexed() && left.isVerifiable();
+
+        if (verifyRight && verifyLeft) {
+            if (right.getLeafCount() < left.getLeafCount()) {
+                verifyRight = false;
+            } else {
+                verifyLeft = false;
+            }
+        }
+
+        if (verifyRight) {
+            driver = left;
+            verified = right;
+        } else if (verifyLeft) {
+            driver = right;
+            verified = left;
+        } else if (left.isIndexed() != right.isIndexed()) {
+            // the other branch can't be read or checked, it's left to the in
+            // memory filter
+            driver = left.isIndexed() ? left : right;
+            verified = null;
+        } else {
+            driver = null;
+            verified = null;
+        }
+    }
+
+    /**
+     * Get the branch that can be read a page at a time. That is an equality
+     * branch whose rows are checked against the other branch, or left to the
+     * in memory filter
+     * 
+     * @param poolName
+     * @param cfName
+     * @return The driving equality branch, null if both branches must be read
+     */
+    public EqualityOperand getPagedDriver(String poolName, String cfName) {
+        chooseDriver(poolName, cfName);
+
+        return driver instanceof EqualityOperand ? (EqualityOperand) driver
+                : null;
+    }
+
+    /**
+     * Keep the rows of a page read from the driver that match the other
+     * branch
+     * 
+     * @param page
+     * @return
+     */
+    public Set<Columns> filterPage(Collection<Columns> page) {
+        if (verified == null) {
+            return new LinkedHashSet<Columns>(page);
+        }
+
+        return verify(page);
+    }
+
+    /**
+     * Read the columns the verified branch checks for each candidate, and keep
+     * the candidates that match
+     * 
+     * @param candidates
+     * @return
+     */
+    private Set<Columns> verify(Collection<Columns> candidates) {
+        Set<Bytes> names = new LinkedHashSet<Bytes>();
+
+        verified.addColumnNames(names);
+
+        SlicePredicate predicate = Selector.newColumnsPredicate(names
+                .toArray(new Bytes[names.size()]));
+
+        List<Columns> keys = new ArrayList<Columns>(candidates);
+
+        Set<Columns> matches = new LinkedHashSet<Columns>();
+
+        Selector selector = Pelops.createSelector(poolName);
+
+        for (int start = 0; start < keys.size(); start += VERIFY_BATCH) {
+
+            List<Columns> chunk = keys.subList(start,
+                    Math.min(start + VERIFY_BATCH, keys.size()));
+
+            List<Bytes> rowKeys = new ArrayList<Bytes>(chunk.size());
+
+            for (Columns candidate : chunk) {
+                rowKeys.add(candidate.getRowKey());
+            }
+
+            Map<Bytes, List<Column>> rows;
+
+            try {
+                rows = selector.getColumnsFromRows(cfName, rowKeys, predicate,
+                        Consistency.get());
+            } catch (Exception e) {
+                throw new NucleusException("Error verifying candidates", e);
+            }
+
+            for (Columns candidate : chunk) {
+                List<Column> columns = rows.get(candidate.getRowKey());
+
+                if (columns == null) {
+                    continue;
+                }
+
+                Columns row = new Columns(candidate.getRowKey());
+
+                for (Column column : columns) {
+                    row.addResult(column);
+                }
+
+                if (verified.matches(row)) {
+                    matches.add(candidate);
+                }
+            }
+        }
+
+        return matches;
+    }
     
     @Override
     public Operand optimizeDescriminator(Bytes descriminatorColumnValue,
@@ -83,4 +289,20 @@ public class AndOperand extends Operand {
     {
         return this.left.isIndexed() || this.right.isIndexed();
     }
+
+    @Override
+    public boolean isVerifiable() {
+        return left.isVerifiable() && right.isVerifiable();
+    }
+
+    @Override
+    public void addColumnNames(Set<Bytes> names) {
+        left.addColumnNames(names);
+        right.addColumnNames(names);
+    }
+
+    @Override
+    public boolean matches(Columns row) {
+        return left.matches(row) && right.matches(row);
+    }
 }
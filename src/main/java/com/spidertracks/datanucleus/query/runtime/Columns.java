@@ -40,6 +40,13 @@ public class Columns {
         values = new LinkedHashMap<Bytes,Bytes>();
     }
     
+    /**
+     * @return The key of the row
+     */
+    public Bytes getRowKey() {
+        return rowKey;
+    }
+
     public Bytes getColumnValue(Bytes key) {
         return values.get(key);
     }
@@ -22,6 +22,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Stack;
 
 import com.spidertracks.datanucleus.client.Consistency;
@@ -30,6 +31,7 @@ import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.IndexClause;
 import org.apache.cassandra.thrift.IndexExpression;
 import org.apache.cassandra.thrift.IndexOperator;
+import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang.StringUtils;
 import org.datanucleus.exceptions.NucleusException;
@@ -116,30 +118,51 @@ public class EqualityOperand extends Operand implements CompressableOperand {
         return clause;
     }
 
+    /**
+     * Read every row matching the clause, a page of the clause's count at a
+     * time. Each page starts at the last key of the previous one
+     */
     @Override
     public void performQuery(String poolName, String cfName, Bytes[] columns) {
 
         try {
-            Map<Bytes, List<Column>> results = Pelops.createSelector(poolName)
-                    .getIndexedColumns(cfName, clause,
-                            Selector.newColumnsPredicate(columns),
-                            Consistency.get());
-            Columns cols;
+            Selector selector = Pelops.createSelector(poolName);
 
-            for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
+            SlicePredicate predicate = Selector.newColumnsPredicate(columns);
 
-                if (entry.getValue().size() == 0) {
-                    continue;
-                }
+            IndexClause page = new IndexClause(clause);
 
-                cols = new Columns(entry.getKey());
+            Bytes lastKey = null;
 
-                for (Column currentCol : entry.getValue()) {
+            boolean finished = false;
 
-                    cols.addResult(currentCol);
-                }
+            while (!finished) {
+
+                // the start key is inclusive, so read one more row to skip it
+                int count = lastKey == null ? clause.getCount() : clause
+                        .getCount() + 1;
+
+                page.setStart_key(lastKey == null ? new byte[] {} : lastKey
+                        .toByteArray());
+                page.setCount(count);
+
+                Map<Bytes, List<Column>> results = selector.getIndexedColumns(
+                        cfName, page, predicate, Consistency.get());
+
+                finished = results.size() < count;
+
+                Bytes startKey = lastKey;
+
+                for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
 
-                super.candidateKeys.add(cols);
+                    if (entry.getKey().equals(startKey)) {
+                        continue;
+                    }
+
+                    lastKey = entry.getKey();
+
+                    addCandidate(entry);
+                }
             }
 
         } catch (Exception e) {
@@ -153,6 +176,27 @@ public class EqualityOperand extends Operand implements CompressableOperand {
 
     }
 
+    /**
+     * Add a row returned by the index as a candidate
+     * 
+     * @param entry
+     */
+    private void addCandidate(Entry<Bytes, List<Column>> entry) {
+        // deleted rows are returned without columns
+        if (entry.getValue().size() == 0) {
+            return;
+        }
+
+        Columns cols = new Columns(entry.getKey());
+
+        for (Column currentCol : entry.getValue()) {
+
+            cols.addResult(currentCol);
+        }
+
+        super.candidateKeys.add(cols);
+    }
+
     @Override
     public Operand optimizeDescriminator(Bytes descriminatorColumnValue,
             List<Bytes> possibleValues) {
@@ -302,4 +346,37 @@ public class EqualityOperand extends Operand implements CompressableOperand {
     {
         return this.isIndexed;
     }
+
+    @Override
+    public boolean isVerifiable() {
+        for (IndexExpression expression : clause.getExpressions()) {
+            if (expression.getOp() != IndexOperator.EQ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void addColumnNames(Set<Bytes> names) {
+        for (IndexExpression expression : clause.getExpressions()) {
+            names.add(new Bytes(expression.getColumn_name()));
+        }
+    }
+
+    @Override
+    public boolean matches(Columns row) {
+        for (IndexExpression expression : clause.getExpressions()) {
+            Bytes value = row.getColumnValue(new Bytes(expression
+                    .getColumn_name()));
+
+            if (value == null
+                    || !value.equals(new Bytes(expression.getValue()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
 }
@@ -17,11 +17,16 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.query.runtime;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
+import org.datanucleus.exceptions.NucleusException;
 import org.scale7.cassandra.pelops.Bytes;
 
+import com.spidertracks.datanucleus.utils.ParallelExecutor;
+
 /**
  * Class that represents an || or && operation. Each will have a left and a
  * right. This is used to Thread && queries to allow for more efficient unions
@@ -54,6 +59,119 @@ public abstract class Operand {
     public abstract void performQuery(String poolName, String cfName,
             Bytes[] columns);
 
+    /**
+     * Run the query with the index reads of every branch running at the same
+     * time. Each branch combines its results as its children complete, in
+     * whatever order they complete.
+     * 
+     * @param poolName
+     * @param cfName
+     * @param columns
+     * @param executor
+     *            The pool to read the indexes with
+     * @param maxParallel
+     *            The most index reads of this query to run at once
+     */
+    public void performQuery(final String poolName, final String cfName,
+            final Bytes[] columns, ParallelExecutor executor, int maxParallel) {
+
+        List<Operand> leaves = new ArrayList<Operand>();
+
+        addReads(poolName, cfName, leaves);
+
+        List<Callable<Void>> reads = new ArrayList<Callable<Void>>(leaves.size());
+
+        for (final Operand leaf : leaves) {
+            reads.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    leaf.performQuery(poolName, cfName, columns);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            executor.invokeAll(reads, maxParallel);
+        } catch (NucleusException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new NucleusException("Error processing secondary index", e);
+        }
+    }
+
+    /**
+     * Add the operands of this tree that read an index themselves. These are
+     * the operands without children, unless a branch is checked against the
+     * rows read by another rather than read from its own index
+     * 
+     * @param poolName
+     * @param cfName
+     * @param leaves
+     */
+    protected void addReads(String poolName, String cfName,
+            List<Operand> leaves) {
+        if (left == null && right == null) {
+            leaves.add(this);
+            return;
+        }
+
+        if (left != null) {
+            left.addReads(poolName, cfName, leaves);
+        }
+
+        if (right != null) {
+            right.addReads(poolName, cfName, leaves);
+        }
+    }
+
+    /**
+     * @return The number of index reads needed to run this tree on its own
+     */
+    protected int getLeafCount() {
+        if (left == null && right == null) {
+            return 1;
+        }
+
+        int count = 0;
+
+        if (left != null) {
+            count += left.getLeafCount();
+        }
+
+        if (right != null) {
+            count += right.getLeafCount();
+        }
+
+        return count;
+    }
+
+    /**
+     * Can this tree be checked against the columns of a row instead of being
+     * read from an index. Only equality can be checked, as it compares the
+     * bytes of the values without knowing their types
+     * 
+     * @return
+     */
+    public abstract boolean isVerifiable();
+
+    /**
+     * Add the names of the columns this tree checks
+     * 
+     * @param names
+     */
+    public abstract void addColumnNames(Set<Bytes> names);
+
+    /**
+     * Check the tree against the columns of a row
+     * 
+     * @param row
+     *            The columns named by addColumnNames that the row has
+     * @return True if the row matches
+     */
+    public abstract boolean matches(Columns row);
+
     /**
      * Optimize the query tree for CFS that have descriminators
      * 
@@ -18,6 +18,7 @@ Contributors :
 package com.spidertracks.datanucleus.query.runtime;
 
 import java.util.List;
+import java.util.Set;
 
 import org.scale7.cassandra.pelops.Bytes;
 
@@ -82,4 +83,20 @@ public class OrOperand extends Operand {
     {
         return this.left.isIndexed() && this.right.isIndexed();
     }
+
+    @Override
+    public boolean isVerifiable() {
+        return left.isVerifiable() && right.isVerifiable();
+    }
+
+    @Override
+    public void addColumnNames(Set<Bytes> names) {
+        left.addColumnNames(names);
+        right.addColumnNames(names);
+    }
+
+    @Override
+    public boolean matches(Columns row) {
+        return left.matches(row) || right.matches(row);
+    }
 }
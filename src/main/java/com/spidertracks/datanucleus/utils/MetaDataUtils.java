@@ -66,6 +66,13 @@ public class MetaDataUtils {
 
     private static ConcurrentMap<String, List<Bytes>> classToSubclasses = new ConcurrentHashMap<String, List<Bytes>>();
 
+    private static ConcurrentMap<String, Boolean> cachedClasses = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * The class extension that enables the row cache for a class
+     */
+    public static final String CACHE_EXTENSION = "cassandra.cache";
+
 
     /**
      * Get the column metadata for the class and fieldname
@@ -369,6 +376,29 @@ public class MetaDataUtils {
     
 
 
+    /**
+     * Returns true if the rows of the class may be held in the row cache. Set
+     * with the cassandra.cache class extension
+     * 
+     * @param metaData
+     * @return
+     */
+    public static boolean isCached(AbstractClassMetaData metaData) {
+        String className = metaData.getFullClassName();
+
+        Boolean cached = cachedClasses.get(className);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        cached = Boolean.valueOf(metaData.getValueForExtension(CACHE_EXTENSION));
+
+        cachedClasses.putIfAbsent(className, cached);
+
+        return cached;
+    }
+
     /**
      * Create a slice predicate with all mapped fetch column lists
      * 
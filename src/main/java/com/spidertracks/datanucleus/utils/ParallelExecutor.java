@@ -0,0 +1,296 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+
+import com.spidertracks.datanucleus.client.Consistency;
+
+/**
+ * A bounded pool for running independent Cassandra operations at the same
+ * time. Tasks are never queued, when every thread is busy the calling thread
+ * runs the task itself. Tasks may therefore submit more tasks without ever
+ * waiting on a thread that is waiting on them.
+ *
+ * The consistency level of the calling thread is used by every task.
+ *
+ * When a task fails, tasks that haven't started are cancelled without
+ * interrupting those already running, which could leave a pooled connection
+ * mid request. The failure is thrown once the running tasks have finished, so
+ * no task is still running when the caller sees it.
+ *
+ * @author Todd Nine
+ *
+ */
+public class ParallelExecutor {
+
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+
+    private final int threads;
+
+    /**
+     * @param threads
+     *            The maximum number of threads. With one or less every task is
+     *            run by the calling thread
+     */
+    public ParallelExecutor(int threads) {
+        this.threads = threads;
+
+        if (threads <= 1) {
+            executor = null;
+            return;
+        }
+
+        final String prefix = "cassandra-datanucleus-"
+                + poolCount.incrementAndGet() + "-";
+
+        executor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, prefix
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * @return The maximum number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Run all tasks and wait for them to complete.
+     *
+     * @param tasks
+     * @return The result of each task in the same order as the tasks
+     * @throws Exception
+     *             The first failure, once the tasks already running have
+     *             finished. Tasks that haven't started are cancelled
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks)
+            throws Exception {
+        return invokeAll(tasks, threads);
+    }
+
+    /**
+     * Run all tasks and wait for them to complete, with at most maxParallel
+     * tasks running at once for this call.
+     *
+     * @param tasks
+     * @param maxParallel
+     * @return The result of each task in the same order as the tasks
+     * @throws Exception
+     *             The first failure, once the tasks already running have
+     *             finished. Tasks that haven't started are cancelled
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks,
+            int maxParallel) throws Exception {
+
+        List<T> results = new ArrayList<T>(tasks.size());
+
+        // nothing to gain from a thread
+        if (executor == null || maxParallel <= 1 || tasks.size() < 2) {
+            for (Callable<T> task : tasks) {
+                results.add(task.call());
+            }
+
+            return results;
+        }
+
+        ConsistencyLevel level = Consistency.get();
+
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+
+        List<ConsistentTask<T>> submitted = new ArrayList<ConsistentTask<T>>(
+                tasks.size());
+
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+
+                // wait for the oldest task before starting another
+                if (i >= maxParallel) {
+                    futures.get(i - maxParallel).get();
+                }
+
+                ConsistentTask<T> task = new ConsistentTask<T>(tasks.get(i),
+                        level);
+
+                submitted.add(task);
+                futures.add(executor.submit(task));
+            }
+
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+
+        } catch (ExecutionException e) {
+            cancel(futures, submitted);
+            awaitRunning(submitted);
+
+            Throwable cause = e.getCause();
+
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw e;
+        } catch (InterruptedException e) {
+            cancel(futures, submitted);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+
+        return results;
+    }
+
+    /**
+     * Stop all threads
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Cancel every task that hasn't started. Running tasks are left to finish
+     *
+     * @param futures
+     * @param tasks
+     */
+    private static <T> void cancel(List<Future<T>> futures,
+            List<ConsistentTask<T>> tasks) {
+        for (int i = 0; i < futures.size(); i++) {
+            futures.get(i).cancel(false);
+            tasks.get(i).skip();
+        }
+    }
+
+    /**
+     * Wait for every task that started before it was cancelled to finish
+     *
+     * @param tasks
+     * @throws InterruptedException
+     */
+    private static <T> void awaitRunning(List<ConsistentTask<T>> tasks)
+            throws InterruptedException {
+        for (ConsistentTask<T> task : tasks) {
+            task.await();
+        }
+    }
+
+    /**
+     * Runs a task with the consistency level of the submitting thread
+     *
+     * @author Todd Nine
+     *
+     */
+    private static class ConsistentTask<T> implements Callable<T> {
+
+        private static final int NEW = 0;
+        private static final int RUNNING = 1;
+        private static final int SKIPPED = 2;
+
+        private final Callable<T> task;
+        private final ConsistencyLevel level;
+        private final Thread submitter;
+
+        private final AtomicInteger state = new AtomicInteger(NEW);
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        public ConsistentTask(Callable<T> task, ConsistencyLevel level) {
+            this.task = task;
+            this.level = level;
+            this.submitter = Thread.currentThread();
+        }
+
+        /**
+         * Stop the task from starting. Has no effect once it's running
+         */
+        public void skip() {
+            if (state.compareAndSet(NEW, SKIPPED)) {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Wait for the task to finish if it started
+         *
+         * @throws InterruptedException
+         */
+        public void await() throws InterruptedException {
+            finished.await();
+        }
+
+        @Override
+        public T call() throws Exception {
+            if (!state.compareAndSet(NEW, RUNNING)) {
+                throw new CancellationException(
+                        "Task was cancelled before it started");
+            }
+
+            try {
+                return runTask();
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        private T runTask() throws Exception {
+
+            // run by the caller, it already has the level
+            if (Thread.currentThread() == submitter) {
+                return task.call();
+            }
+
+            Consistency.set(level);
+
+            try {
+                return task.call();
+            } finally {
+                Consistency.remove();
+            }
+        }
+    }
+}
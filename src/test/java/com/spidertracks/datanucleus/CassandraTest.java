@@ -17,10 +17,12 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
 import javax.jdo.PersistenceManagerFactory;
 
 import org.apache.cassandra.thrift.Column;
@@ -29,6 +31,8 @@ import org.apache.cassandra.thrift.KeyRange;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.cassandra.service.CassandraDaemon;
 import org.apache.commons.codec.binary.Hex;
+import org.datanucleus.jdo.JDOPersistenceManager;
+import org.datanucleus.store.ExecutionContext;
 import org.junit.BeforeClass;
 import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Pelops;
@@ -45,6 +49,8 @@ public abstract class CassandraTest
 {
     protected static PersistenceManagerFactory pmf;
 
+    private static final Map<Map<String, String>, PersistenceManagerFactory> factories = new HashMap<Map<String, String>, PersistenceManagerFactory>();
+
     static
     {
         InternalLoggerFactory.setDefaultFactory(new Slf4JLoggerFactory());
@@ -66,6 +72,43 @@ public abstract class CassandraTest
         pmf = Server.INSTANCE.getFactory();
     }
 
+    /**
+     * Get a factory configured as the test factory with the given properties
+     * replaced. The same factory is returned for the same properties
+     * 
+     * @param properties
+     *            Alternating property names and values
+     * @return
+     */
+    protected static synchronized PersistenceManagerFactory getFactory(
+            String... properties) {
+        Map<String, String> overrides = new HashMap<String, String>();
+
+        for (int i = 0; i < properties.length; i += 2) {
+            overrides.put(properties[i], properties[i + 1]);
+        }
+
+        PersistenceManagerFactory factory = factories.get(overrides);
+
+        if (factory == null) {
+            factory = JDOHelper.getPersistenceManagerFactory(overrides, "Test");
+            factories.put(overrides, factory);
+        }
+
+        return factory;
+    }
+
+    /**
+     * Get the store manager of the persistence manager's factory
+     * 
+     * @param pm
+     * @return
+     */
+    protected static CassandraStoreManager getStoreManager(PersistenceManager pm) {
+        return (CassandraStoreManager) ((ExecutionContext) ((JDOPersistenceManager) pm)
+                .getObjectManager()).getStoreManager();
+    }
+
     private enum Server {
 
         INSTANCE;
@@ -24,6 +24,7 @@ import static org.junit.Assert.assertTrue;
 
 import javax.jdo.JDODataStoreException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Transaction;
 
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
@@ -141,4 +142,34 @@ public class ArrayTest extends CassandraTest {
 
     }
 
+    /**
+     * An array of more elements than a page is read a page at a time
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testArrayPaged() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.pagesize", "1");
+
+        PackArray pack = new PackArray();
+
+        CardArray aceSpades = new CardArray();
+        aceSpades.setName("Ace of Spades");
+        pack.getCards()[0] = aceSpades;
+
+        CardArray jackHearts = new CardArray();
+        jackHearts.setName("Jack of Hearts");
+        pack.getCards()[1] = jackHearts;
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        PackArray saved = factory.getPersistenceManager().getObjectById(
+                PackArray.class, pack.getId());
+
+        assertEquals(2, saved.getCards().length);
+        assertTrue(saved.getCards()[0].equals(aceSpades));
+        assertTrue(saved.getCards()[1].equals(jackHearts));
+    }
+
 }
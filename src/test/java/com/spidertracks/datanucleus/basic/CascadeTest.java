@@ -17,11 +17,13 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.basic;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import javax.jdo.JDODataStoreException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Transaction;
 
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
@@ -108,4 +110,127 @@ public class CascadeTest extends CassandraTest {
     }
 
 
+    /**
+     * The cascaded delete and the writes made by it are sent in one batch
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDeleteBuffered() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.bufferwrites", "true");
+
+        InvitedPerson person = new InvitedPerson();
+        person.setFirstName("firstName");
+        person.setLastName("lastName");
+
+        InvitationToken token = new InvitationToken();
+        token.setToken("bufferedtoken");
+
+        person.setToken(token);
+        token.setPerson(person);
+
+        factory.getPersistenceManager().makePersistent(person);
+
+        UUID personId = person.getId();
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        pm.deletePersistent(pm.getObjectById(InvitedPerson.class, personId));
+
+        trans.commit();
+
+        assertTrue(isDeleted(InvitedPerson.class, personId));
+        assertTrue(isDeleted(InvitationToken.class, "bufferedtoken"));
+    }
+
+    /**
+     * Rows deleted by a cascade and written again within the same
+     * transaction must keep the new columns
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDeleteThenPersist() throws Exception {
+        deleteThenPersist(pmf, "repersisttoken");
+    }
+
+    /**
+     * As above, with the tombstone and the new columns in the same batch
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDeleteThenPersistBuffered() throws Exception {
+        deleteThenPersist(getFactory(
+                "com.spidertracks.cassandra.bufferwrites", "true"),
+                "bufferedrepersisttoken");
+    }
+
+    private void deleteThenPersist(PersistenceManagerFactory factory,
+            String tokenKey) throws Exception {
+        InvitedPerson person = new InvitedPerson();
+        person.setFirstName("old");
+        person.setLastName("lastName");
+
+        InvitationToken token = new InvitationToken();
+        token.setToken(tokenKey);
+        token.setTestString("old");
+
+        person.setToken(token);
+        token.setPerson(person);
+
+        factory.getPersistenceManager().makePersistent(person);
+
+        UUID oldId = person.getId();
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        // deletes the token by cascade
+        pm.deletePersistent(pm.getObjectById(InvitedPerson.class, oldId));
+        pm.flush();
+
+        InvitedPerson replacement = new InvitedPerson();
+        replacement.setFirstName("new");
+        replacement.setLastName("lastName");
+
+        InvitationToken newToken = new InvitationToken();
+        newToken.setToken(tokenKey);
+        newToken.setTestString("new");
+
+        replacement.setToken(newToken);
+        newToken.setPerson(replacement);
+
+        pm.makePersistent(replacement);
+
+        trans.commit();
+
+        assertTrue(isDeleted(InvitedPerson.class, oldId));
+
+        InvitationToken saved = pmf.getPersistenceManager().getObjectById(
+                InvitationToken.class, tokenKey);
+
+        assertEquals("new", saved.getTestString());
+        assertEquals(replacement.getId(), saved.getPerson().getId());
+    }
+
+    /**
+     * @param clazz
+     * @param key
+     * @return True if no object is stored with the key
+     */
+    private boolean isDeleted(Class<?> clazz, Object key) {
+        try {
+            pmf.getPersistenceManager().getObjectById(clazz, key);
+        } catch (JDODataStoreException n) {
+            return n.getCause() instanceof NucleusObjectNotFoundException;
+        }
+
+        return false;
+    }
+
 }
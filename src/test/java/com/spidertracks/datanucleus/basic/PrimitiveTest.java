@@ -358,4 +358,43 @@ public class PrimitiveTest extends CassandraTest {
 
     }
 
+    /**
+     * Two persistence managers update different fields of the same object.
+     * Only the changed fields are written, so neither update is lost
+     */
+    @Test
+    public void testUpdateWritesOnlyDirtyFields() throws Exception {
+        PrimitiveObject primitive = new PrimitiveObject();
+        primitive.setTestInt(10);
+        primitive.setTestString("original");
+
+        pmf.getPersistenceManager().makePersistent(primitive);
+
+        PersistenceManager first = pmf.getPersistenceManager();
+        PersistenceManager second = pmf.getPersistenceManager();
+
+        PrimitiveObject firstCopy = first.getObjectById(PrimitiveObject.class,
+                primitive.getId());
+        PrimitiveObject secondCopy = second.getObjectById(
+                PrimitiveObject.class, primitive.getId());
+
+        // both copies are read before either is written
+        assertEquals(10, firstCopy.getTestInt());
+        assertEquals("original", secondCopy.getTestString());
+
+        first.currentTransaction().begin();
+        firstCopy.setTestInt(20);
+        first.currentTransaction().commit();
+
+        second.currentTransaction().begin();
+        secondCopy.setTestString("changed");
+        second.currentTransaction().commit();
+
+        PrimitiveObject saved = pmf.getPersistenceManager().getObjectById(
+                PrimitiveObject.class, primitive.getId());
+
+        assertEquals(20, saved.getTestInt());
+        assertEquals("changed", saved.getTestString());
+    }
+
 }
@@ -19,13 +19,19 @@ package com.spidertracks.datanucleus.basic.inheritance;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.List;
 
+import javax.jdo.JDODataStoreException;
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Query;
 import javax.jdo.Transaction;
 
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -294,5 +300,60 @@ public class InheritanceTest extends CassandraTest {
 
     }
 
+    /**
+     * The class of an id is resolved once and remembered. Subclass column
+     * families are probed in parallel, and a deleted object isn't found again
+     * through the remembered class
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testClassResolutionCached() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.threads", "4");
+
+        GrandChildTwoOne first = new GrandChildTwoOne();
+        first.setChildField("cf-cached1");
+        first.setGrandChildOneField("gcf-cached1");
+        first.setParentField("pf-cached1");
+
+        GrandChildTwoTwo second = new GrandChildTwoTwo();
+        second.setChildField("cf-cached2");
+        second.setGrandChildOneField("gcf-cached2");
+        second.setParentField("pf-cached2");
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        pm.makePersistent(first);
+        pm.makePersistent(second);
+
+        // the second read of each id uses the remembered class
+        for (int i = 0; i < 2; i++) {
+            pm = factory.getPersistenceManager();
+
+            ChildTwo savedFirst = pm.getObjectById(ChildTwo.class,
+                    first.getId());
+            assertTrue(savedFirst instanceof GrandChildTwoOne);
+            assertEquals("gcf-cached1",
+                    ((GrandChildTwoOne) savedFirst).getGrandChildOneField());
+
+            ChildTwo savedSecond = pm.getObjectById(ChildTwo.class,
+                    second.getId());
+            assertTrue(savedSecond instanceof GrandChildTwoTwo);
+            assertEquals("gcf-cached2",
+                    ((GrandChildTwoTwo) savedSecond).getGrandChildOneField());
+        }
+
+        pm.deletePersistent(pm.getObjectById(ChildTwo.class, first.getId()));
+
+        try {
+            factory.getPersistenceManager().getObjectById(ChildTwo.class,
+                    first.getId());
+            fail("Deleted object should not be found");
+        } catch (JDOObjectNotFoundException e) {
+            // expected
+        } catch (JDODataStoreException e) {
+            assertTrue(e.getCause() instanceof NucleusObjectNotFoundException);
+        }
+    }
 
 }
@@ -0,0 +1,83 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * @author Todd Nine
+ *
+ */
+public class LruCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        LruCache<String, String> cache = new LruCache<String, String>(2, 0, 0);
+
+        cache.put("a", "a");
+        cache.put("b", "b");
+
+        // touch a so b is the eldest
+        assertEquals("a", cache.get("a"));
+
+        cache.put("c", "c");
+
+        assertEquals("a", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("c", cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void evictsByWeight() {
+        LruCache<String, String> cache = new LruCache<String, String>(100, 10, 0);
+
+        cache.put("a", "a", 4);
+        cache.put("b", "b", 4);
+        cache.put("c", "c", 4);
+
+        assertNull(cache.get("a"));
+        assertEquals("b", cache.get("b"));
+        assertEquals("c", cache.get("c"));
+    }
+
+    @Test
+    public void expires() throws InterruptedException {
+        LruCache<String, String> cache = new LruCache<String, String>(100, 0, 1);
+
+        cache.put("a", "a");
+
+        Thread.sleep(10);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void remove() {
+        LruCache<String, String> cache = new LruCache<String, String>(100, 0, 0);
+
+        cache.put("a", "a");
+        cache.remove("a");
+
+        assertNull(cache.get("a"));
+    }
+
+}
@@ -0,0 +1,150 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.jdo.JDODataStoreException;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.InvitationToken;
+
+/**
+ * Tests rows found not to exist are remembered until they are written
+ *
+ * @author Todd Nine
+ *
+ */
+public class MissingRowCacheTest extends CassandraTest {
+
+    private PersistenceManagerFactory getMissingCached() {
+        return getFactory("com.spidertracks.cassandra.missingcachesize",
+                "100", "com.spidertracks.cassandra.missingcachettl", "60000");
+    }
+
+    /**
+     * @param factory
+     * @param token
+     * @return True if the token is stored
+     */
+    private static boolean exists(PersistenceManagerFactory factory,
+            String token) {
+        try {
+            factory.getPersistenceManager().getObjectById(
+                    InvitationToken.class, token);
+            return true;
+        } catch (JDOObjectNotFoundException n) {
+            return false;
+        } catch (JDODataStoreException n) {
+            if (n.getCause() instanceof NucleusObjectNotFoundException) {
+                return false;
+            }
+
+            throw n;
+        }
+    }
+
+    /**
+     * @param pm
+     * @param token
+     * @return True if the token is remembered as missing
+     */
+    private static boolean isMissing(PersistenceManager pm, String token) {
+        CassandraStoreManager manager = getStoreManager(pm);
+
+        Bytes key = manager.getByteConverterContext().getRowKeyForId(token);
+
+        return manager.getMissingRowCache().isMissing("InvitationToken", key);
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        assertNull(getStoreManager(pmf.getPersistenceManager())
+                .getMissingRowCache());
+    }
+
+    @Test
+    public void testMissingRemembered() throws Exception {
+        PersistenceManagerFactory factory = getMissingCached();
+
+        assertFalse(exists(factory, "missing-remembered"));
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        assertTrue(isMissing(pm, "missing-remembered"));
+
+        // still missing when answered by the cache
+        assertFalse(exists(factory, "missing-remembered"));
+    }
+
+    @Test
+    public void testWriteForgetsMissing() throws Exception {
+        PersistenceManagerFactory factory = getMissingCached();
+
+        assertFalse(exists(factory, "missing-written"));
+
+        InvitationToken token = new InvitationToken();
+        token.setToken("missing-written");
+        token.setTestString("written");
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        pm.makePersistent(token);
+
+        assertFalse(isMissing(pm, "missing-written"));
+
+        InvitationToken saved = factory.getPersistenceManager()
+                .getObjectById(InvitationToken.class, "missing-written");
+
+        assertEquals("written", saved.getTestString());
+    }
+
+    /**
+     * A row found missing before it was written isn't remembered as missing
+     * once the write has invalidated it
+     */
+    @Test
+    public void testStaleMissingNotRemembered() throws Exception {
+        CassandraStoreManager manager = getStoreManager(getMissingCached()
+                .getPersistenceManager());
+
+        Bytes key = manager.getByteConverterContext().getRowKeyForId(
+                "missing-raced");
+
+        long version = manager.getRowVersion("InvitationToken", key);
+
+        // written while the row was being read
+        manager.invalidateRow("InvitationToken", key);
+
+        manager.setRowMissing("InvitationToken", key, version);
+
+        assertFalse(manager.getMissingRowCache().isMissing("InvitationToken",
+                key));
+    }
+
+}
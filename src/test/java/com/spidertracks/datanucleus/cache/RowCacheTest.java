@@ -0,0 +1,179 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+
+import javax.jdo.JDODataStoreException;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Transaction;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.cache.model.Country;
+
+/**
+ * Tests rows of cached classes are read from the row cache and removed from it
+ * when written
+ *
+ * @author Todd Nine
+ *
+ */
+public class RowCacheTest extends CassandraTest {
+
+    /**
+     * Get the cached columns of a country
+     *
+     * @param pm
+     * @param code
+     * @return
+     */
+    private static Object getCached(PersistenceManager pm, String code) {
+        CassandraStoreManager manager = getStoreManager(pm);
+
+        Bytes key = manager.getByteConverterContext().getRowKeyForId(code);
+
+        return manager.getRowCache().get("Country", key);
+    }
+
+    /**
+     * @param code
+     * @return True if the country is stored
+     */
+    private static boolean exists(String code) {
+        try {
+            pmf.getPersistenceManager().getObjectById(Country.class, code);
+            return true;
+        } catch (JDOObjectNotFoundException n) {
+            return false;
+        } catch (JDODataStoreException n) {
+            if (n.getCause() instanceof NucleusObjectNotFoundException) {
+                return false;
+            }
+
+            throw n;
+        }
+    }
+
+    @Test
+    public void testLoadCached() throws Exception {
+        pmf.getPersistenceManager().makePersistent(
+                new Country("NZ", "New Zealand"));
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+
+        assertEquals("New Zealand", pm.getObjectById(Country.class, "NZ")
+                .getName());
+
+        assertNotNull(getCached(pm, "NZ"));
+
+        // read from the cache
+        assertEquals("New Zealand", pmf.getPersistenceManager()
+                .getObjectById(Country.class, "NZ").getName());
+    }
+
+    @Test
+    public void testUpdateInvalidates() throws Exception {
+        pmf.getPersistenceManager().makePersistent(
+                new Country("AU", "Australia"));
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        tx.begin();
+
+        Country country = pm.getObjectById(Country.class, "AU");
+        assertNotNull(getCached(pm, "AU"));
+
+        country.setName("Commonwealth of Australia");
+
+        tx.commit();
+
+        assertNull(getCached(pm, "AU"));
+
+        assertEquals("Commonwealth of Australia", pmf.getPersistenceManager()
+                .getObjectById(Country.class, "AU").getName());
+    }
+
+    @Test
+    public void testDeleteInvalidates() throws Exception {
+        pmf.getPersistenceManager().makePersistent(
+                new Country("FJ", "Fiji"));
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+
+        Country country = pm.getObjectById(Country.class, "FJ");
+        assertNotNull(getCached(pm, "FJ"));
+
+        pm.deletePersistent(country);
+
+        assertNull(getCached(pm, "FJ"));
+        assertFalse(exists("FJ"));
+    }
+
+    @Test
+    public void testMissingNotCached() throws Exception {
+        assertFalse(exists("XX"));
+
+        assertNull(getCached(pmf.getPersistenceManager(), "XX"));
+    }
+
+    /**
+     * A row read before it was invalidated isn't cached, otherwise the stale
+     * copy would outlive the write
+     */
+    @Test
+    public void testStaleReadNotCached() throws Exception {
+        CassandraStoreManager manager = getStoreManager(pmf
+                .getPersistenceManager());
+
+        Bytes key = manager.getByteConverterContext().getRowKeyForId("CK");
+
+        Column column = new Column(Bytes.fromUTF8("name").getBytes());
+        column.setValue(Bytes.fromUTF8("Cook Islands").getBytes());
+
+        long version = manager.getRowVersion("Country", key);
+
+        // written while the row was being read
+        manager.invalidateRow("Country", key);
+
+        manager.cacheRow("Country", key, Collections.singletonList(column),
+                version);
+
+        assertNull(manager.getRowCache().get("Country", key));
+
+        // read after the write, so it's cached
+        manager.cacheRow("Country", key, Collections.singletonList(column),
+                manager.getRowVersion("Country", key));
+
+        assertNotNull(manager.getRowCache().get("Country", key));
+
+        manager.invalidateRow("Country", key);
+    }
+
+}
@@ -23,11 +23,17 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.SortedSet;
 
+import javax.jdo.FetchPlan;
 import javax.jdo.JDODataStoreException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Transaction;
 
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
@@ -42,6 +48,8 @@ import com.spidertracks.datanucleus.collection.model.User;
 import com.spidertracks.datanucleus.collection.model.Vehicle;
 import com.spidertracks.datanucleus.collection.model.Beer;
 import com.spidertracks.datanucleus.collection.model.Case;
+import com.spidertracks.datanucleus.collection.model.Rack;
+import com.spidertracks.datanucleus.collection.model.Shelf;
 
 /**
  * @author Todd Nine
@@ -448,4 +456,573 @@ public class CollectionTest extends CassandraTest {
 
     }
 
+    /**
+     * A lazy collection copied to a new object must be written in full, it's
+     * tracked changes belong to the object it was read from
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazyCollectionCopiedOnInsert() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        Case c = new Case();
+
+        Beer farmerBrown = new Beer();
+        farmerBrown.setName("Farmer Brown");
+        c.addBeer(farmerBrown);
+
+        Beer csw = new Beer();
+        csw.setName("Cabot Street Wheat");
+        c.addBeer(csw);
+
+        factory.getPersistenceManager().makePersistent(c);
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Case saved = pm.getObjectById(Case.class, c.getId());
+
+        Case copy = new Case();
+        copy.setBeers(saved.getBeers());
+
+        pm.makePersistent(copy);
+
+        trans.commit();
+
+        Case savedCopy = factory.getPersistenceManager().getObjectById(
+                Case.class, copy.getId());
+
+        assertEquals(2, savedCopy.getBeers().size());
+        assertTrue(savedCopy.getBeers().contains(farmerBrown));
+        assertTrue(savedCopy.getBeers().contains(csw));
+    }
+
+    /**
+     * A changed lazy collection copied to another stored object. Both rows
+     * must hold every element
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazyCollectionCopiedOnUpdate() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        Case c = new Case();
+
+        Beer farmerBrown = new Beer();
+        farmerBrown.setName("Farmer Brown");
+        c.addBeer(farmerBrown);
+
+        Case other = new Case();
+
+        Beer csw = new Beer();
+        csw.setName("Cabot Street Wheat");
+        other.addBeer(csw);
+
+        factory.getPersistenceManager().makePersistent(c);
+        factory.getPersistenceManager().makePersistent(other);
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Case saved = pm.getObjectById(Case.class, c.getId());
+        Case savedOther = pm.getObjectById(Case.class, other.getId());
+
+        Beer added = new Beer();
+        added.setName("Added");
+        saved.getBeers().add(added);
+
+        savedOther.setBeers(saved.getBeers());
+
+        trans.commit();
+
+        saved = factory.getPersistenceManager().getObjectById(Case.class,
+                c.getId());
+
+        assertEquals(2, saved.getBeers().size());
+        assertTrue(saved.getBeers().contains(farmerBrown));
+        assertTrue(saved.getBeers().contains(added));
+
+        savedOther = factory.getPersistenceManager().getObjectById(Case.class,
+                other.getId());
+
+        assertEquals(2, savedOther.getBeers().size());
+        assertTrue(savedOther.getBeers().contains(farmerBrown));
+        assertTrue(savedOther.getBeers().contains(added));
+        assertFalse(savedOther.getBeers().contains(csw));
+    }
+
+    /**
+     * With buffered writes the changes of a lazy collection are still seen
+     * by reads after a flush, until the transaction commits
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazyCollectionChangesBuffered() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true",
+                "com.spidertracks.cassandra.bufferwrites", "true");
+
+        Case c = new Case();
+
+        Beer farmerBrown = new Beer();
+        farmerBrown.setName("Farmer Brown");
+        c.addBeer(farmerBrown);
+
+        factory.getPersistenceManager().makePersistent(c);
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Case saved = pm.getObjectById(Case.class, c.getId());
+
+        Beer added = new Beer();
+        added.setName("Added");
+        saved.getBeers().add(added);
+
+        Beer removed = pm.getObjectById(Beer.class, farmerBrown.getId());
+        saved.getBeers().remove(removed);
+
+        pm.flush();
+
+        assertTrue(saved.getBeers().contains(added));
+        assertFalse(saved.getBeers().contains(removed));
+        assertFalse(((LazyCollection) saved.getBeers()).isLoaded());
+
+        trans.commit();
+
+        saved = factory.getPersistenceManager().getObjectById(Case.class,
+                c.getId());
+
+        assertEquals(1, saved.getBeers().size());
+        assertTrue(saved.getBeers().contains(added));
+    }
+
+    /**
+     * New beers have no row key, they can be added to a lazy sorted set before
+     * and after it's loaded
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazySortedSetTransientElements() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        Shelf shelf = new Shelf();
+
+        Beer farmerBrown = new Beer("Farmer Brown");
+        shelf.addBeer(farmerBrown);
+
+        Beer csw = new Beer("Cabot Street Wheat");
+        shelf.addBeer(csw);
+
+        factory.getPersistenceManager().makePersistent(shelf);
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Shelf saved = pm.getObjectById(Shelf.class, shelf.getId());
+
+        assertTrue(saved.getBeers() instanceof LazySortedSet);
+
+        // added before the set is loaded
+        Beer stout = new Beer("Stout");
+        assertTrue(saved.getBeers().add(stout));
+
+        Beer lager = new Beer("Lager");
+        assertTrue(saved.getBeers().add(lager));
+
+        // loads the set
+        assertEquals(4, saved.getBeers().size());
+
+        Beer porter = new Beer("Porter");
+        assertTrue(saved.getBeers().add(porter));
+
+        assertEquals(5, saved.getBeers().size());
+        assertTrue(saved.getBeers().contains(porter));
+
+        // beers without a row key follow the stored ones
+        assertEquals(porter, saved.getBeers().last());
+
+        trans.commit();
+
+        saved = factory.getPersistenceManager().getObjectById(Shelf.class,
+                shelf.getId());
+
+        assertEquals(5, saved.getBeers().size());
+        assertTrue(saved.getBeers().contains(farmerBrown));
+        assertTrue(saved.getBeers().contains(csw));
+        assertTrue(saved.getBeers().contains(stout));
+        assertTrue(saved.getBeers().contains(lager));
+        assertTrue(saved.getBeers().contains(porter));
+    }
+
+    /**
+     * A sorted set with a declared comparator isn't ordered by row key
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSortedSetWithComparator() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        Rack rack = new Rack();
+
+        rack.addBeer(new Beer("Stout"));
+        rack.addBeer(new Beer("Cabot Street Wheat"));
+        rack.addBeer(new Beer("Farmer Brown"));
+
+        factory.getPersistenceManager().makePersistent(rack);
+
+        Rack saved = factory.getPersistenceManager().getObjectById(Rack.class,
+                rack.getId());
+
+        assertFalse(saved.getBeers() instanceof LazySortedSet);
+
+        Iterator<Beer> beers = saved.getBeers().iterator();
+
+        assertEquals("Cabot Street Wheat", beers.next().getName());
+        assertEquals("Farmer Brown", beers.next().getName());
+        assertEquals("Stout", beers.next().getName());
+        assertFalse(beers.hasNext());
+    }
+
+    /**
+     * A detached lazy collection is copied into a plain collection that can
+     * be read once the persistence manager is closed
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazyCollectionDetached() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        Pack pack = new Pack();
+
+        for (int i = 0; i < 3; i++) {
+            pack.addCard(new Card("card " + i));
+        }
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        pm.getFetchPlan().setGroup(FetchPlan.ALL);
+
+        Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+        Pack detached = pm.detachCopy(saved);
+
+        pm.close();
+
+        assertFalse(detached.getCards() instanceof LazyCollection);
+        assertEquals(3, detached.getCards().size());
+
+        for (Card card : pack.getCards()) {
+            assertTrue(detached.getCards().contains(card));
+        }
+    }
+
+    /**
+     * The size of a lazy collection counts it's columns without loading it,
+     * including the column of a deleted element that iteration skips
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazyCollectionSizeCountsColumns() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        Pack pack = new Pack();
+
+        for (int i = 0; i < 3; i++) {
+            pack.addCard(new Card("card " + i));
+        }
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        PersistenceManager deletePm = factory.getPersistenceManager();
+        deletePm.deletePersistent(deletePm.getObjectById(Card.class, pack
+                .getCards().get(0).getId()));
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        List<Card> cards = pm.getObjectById(Pack.class, pack.getId())
+                .getCards();
+
+        // the column of the deleted card is still counted
+        assertEquals(3, cards.size());
+        assertFalse(cards.isEmpty());
+        assertFalse(((LazyCollection) cards).isLoaded());
+
+        int count = 0;
+
+        for (Iterator<Card> it = cards.iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+
+        assertEquals(2, count);
+
+        // positional access loads the elements, the size then matches
+        assertNotNull(cards.get(0));
+        assertEquals(count, cards.size());
+    }
+
+    /**
+     * A relation of more columns than a page is read a page at a time
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRelationPaged() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.pagesize", "3");
+
+        Pack pack = new Pack();
+
+        for (int i = 0; i < 10; i++) {
+            pack.addCard(new Card("paged " + i));
+        }
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        Pack saved = factory.getPersistenceManager().getObjectById(Pack.class,
+                pack.getId());
+
+        assertEquals(10, saved.getCards().size());
+
+        for (Card card : pack.getCards()) {
+            assertTrue(saved.getCards().contains(card));
+        }
+    }
+
+    /**
+     * Rows with relations are read in a single slice when they're small
+     * enough, and rows larger than the slice are still read in full
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testFullRowSlice() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.fullrowsize", "10");
+
+        Pack small = new Pack();
+
+        for (int i = 0; i < 3; i++) {
+            small.addCard(new Card("small " + i));
+        }
+
+        Pack large = new Pack();
+
+        for (int i = 0; i < 20; i++) {
+            large.addCard(new Card("large " + i));
+        }
+
+        factory.getPersistenceManager().makePersistent(small);
+        factory.getPersistenceManager().makePersistent(large);
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        for (Pack pack : new Pack[] { small, large }) {
+            Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+            assertEquals(pack.getCards().size(), saved.getCards().size());
+
+            for (Card card : pack.getCards()) {
+                assertTrue(saved.getCards().contains(card));
+            }
+        }
+    }
+
+    /**
+     * contains() and isEmpty() are answered from the element columns without
+     * loading the collection
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazyContainsWithoutLoad() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        Pack pack = new Pack();
+
+        for (int i = 0; i < 3; i++) {
+            pack.addCard(new Card("contained " + i));
+        }
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        Pack other = new Pack();
+        Card outside = new Card("outside");
+        other.addCard(outside);
+
+        factory.getPersistenceManager().makePersistent(other);
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        List<Card> cards = pm.getObjectById(Pack.class, pack.getId())
+                .getCards();
+
+        assertTrue(cards instanceof LazyCollection);
+
+        assertFalse(cards.isEmpty());
+        assertTrue(cards.contains(pm.getObjectById(Card.class, pack
+                .getCards().get(1).getId())));
+        assertFalse(cards.contains(pm.getObjectById(Card.class, outside
+                .getId())));
+
+        assertFalse(((LazyCollection) cards).isLoaded());
+
+        assertEquals(3, cards.size());
+        assertFalse(((LazyCollection) cards).isLoaded());
+    }
+
+    /**
+     * Ranges of a lazy sorted set are read as column slices in row key order,
+     * without loading the set
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazySortedSetRanges() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        Shelf shelf = new Shelf();
+
+        for (int i = 0; i < 5; i++) {
+            shelf.addBeer(new Beer("ranged " + i));
+        }
+
+        factory.getPersistenceManager().makePersistent(shelf);
+
+        // the row key order, read by iterating the whole set
+        List<Beer> ordered = new ArrayList<Beer>(factory
+                .getPersistenceManager().getObjectById(Shelf.class,
+                        shelf.getId()).getBeers());
+
+        assertEquals(5, ordered.size());
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        SortedSet<Beer> beers = pm.getObjectById(Shelf.class, shelf.getId())
+                .getBeers();
+
+        Beer middle = pm.getObjectById(Beer.class, ordered.get(2).getId());
+
+        assertEquals(ordered.get(0), beers.first());
+        assertEquals(ordered.get(4), beers.last());
+
+        assertEquals(ordered.subList(0, 2), new ArrayList<Beer>(beers
+                .headSet(middle)));
+        assertEquals(ordered.subList(2, 5), new ArrayList<Beer>(beers
+                .tailSet(middle)));
+        assertEquals(2, beers.headSet(middle).size());
+
+        assertFalse(((LazyCollection) beers).isLoaded());
+    }
+
+    /**
+     * The indexes of a sub list of a lazy list skip deleted elements, as
+     * iteration does, and a range past the end is rejected
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazySubList() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        Pack pack = new Pack();
+
+        for (int i = 0; i < 4; i++) {
+            pack.addCard(new Card("sub list " + i));
+        }
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        // the row key order, read by iterating the whole list
+        List<Card> ordered = new ArrayList<Card>(factory
+                .getPersistenceManager().getObjectById(Pack.class,
+                        pack.getId()).getCards());
+
+        PersistenceManager deletePm = factory.getPersistenceManager();
+        deletePm.deletePersistent(deletePm.getObjectById(Card.class, ordered
+                .get(0).getId()));
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        List<Card> cards = pm.getObjectById(Pack.class, pack.getId())
+                .getCards();
+
+        assertEquals(ordered.subList(1, 3), cards.subList(0, 2));
+        assertEquals(ordered.subList(2, 4), cards.subList(1, 3));
+        assertFalse(((LazyCollection) cards).isLoaded());
+
+        try {
+            cards.subList(1, 4);
+            fail("The range ends past the last element");
+        } catch (IndexOutOfBoundsException e) {
+        }
+
+        try {
+            cards.subList(0, 1).clear();
+            fail("Sub lists are read only");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    /**
+     * The size of a range of a lazy sorted set counts it's columns, including
+     * the column of a deleted element that iteration skips
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazySortedSetRangeSizeCountsColumns() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        Shelf shelf = new Shelf();
+
+        for (int i = 0; i < 4; i++) {
+            shelf.addBeer(new Beer("counted " + i));
+        }
+
+        factory.getPersistenceManager().makePersistent(shelf);
+
+        // the row key order, read by iterating the whole set
+        List<Beer> ordered = new ArrayList<Beer>(factory
+                .getPersistenceManager().getObjectById(Shelf.class,
+                        shelf.getId()).getBeers());
+
+        PersistenceManager deletePm = factory.getPersistenceManager();
+        deletePm.deletePersistent(deletePm.getObjectById(Beer.class, ordered
+                .get(0).getId()));
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        SortedSet<Beer> beers = pm.getObjectById(Shelf.class, shelf.getId())
+                .getBeers();
+
+        SortedSet<Beer> head = beers.headSet(pm.getObjectById(Beer.class,
+                ordered.get(2).getId()));
+
+        assertEquals(2, head.size());
+        assertEquals(ordered.subList(1, 2), new ArrayList<Beer>(head));
+    }
+
 }
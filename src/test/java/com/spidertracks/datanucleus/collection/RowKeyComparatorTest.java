@@ -0,0 +1,59 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author Todd Nine
+ *
+ */
+public class RowKeyComparatorTest {
+
+    @Test
+    public void comparesUnsigned() {
+        ByteBuffer low = ByteBuffer.wrap(new byte[] { 0x7f });
+        ByteBuffer high = ByteBuffer.wrap(new byte[] { (byte) 0x80 });
+
+        assertTrue(RowKeyComparator.compare(low, high) < 0);
+        assertTrue(RowKeyComparator.compare(high, low) > 0);
+    }
+
+    @Test
+    public void shorterPrefixFirst() {
+        ByteBuffer prefix = ByteBuffer.wrap(new byte[] { 1, 2 });
+        ByteBuffer longer = ByteBuffer.wrap(new byte[] { 1, 2, 0 });
+
+        assertTrue(RowKeyComparator.compare(prefix, longer) < 0);
+        assertEquals(0, RowKeyComparator.compare(prefix, prefix.duplicate()));
+    }
+
+    @Test
+    public void usesRemainingBytes() {
+        ByteBuffer offset = ByteBuffer.wrap(new byte[] { 9, 1, 2 });
+        offset.position(1);
+
+        assertEquals(0, RowKeyComparator.compare(offset,
+                ByteBuffer.wrap(new byte[] { 1, 2 })));
+    }
+
+}
@@ -0,0 +1,33 @@
+/**********************************************************************
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection.model;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * Orders beers by their names
+ */
+public class BeerNameComparator implements Comparator<Object>, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    public int compare(Object o1, Object o2)
+    {
+        return ((Beer) o1).getName().compareTo(((Beer) o2).getName());
+    }
+}
@@ -49,6 +49,14 @@ public class Case extends Generic implements Serializable
         return beers;
     }
     
+    /**
+     * @param beers the beers to set
+     */
+    public void setBeers(List<Beer> beers)
+    {
+        this.beers = beers;
+    }
+
     public void addBeer(Beer beer)
     {
         if(this.beers == null){
@@ -0,0 +1,58 @@
+/**********************************************************************
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection.model;
+
+import java.io.Serializable;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.jdo.annotations.Element;
+import javax.jdo.annotations.Extension;
+import javax.jdo.annotations.Inheritance;
+import javax.jdo.annotations.InheritanceStrategy;
+import javax.jdo.annotations.PersistenceCapable;
+
+/**
+ * An object with a sorted set that declares it's comparator, so the beers
+ * are always ordered by name.
+ */
+@PersistenceCapable
+@Inheritance(strategy = InheritanceStrategy.SUPERCLASS_TABLE)
+public class Rack extends Generic implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    @Element(dependent="true")
+    @Extension(vendorName="datanucleus", key="comparator-name", value="com.spidertracks.datanucleus.collection.model.BeerNameComparator")
+    private SortedSet<Beer> beers;
+
+    /**
+     * @return the beers
+     */
+    public SortedSet<Beer> getBeers()
+    {
+        return beers;
+    }
+
+    public void addBeer(Beer beer)
+    {
+        if(this.beers == null){
+            this.beers = new TreeSet<Beer>(new BeerNameComparator());
+        }
+        this.beers.add(beer);
+    }
+}
@@ -0,0 +1,159 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.BulkLoader;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.collection.model.Card;
+import com.spidertracks.datanucleus.collection.model.Pack;
+
+/**
+ * Tests loading many objects with multiget slices
+ *
+ * @author Todd Nine
+ *
+ */
+public class BatchFetchTest extends CassandraTest {
+
+    @Test
+    public void testGetObjectsById() throws Exception {
+        List<UUID> ids = new ArrayList<UUID>();
+
+        for (int i = 0; i < 10; i++) {
+            Card card = new Card("card " + i);
+            pmf.getPersistenceManager().makePersistent(card);
+            ids.add(card.getId());
+        }
+
+        // never stored
+        ids.add(new UUID());
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+
+        BatchFetchManager fetchManager = getStoreManager(pm)
+                .getBatchFetchManager();
+
+        long before = fetchManager.getMultigetCount();
+
+        List<Card> cards = BulkLoader.getObjectsById(pm, Card.class, ids);
+
+        // every card is read with a single multiget
+        assertEquals(1, fetchManager.getMultigetCount() - before);
+
+        assertEquals(ids.size(), cards.size());
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(ids.get(i), cards.get(i).getId());
+            assertEquals("card " + i, cards.get(i).getName());
+        }
+
+        assertNull(cards.get(10));
+    }
+
+    /**
+     * The packs referenced by a batch of cards are read with the batch
+     */
+    @Test
+    public void testPrefetch() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.prefetchdepth", "1");
+
+        List<UUID> ids = new ArrayList<UUID>();
+        List<Pack> packs = new ArrayList<Pack>();
+
+        for (int i = 0; i < 5; i++) {
+            Pack pack = new Pack();
+            pack.addCard(new Card("prefetched " + i));
+
+            factory.getPersistenceManager().makePersistent(pack);
+
+            ids.add(pack.getCards().get(0).getId());
+            packs.add(pack);
+        }
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        BatchFetchManager fetchManager = getStoreManager(pm)
+                .getBatchFetchManager();
+
+        long before = fetchManager.getMultigetCount();
+
+        List<Card> cards = BulkLoader.getObjectsById(pm, Card.class, ids);
+
+        // one multiget for the cards, one for their packs
+        assertEquals(2, fetchManager.getMultigetCount() - before);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(packs.get(i), cards.get(i).getPack());
+        }
+    }
+
+    /**
+     * A reference to a row that no longer exists is loaded as a hollow object
+     * rather than null when hollow references are enabled
+     */
+    @Test
+    public void testHollowReference() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.hollowreferences", "true");
+
+        Pack pack = new Pack();
+        Card card = new Card("hollow");
+        pack.addCard(card);
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        // remove the pack's row without touching the card
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        Bytes key = getStoreManager(pm).getByteConverterContext()
+                .getRowKeyForId(pack.getId());
+
+        // stamped after the write, which is stamped when it's sent
+        Pelops.createRowDeletor("TestPool", System.currentTimeMillis() + 1000)
+                .deleteRow("Pack", key, ConsistencyLevel.QUORUM);
+
+        Card hollow = pm.getObjectById(Card.class, card.getId());
+
+        assertNotNull(hollow.getPack());
+        assertEquals(pack.getId(), hollow.getPack().getId());
+
+        // the reference is validated without hollow references
+        Card validated = pmf.getPersistenceManager().getObjectById(Card.class,
+                card.getId());
+
+        assertNull(validated.getPack());
+    }
+
+}
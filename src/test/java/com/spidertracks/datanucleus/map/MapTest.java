@@ -23,8 +23,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.jdo.FetchPlan;
 import javax.jdo.JDODataStoreException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Transaction;
 
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
@@ -33,6 +38,7 @@ import org.junit.Test;
 
 import com.eaio.uuid.UUID;
 import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.collection.LazyMap;
 import com.spidertracks.datanucleus.collection.model.Card;
 import com.spidertracks.datanucleus.collection.model.Pack;
 import com.spidertracks.datanucleus.map.model.CardMap;
@@ -220,4 +226,274 @@ public class MapTest extends CassandraTest {
 
     }
 
+    /**
+     * A map of more entries than a page is read a page at a time
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMapPaged() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.pagesize", "3");
+
+        PackMap pack = new PackMap();
+
+        for (int i = 0; i < 10; i++) {
+            CardMap card = new CardMap();
+            card.setName("paged " + i);
+            pack.AddCard(card);
+        }
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        PackMap saved = factory.getPersistenceManager().getObjectById(
+                PackMap.class, pack.getId());
+
+        assertEquals(10, saved.getCards().size());
+
+        for (CardMap card : pack.getCards().values()) {
+            assertEquals(card, saved.getCards().get(card.getName()));
+        }
+    }
+
+    /**
+     * Entries removed, replaced and added in one update are all written
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMapChangesWritten() throws Exception {
+        PackMap pack = new PackMap();
+
+        CardMap aceSpades = new CardMap();
+        aceSpades.setName("Ace of Spades");
+        pack.AddCard(aceSpades);
+
+        CardMap jackHearts = new CardMap();
+        jackHearts.setName("Jack of Hearts");
+        pack.AddCard(jackHearts);
+
+        CardMap twoClubs = new CardMap();
+        twoClubs.setName("Two of Clubs");
+        pack.AddCard(twoClubs);
+
+        pmf.getPersistenceManager().makePersistent(pack);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        tx.begin();
+
+        PackMap saved = pm.getObjectById(PackMap.class, pack.getId());
+
+        saved.getCards().remove(aceSpades.getName());
+
+        // a different card under an existing key
+        CardMap jokerHearts = new CardMap();
+        jokerHearts.setName("Joker");
+        jokerHearts.setPack(saved);
+        saved.getCards().put(jackHearts.getName(), jokerHearts);
+
+        CardMap queenDiamonds = new CardMap();
+        queenDiamonds.setName("Queen of Diamonds");
+        saved.AddCard(queenDiamonds);
+
+        tx.commit();
+
+        PackMap updated = pmf.getPersistenceManager().getObjectById(
+                PackMap.class, pack.getId());
+
+        assertEquals(3, updated.getCards().size());
+        assertNull(updated.getCards().get(aceSpades.getName()));
+        assertEquals(jokerHearts, updated.getCards().get(jackHearts.getName()));
+        assertEquals(twoClubs, updated.getCards().get(twoClubs.getName()));
+        assertEquals(queenDiamonds, updated.getCards().get(
+                queenDiamonds.getName()));
+    }
+
+    /**
+     * A lazy map reads and writes single entries without loading the others
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazyMapEntries() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        PackMap pack = new PackMap();
+
+        CardMap aceSpades = new CardMap();
+        aceSpades.setName("Ace of Spades");
+        pack.AddCard(aceSpades);
+
+        CardMap jackHearts = new CardMap();
+        jackHearts.setName("Jack of Hearts");
+        pack.AddCard(jackHearts);
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        tx.begin();
+
+        PackMap saved = pm.getObjectById(PackMap.class, pack.getId());
+
+        assertTrue(saved.getCards() instanceof LazyMap);
+
+        assertEquals(aceSpades, saved.getCards().get(aceSpades.getName()));
+        assertNull(saved.getCards().get("Missing"));
+
+        CardMap queenDiamonds = new CardMap();
+        queenDiamonds.setName("Queen of Diamonds");
+        saved.AddCard(queenDiamonds);
+
+        saved.getCards().remove(jackHearts.getName());
+
+        assertFalse(((LazyMap) saved.getCards()).isLoaded());
+
+        tx.commit();
+
+        PackMap updated = factory.getPersistenceManager().getObjectById(
+                PackMap.class, pack.getId());
+
+        assertEquals(aceSpades, updated.getCards().get(aceSpades.getName()));
+        assertEquals(queenDiamonds, updated.getCards().get(
+                queenDiamonds.getName()));
+        assertFalse(updated.getCards().containsKey(jackHearts.getName()));
+        assertEquals(2, updated.getCards().size());
+    }
+
+    /**
+     * With buffered writes the entries put into and removed from a lazy map
+     * are still seen by reads after a flush, until the transaction commits
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazyMapChangesBuffered() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true",
+                "com.spidertracks.cassandra.bufferwrites", "true");
+
+        PackMap pack = new PackMap();
+
+        CardMap aceSpades = new CardMap();
+        aceSpades.setName("Ace of Spades");
+        pack.AddCard(aceSpades);
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        tx.begin();
+
+        PackMap saved = pm.getObjectById(PackMap.class, pack.getId());
+
+        CardMap queenDiamonds = new CardMap();
+        queenDiamonds.setName("Queen of Diamonds");
+        saved.AddCard(queenDiamonds);
+
+        saved.getCards().remove(aceSpades.getName());
+
+        pm.flush();
+
+        assertEquals(queenDiamonds, saved.getCards().get(
+                queenDiamonds.getName()));
+        assertNull(saved.getCards().get(aceSpades.getName()));
+        assertFalse(((LazyMap) saved.getCards()).isLoaded());
+
+        tx.commit();
+
+        PackMap updated = factory.getPersistenceManager().getObjectById(
+                PackMap.class, pack.getId());
+
+        assertEquals(queenDiamonds, updated.getCards().get(
+                queenDiamonds.getName()));
+        assertFalse(updated.getCards().containsKey(aceSpades.getName()));
+    }
+
+    /**
+     * A detached lazy map is copied into a plain map that can be read once
+     * the persistence manager is closed
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazyMapDetached() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        PackMap pack = new PackMap();
+
+        for (int i = 0; i < 3; i++) {
+            CardMap card = new CardMap();
+            card.setName("card " + i);
+            pack.AddCard(card);
+        }
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        pm.getFetchPlan().setGroup(FetchPlan.ALL);
+
+        PackMap saved = pm.getObjectById(PackMap.class, pack.getId());
+
+        assertTrue(saved.getCards() instanceof LazyMap);
+
+        PackMap detached = pm.detachCopy(saved);
+
+        pm.close();
+
+        assertFalse(detached.getCards() instanceof LazyMap);
+        assertEquals(3, detached.getCards().size());
+
+        for (CardMap card : pack.getCards().values()) {
+            assertEquals(card, detached.getCards().get(card.getName()));
+        }
+    }
+
+    /**
+     * The size of a lazy map is the number of entries it returns, even once
+     * the value of an entry has been deleted
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testLazyMapSizeMatchesEntries() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.lazycollections", "true");
+
+        PackMap pack = new PackMap();
+
+        CardMap aceSpades = new CardMap();
+        aceSpades.setName("Ace of Spades");
+        pack.AddCard(aceSpades);
+
+        CardMap jackHearts = new CardMap();
+        jackHearts.setName("Jack of Hearts");
+        pack.AddCard(jackHearts);
+
+        factory.getPersistenceManager().makePersistent(pack);
+
+        PersistenceManager deletePm = factory.getPersistenceManager();
+        deletePm.deletePersistent(deletePm.getObjectById(CardMap.class,
+                aceSpades.getId()));
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        Map<String, CardMap> cards = pm.getObjectById(PackMap.class,
+                pack.getId()).getCards();
+
+        int count = 0;
+
+        for (Iterator<String> it = cards.keySet().iterator(); it.hasNext(); it
+                .next()) {
+            count++;
+        }
+
+        assertEquals(1, count);
+        assertEquals(count, cards.size());
+        assertFalse(cards.isEmpty());
+    }
+
 }
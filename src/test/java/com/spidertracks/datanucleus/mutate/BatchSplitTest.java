@@ -0,0 +1,109 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.collection.model.Card;
+import com.spidertracks.datanucleus.collection.model.Pack;
+
+/**
+ * Tests writes split over several batches
+ *
+ * @author Todd Nine
+ *
+ */
+public class BatchSplitTest extends CassandraTest {
+
+    /**
+     * Persist a pack of cards
+     *
+     * @param factory
+     * @return
+     */
+    private Pack savePack(PersistenceManagerFactory factory) {
+        Pack pack = new Pack();
+
+        for (int i = 0; i < 10; i++) {
+            pack.addCard(new Card("card " + i));
+        }
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        tx.begin();
+
+        pm.makePersistent(pack);
+
+        tx.commit();
+        pm.close();
+
+        return pack;
+    }
+
+    /**
+     * Check every card of the pack was stored
+     *
+     * @param pack
+     */
+    private void assertStored(Pack pack) {
+        Pack saved = pmf.getPersistenceManager().getObjectById(Pack.class,
+                pack.getId());
+
+        assertEquals(10, saved.getCards().size());
+
+        for (Card card : pack.getCards()) {
+            assertTrue(saved.getCards().contains(card));
+        }
+    }
+
+    @Test
+    public void testSplitByMutations() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.maxbatchmutations", "1",
+                "com.spidertracks.cassandra.threads", "4");
+
+        assertStored(savePack(factory));
+    }
+
+    @Test
+    public void testSplitByBytes() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.maxbatchbytes", "64",
+                "com.spidertracks.cassandra.threads", "4");
+
+        assertStored(savePack(factory));
+    }
+
+    @Test
+    public void testSplitBuffered() throws Exception {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.maxbatchmutations", "1",
+                "com.spidertracks.cassandra.bufferwrites", "true");
+
+        assertStored(savePack(factory));
+    }
+
+}
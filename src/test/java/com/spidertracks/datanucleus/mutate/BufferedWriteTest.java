@@ -0,0 +1,203 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.jdo.JDODataStoreException;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.InvitationToken;
+
+/**
+ * Tests writes buffered until their transaction commits
+ *
+ * @author Todd Nine
+ *
+ */
+public class BufferedWriteTest extends CassandraTest {
+
+    private PersistenceManagerFactory getBuffered() {
+        return getFactory("com.spidertracks.cassandra.bufferwrites", "true");
+    }
+
+    /**
+     * Persist a token outside of a transaction
+     *
+     * @param factory
+     * @param key
+     * @param value
+     */
+    private void save(PersistenceManagerFactory factory, String key,
+            String value) {
+        InvitationToken token = new InvitationToken();
+        token.setToken(key);
+        token.setTestString(value);
+
+        factory.getPersistenceManager().makePersistent(token);
+    }
+
+    /**
+     * @param key
+     * @return True if the token is stored
+     */
+    private boolean exists(String key) {
+        try {
+            pmf.getPersistenceManager().getObjectById(InvitationToken.class,
+                    key);
+            return true;
+        } catch (JDOObjectNotFoundException n) {
+            return false;
+        } catch (JDODataStoreException n) {
+            if (n.getCause() instanceof NucleusObjectNotFoundException) {
+                return false;
+            }
+
+            throw n;
+        }
+    }
+
+    private String load(String key) {
+        return pmf.getPersistenceManager()
+                .getObjectById(InvitationToken.class, key).getTestString();
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        PersistenceManager pm = getBuffered().getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        InvitationToken token = new InvitationToken();
+        token.setToken("buffered-commit");
+        token.setTestString("value");
+
+        pm.makePersistent(token);
+
+        // nothing is sent until the commit
+        assertFalse(exists("buffered-commit"));
+
+        trans.commit();
+
+        assertEquals("value", load("buffered-commit"));
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        PersistenceManager pm = getBuffered().getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        InvitationToken token = new InvitationToken();
+        token.setToken("buffered-rollback");
+        token.setTestString("value");
+
+        pm.makePersistent(token);
+
+        trans.rollback();
+
+        assertFalse(exists("buffered-rollback"));
+    }
+
+    /**
+     * The tombstone of the deleted row must not shadow the new columns
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDeleteThenPersist() throws Exception {
+        deleteThenPersist(getBuffered(), "buffered-repersist");
+    }
+
+    /**
+     * The delete and the insert are sent separately, usually in the same
+     * millisecond
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDeleteThenPersistUnbuffered() throws Exception {
+        deleteThenPersist(pmf, "unbuffered-repersist");
+    }
+
+    private void deleteThenPersist(PersistenceManagerFactory factory,
+            String key) throws Exception {
+        save(factory, key, "first");
+
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        pm.deletePersistent(pm.getObjectById(InvitationToken.class, key));
+        pm.flush();
+
+        InvitationToken token = new InvitationToken();
+        token.setToken(key);
+        token.setTestString("second");
+
+        pm.makePersistent(token);
+
+        trans.commit();
+
+        assertTrue(exists(key));
+        assertEquals("second", load(key));
+    }
+
+    /**
+     * A transaction that commits last wins, even if it wrote first
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLastCommitWins() throws Exception {
+        save(pmf, "buffered-order", "initial");
+
+        PersistenceManager first = getBuffered().getPersistenceManager();
+        Transaction firstTrans = first.currentTransaction();
+        firstTrans.begin();
+
+        first.getObjectById(InvitationToken.class, "buffered-order")
+                .setTestString("first");
+        first.flush();
+
+        PersistenceManager second = getBuffered().getPersistenceManager();
+        Transaction secondTrans = second.currentTransaction();
+        secondTrans.begin();
+
+        second.getObjectById(InvitationToken.class, "buffered-order")
+                .setTestString("second");
+
+        secondTrans.commit();
+
+        assertEquals("second", load("buffered-order"));
+
+        firstTrans.commit();
+
+        assertEquals("first", load("buffered-order"));
+    }
+
+}
@@ -0,0 +1,125 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraPersistenceHandler;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.InvitationToken;
+
+/**
+ * Tests writes of many persistence managers at once
+ *
+ * @author Todd Nine
+ *
+ */
+public class ConcurrentWriteTest extends CassandraTest {
+
+    private static final int THREADS = 8;
+
+    private static final int TOKENS = 20;
+
+    /**
+     * Every thread writes it's own tokens, with and without a transaction.
+     * All are stored and no context is left behind
+     */
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        final PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.threads", "3");
+
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        for (int i = 0; i < THREADS; i++) {
+            final String prefix = "concurrent" + i + "-";
+            final boolean transactional = i % 2 == 0;
+
+            results.add(threads.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    PersistenceManager pm = factory.getPersistenceManager();
+                    Transaction tx = pm.currentTransaction();
+
+                    try {
+                        if (transactional) {
+                            tx.begin();
+                        }
+
+                        for (int j = 0; j < TOKENS; j++) {
+                            InvitationToken token = new InvitationToken();
+                            token.setToken(prefix + j);
+                            token.setTestString(prefix);
+
+                            pm.makePersistent(token);
+                        }
+
+                        if (transactional) {
+                            tx.commit();
+                        }
+                    } finally {
+                        if (tx.isActive()) {
+                            tx.rollback();
+                        }
+                        pm.close();
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<Void> result : results) {
+            result.get();
+        }
+
+        threads.shutdown();
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        for (int i = 0; i < THREADS; i++) {
+            for (int j = 0; j < TOKENS; j++) {
+                InvitationToken token = pm.getObjectById(
+                        InvitationToken.class, "concurrent" + i + "-" + j);
+
+                assertEquals("concurrent" + i + "-", token.getTestString());
+            }
+        }
+
+        CassandraPersistenceHandler handler = (CassandraPersistenceHandler) getStoreManager(
+                pm).getPersistenceHandler();
+
+        assertEquals(0, handler.getBatchMutationManager().getContextCount());
+    }
+
+}
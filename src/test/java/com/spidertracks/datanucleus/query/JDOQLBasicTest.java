@@ -29,6 +29,7 @@ import java.util.List;
 
 import javax.jdo.JDODataStoreException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Query;
 import javax.jdo.Transaction;
 
@@ -51,6 +52,7 @@ import com.spidertracks.datanucleus.basic.model.InvitationToken;
 import com.spidertracks.datanucleus.basic.model.Person;
 import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
 import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.fetch.BatchFetchManager;
 
 public class JDOQLBasicTest extends CassandraTest {
 
@@ -1019,4 +1021,102 @@ public class JDOQLBasicTest extends CassandraTest {
         }
     }
 
+    /**
+     * The branches of || and && queries read their indexes concurrently
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRetrieveConcurrentBranches() {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.threads", "4",
+                "com.spidertracks.cassandra.queryparallelism", "4");
+
+        PersistenceManager pm = factory.getPersistenceManager();
+
+        Query query = pm.newQuery(Person.class);
+        query.setFilter("firstName == :fN || lastName == :lN || email == :e");
+
+        List<Person> results = (List<Person>) query.execute(p1.getFirstName(),
+                p4.getLastName(), p5.getEmail());
+
+        assertEquals(5, results.size());
+
+        query = pm.newQuery(Person.class);
+        query.setFilter("(firstName == :fN || lastName == :lN) && email == :e");
+
+        results = (List<Person>) query.execute(p1.getFirstName(),
+                p4.getLastName(), p4.getEmail());
+
+        assertEquals(1, results.size());
+        assertTrue(results.contains(p4));
+    }
+
+    /**
+     * An && is read from one branch and the rows are checked against the
+     * other, so rows matching only the driving branch are dropped
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRetrieveAndVerified() {
+        PersistenceManager pm = pmf.getPersistenceManager();
+
+        Query query = pm.newQuery(Person.class);
+        query.setFilter("firstName == :fN && lastName == :lN");
+
+        // p1 - p3 share a first name, only p3 has this last name
+        List<Person> results = (List<Person>) query.execute(p1.getFirstName(),
+                p3.getLastName());
+
+        assertEquals(1, results.size());
+        assertTrue(results.contains(p3));
+
+        query = pm.newQuery(Person.class);
+        query.setFilter("firstName == :fN && lastName == :lN");
+
+        // both branches match rows, but never the same one
+        results = (List<Person>) query.execute(p5.getFirstName(),
+                p1.getLastName());
+
+        assertEquals(0, results.size());
+
+        query = pm.newQuery(Person.class);
+        query.setFilter("lastName == :lN && lastLogin >= :loginDate");
+
+        // the range branch is checked against the rows of the equality
+        results = (List<Person>) query.execute(p3.getLastName(),
+                p4.getLastLogin());
+
+        assertEquals(1, results.size());
+        assertTrue(results.contains(p4));
+    }
+
+    /**
+     * The objects matching a query are loaded with a single multiget rather
+     * than a read per object
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testResultsLoadedByMultiget() {
+        PersistenceManager pm = pmf.getPersistenceManager();
+
+        BatchFetchManager fetchManager = getStoreManager(pm)
+                .getBatchFetchManager();
+
+        long before = fetchManager.getMultigetCount();
+
+        Query query = pm.newQuery(PrimitiveObject.class);
+        query.setFilter("testString == 'one' || testString == 'two' || testString == 'three'");
+
+        List<PrimitiveObject> results = (List<PrimitiveObject>) query
+                .execute();
+
+        assertEquals(3, results.size());
+        assertTrue(results.contains(object1));
+        assertTrue(results.contains(object2));
+        assertTrue(results.contains(object3));
+
+        // every result is read with a single multiget
+        assertEquals(1, fetchManager.getMultigetCount() - before);
+    }
+
 }
@@ -0,0 +1,211 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Tests queries with more matches than a single page
+ *
+ * @author Todd Nine
+ *
+ */
+public class PagedQueryTest extends CassandraTest {
+
+    /**
+     * More than the rows read with each page
+     */
+    private static final int COUNT = 1005;
+
+    @Before
+    public void setUp() throws Exception {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        tx.begin();
+
+        for (int i = 0; i < COUNT; i++) {
+            PrimitiveObject object = new PrimitiveObject();
+            object.setTestString("paged");
+            object.setNonIndexedString(i % 2 == 0 ? "even" : "odd");
+            object.setTestInt(i);
+
+            pm.makePersistent(object);
+        }
+
+        tx.commit();
+        pm.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        tx.begin();
+
+        pm.newQuery(PrimitiveObject.class).deletePersistentAll();
+
+        tx.commit();
+        pm.close();
+    }
+
+    /**
+     * Every match of an && driven by an index clause is returned, not just
+     * the first page
+     */
+    @SuppressWarnings("rawtypes")
+    @Test
+    public void testAndDriverPaged() {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        try {
+            tx.begin();
+            Query q = pm.newQuery(PrimitiveObject.class);
+            q.setFilter("testString == 'paged' && nonIndexedString == 'odd'");
+
+            Collection c = (Collection) q.execute();
+
+            int count = 0;
+
+            for (Object result : c) {
+                assertEquals("odd",
+                        ((PrimitiveObject) result).getNonIndexedString());
+                count++;
+            }
+
+            assertEquals(COUNT / 2, count);
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            pm.close();
+        }
+    }
+
+    /**
+     * Results that weren't read before the commit can still be read after it
+     */
+    @SuppressWarnings("rawtypes")
+    @Test
+    public void testReadAfterCommit() {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        try {
+            tx.begin();
+            Query q = pm.newQuery(PrimitiveObject.class);
+            q.setFilter("testString == 'paged'");
+
+            Collection c = (Collection) q.execute();
+
+            tx.commit();
+
+            int count = 0;
+
+            for (Object result : c) {
+                assertEquals("paged",
+                        ((PrimitiveObject) result).getTestString());
+                count++;
+            }
+
+            assertEquals(COUNT, count);
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            pm.close();
+        }
+    }
+
+    /**
+     * Count the results of a query
+     *
+     * @param factory
+     * @param filter
+     * @return
+     */
+    @SuppressWarnings("rawtypes")
+    private int count(PersistenceManagerFactory factory, String filter) {
+        PersistenceManager pm = factory.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        try {
+            tx.begin();
+            Query q = pm.newQuery(PrimitiveObject.class);
+            q.setFilter(filter);
+
+            int count = 0;
+
+            for (Iterator it = ((Collection) q.execute()).iterator(); it
+                    .hasNext(); it.next()) {
+                count++;
+            }
+
+            tx.commit();
+
+            return count;
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            pm.close();
+        }
+    }
+
+    /**
+     * An unindexed query reads every row, a page of the scan size at a time
+     */
+    @Test
+    public void testScanPaged() {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.scansize", "7");
+
+        assertEquals(COUNT / 2, count(factory, "nonIndexedString == 'odd'"));
+        assertEquals(COUNT - COUNT / 2, count(factory,
+                "nonIndexedString == 'even'"));
+    }
+
+    /**
+     * The token ranges of an unindexed scan are read in parallel without
+     * losing or repeating rows
+     */
+    @Test
+    public void testScanParallel() {
+        PersistenceManagerFactory factory = getFactory(
+                "com.spidertracks.cassandra.scansize", "7",
+                "com.spidertracks.cassandra.threads", "4");
+
+        assertEquals(COUNT / 2, count(factory, "nonIndexedString == 'odd'"));
+        assertEquals(COUNT - COUNT / 2, count(factory,
+                "nonIndexedString == 'even'"));
+    }
+
+}
@@ -0,0 +1,172 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.client.Consistency;
+
+/**
+ * @author Todd Nine
+ *
+ */
+public class ParallelExecutorTest {
+
+    @Test
+    public void resultsInTaskOrder() throws Exception {
+        ParallelExecutor executor = new ParallelExecutor(4);
+
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+
+        for (int i = 0; i < 50; i++) {
+            final int value = i;
+
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return value;
+                }
+            });
+        }
+
+        List<Integer> results = executor.invokeAll(tasks);
+
+        assertEquals(50, results.size());
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, results.get(i).intValue());
+        }
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void consistencyPropagated() throws Exception {
+        ParallelExecutor executor = new ParallelExecutor(4);
+
+        List<Callable<ConsistencyLevel>> tasks = new ArrayList<Callable<ConsistencyLevel>>();
+
+        for (int i = 0; i < 10; i++) {
+            tasks.add(new Callable<ConsistencyLevel>() {
+                @Override
+                public ConsistencyLevel call() throws Exception {
+                    return Consistency.get();
+                }
+            });
+        }
+
+        Consistency.set(ConsistencyLevel.QUORUM);
+
+        try {
+            for (ConsistencyLevel level : executor.invokeAll(tasks)) {
+                assertEquals(ConsistencyLevel.QUORUM, level);
+            }
+        } finally {
+            Consistency.remove();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void failurePropagated() throws Exception {
+        ParallelExecutor executor = new ParallelExecutor(4);
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (int i = 0; i < 10; i++) {
+            final int value = i;
+
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (value == 5) {
+                        throw new IllegalStateException("failed");
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try {
+            executor.invokeAll(tasks);
+            fail("Exception should have been thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void runningTasksFinishBeforeFailure() throws Exception {
+        ParallelExecutor executor = new ParallelExecutor(4);
+
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                throw new IllegalStateException("failed");
+            }
+        });
+
+        for (int i = 0; i < 3; i++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    started.incrementAndGet();
+
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        interrupted.set(true);
+                    }
+
+                    finished.incrementAndGet();
+                    return null;
+                }
+            });
+        }
+
+        try {
+            executor.invokeAll(tasks);
+            fail("Exception should have been thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+            assertEquals(started.get(), finished.get());
+            assertFalse(interrupted.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}